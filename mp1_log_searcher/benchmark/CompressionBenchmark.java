@@ -0,0 +1,161 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmark of the compression of the response frames on a generated log file. The output lines of a query are
+ * collected once, then written by ResponseFrameWriter at each compression level and read back by ResponseFrameReader.
+ * For each level it measures the CPU time of the server and the client, and the bytes on the wire with the time to send
+ * them on a 100 Mbit/s and a 1 Gbit/s network, which shows when the compression is worth its CPU time.
+ *
+ * Usage: CompressionBenchmark [--size 100MB] [--corpus-dir ./benchmarkCorpus] [--query "grep Ping"] [--levels 0,1,6,9]
+ * [--iterations 5] [--result compression_result.json]
+ */
+public class CompressionBenchmark {
+    private static final String BENCHMARK_NAME = "CompressionBenchmark.frames";
+    // Bandwidths in bytes per second to estimate the transfer time.
+    private static final long[][] BANDWIDTHS = {{100, 100L * 1000 * 1000 / 8}, {1000, 1000L * 1000 * 1000 / 8}};
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        String size = "100MB";
+        String corpusDirectory = "./benchmarkCorpus";
+        String query = "grep Ping";
+        List<String> levels = Arrays.asList("0", "1", "6", "9");
+        int iterations = 5;
+        String resultFile = "compression_result.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--size":
+                    size = value;
+                    break;
+                case "--corpus-dir":
+                    corpusDirectory = value;
+                    break;
+                case "--query":
+                    query = value;
+                    break;
+                case "--levels":
+                    levels = Arrays.asList(value.split(","));
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--result":
+                    resultFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        File directory = QueryHandlerBenchmark.getCorpusDirectory(corpusDirectory, size);
+        QueryHandlerBenchmark.prepareCorpus(directory, size);
+        // The lines are collected first, so only the frames are measured and not the scan.
+        List<byte[]> lines = new ArrayList<>();
+        new QueryHandler(directory, false).executeQuery(query, null,
+                (line, length) -> lines.add(Arrays.copyOf(line, length)));
+        long lineBytes = 0;
+        for (byte[] line : lines) {
+            lineBytes += line.length + 1;
+        }
+        System.out.println(query + " on " + size + ": " + lines.size() + " lines, " + lineBytes + " bytes");
+
+        List<String> results = new ArrayList<>();
+        for (String level : levels) {
+            int compressionLevel = Integer.parseInt(level);
+            // The first round is a warmup.
+            double[][] measurements = new double[iterations][];
+            for (int i = -1; i < iterations; i++) {
+                double[] measurement = measure(lines, compressionLevel);
+                if (i >= 0) {
+                    measurements[i] = measurement;
+                }
+            }
+            results.add(report(size, query, compressionLevel, measurements, lineBytes));
+        }
+        try (Writer writer = new FileWriter(resultFile)) {
+            writer.write("[\n" + String.join(",\n", results) + "\n]\n");
+        }
+        System.out.println("Results are written to " + resultFile);
+    }
+
+    // Return the CPU time in milliseconds to write and to read the frames, and the number of bytes of the frames.
+    private static double[] measure(List<byte[]> lines, int level) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        Deflater deflater = level == 0 ? null : new Deflater(level);
+        long start = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        ResponseFrameWriter frameWriter = new ResponseFrameWriter(new DataOutputStream(frames), deflater);
+        for (byte[] line : lines) {
+            frameWriter.accept(line, line.length);
+        }
+        frameWriter.finish(lines.size());
+        double writeMillis = (THREAD_MX_BEAN.getCurrentThreadCpuTime() - start) / 1000000.0;
+        if (deflater != null) {
+            deflater.end();
+        }
+
+        ResponseFrameReader frameReader = new ResponseFrameReader(
+                new DataInputStream(new ByteArrayInputStream(frames.toByteArray())));
+        start = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        long lineCount = frameReader.read(batch -> { });
+        double readMillis = (THREAD_MX_BEAN.getCurrentThreadCpuTime() - start) / 1000000.0;
+        frameReader.close();
+        if (lineCount != lines.size()) {
+            throw new IllegalStateException("Read " + lineCount + " lines instead of " + lines.size());
+        }
+        return new double[]{writeMillis, readMillis, frames.size()};
+    }
+
+    private static String report(String size, String query, int level, double[][] measurements, long lineBytes) {
+        double[] writeTimes = new double[measurements.length];
+        double readMillis = 0;
+        for (int i = 0; i < measurements.length; i++) {
+            writeTimes[i] = measurements[i][0];
+            readMillis += measurements[i][1] / measurements.length;
+        }
+        double writeMillis = 0;
+        for (double time : writeTimes) {
+            writeMillis += time / writeTimes.length;
+        }
+        long wireBytes = (long) measurements[0][2];
+        double ratio = (double) lineBytes / wireBytes;
+        StringBuilder summary = new StringBuilder(String.format("level %d: %d bytes (ratio %.2f), server %.1f ms, "
+                + "client %.1f ms", level, wireBytes, ratio, writeMillis, readMillis));
+        StringBuilder transferMetrics = new StringBuilder();
+        for (long[] bandwidth : BANDWIDTHS) {
+            double transferMillis = wireBytes * 1000.0 / bandwidth[1];
+            summary.append(String.format(", %.1f ms in total on %d Mbit/s", writeMillis + transferMillis + readMillis,
+                    bandwidth[0]));
+            transferMetrics.append(", \"transfer").append(bandwidth[0]).append("Mbps\": {\"score\": ")
+                    .append(transferMillis).append(", \"scoreUnit\": \"ms\"}");
+        }
+        System.out.println(summary);
+
+        StringBuilder rawData = new StringBuilder();
+        for (double time : writeTimes) {
+            rawData.append(rawData.length() == 0 ? "" : ", ").append(time);
+        }
+        return "{\"benchmark\": \"" + BENCHMARK_NAME + "\", \"mode\": \"avgt\", \"threads\": 1, \"forks\": 0"
+                + ", \"warmupIterations\": 1, \"measurementIterations\": " + writeTimes.length
+                + ", \"params\": {\"corpusSize\": \"" + size + "\", \"query\": \"" + query.replace("\"", "\\\"")
+                + "\", \"level\": \"" + level + "\"}, \"primaryMetric\": {\"score\": " + writeMillis
+                + ", \"scoreUnit\": \"ms/op\", \"rawData\": [[" + rawData + "]]}, \"secondaryMetrics\": {"
+                + "\"clientCpu\": {\"score\": " + readMillis + ", \"scoreUnit\": \"ms/op\"}, "
+                + "\"wireBytes\": {\"score\": " + wireBytes + ", \"scoreUnit\": \"bytes\"}, "
+                + "\"compressionRatio\": {\"score\": " + ratio + ", \"scoreUnit\": \"\"}" + transferMetrics + "}}";
+    }
+}
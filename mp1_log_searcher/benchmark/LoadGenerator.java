@@ -0,0 +1,378 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the whole system on one host. N log servers are started in this JVM on loopback, each on its own port
+ * and with its own generated corpus like the VMs. Then C clients, each with its own connections and QueryCoordinator,
+ * send queries from a weighted mix one after another for the duration. The throughput and the p50, p99 and max
+ * latency of each query and of all the queries are written as JSON in the same format as JMH.
+ *
+ * Usage: LoadGenerator [--servers 4] [--base-port 9001] [--size 20MB] [--corpus-dir ./benchmarkCorpus]
+ * [--clients 8] [--warmup 5] [--duration 30] [--mix frequent:1,infrequent:1,regex:1,limited:1,level:1]
+ * [--nio] [--cache] [--seed 425] [--result load_result.json]
+ */
+public class LoadGenerator {
+    private static final String BENCHMARK_NAME = "LoadGenerator.query";
+    // Time for a server to start listening.
+    private static final long SERVER_START_TIMEOUT_MILLIS = 10000;
+    // Patterns with different frequencies in the corpus from LogGenerator.generateCorpus, and a group-by query.
+    private static final String[][] QUERIES = {
+            {"frequent", "grep -c Ping"},
+            {"infrequent", "grep RareErrorCode"},
+            {"regex", "grep -c -E 'Timeout after [0-9]+ ms'"},
+            {"limited", "grep -m 100 Member"},
+            {"level", "grep --group-by level Membership"},
+    };
+
+    private final List<String> addresses;
+    private final List<String[]> queries;
+    private final int totalWeight;
+
+    public static void main(String[] args) throws Exception {
+        int serverCount = 4;
+        int basePort = 9001;
+        String size = "20MB";
+        String corpusDirectory = "./benchmarkCorpus";
+        int clientCount = 8;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        String mix = null;
+        boolean isNio = false;
+        boolean isResultCacheEnabled = false;
+        long seed = LogGenerator.CORPUS_SEED;
+        String resultFile = "load_result.json";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--nio")) {
+                isNio = true;
+                continue;
+            }
+            if (args[i].equals("--cache")) {
+                // The results of the repeated queries are reused, like on a server that runs the same queries often.
+                isResultCacheEnabled = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--servers":
+                    serverCount = Integer.parseInt(value);
+                    break;
+                case "--base-port":
+                    basePort = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    size = value;
+                    break;
+                case "--corpus-dir":
+                    corpusDirectory = value;
+                    break;
+                case "--clients":
+                    clientCount = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    mix = value;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--result":
+                    resultFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        if (serverCount <= 0 || clientCount <= 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("The servers, the clients and the duration must be positive");
+        }
+
+        List<String[]> queries = parseMix(mix);
+        List<String> addresses = startServers(serverCount, basePort, new File(corpusDirectory, "load-" + size), size,
+                isNio, isResultCacheEnabled);
+        LoadGenerator generator = new LoadGenerator(addresses, queries);
+        // The first queries start building the indexes. Measure the queries after the indexes are ready, like on
+        // servers that have been running.
+        generator.runOnce();
+        QueryHandler.awaitIndexing();
+
+        System.out.println("Warming up for " + warmupSeconds + " seconds with " + clientCount + " clients");
+        generator.run(clientCount, TimeUnit.SECONDS.toMillis(warmupSeconds), seed);
+        System.out.println("Measuring for " + durationSeconds + " seconds with " + clientCount + " clients");
+        Map<String, Latencies> latencies = generator.run(clientCount, TimeUnit.SECONDS.toMillis(durationSeconds),
+                seed + 1);
+
+        List<String> results = new ArrayList<>();
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            Latencies queryLatencies = entry.getValue();
+            System.out.println(String.format("%-12s %10.1f queries/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms"
+                            + "  errors %d", entry.getKey(), queryLatencies.getThroughput(durationSeconds),
+                    queryLatencies.getPercentile(50), queryLatencies.getPercentile(99),
+                    queryLatencies.getPercentile(100), queryLatencies.errorCount));
+            results.add(toJson(entry.getKey(), queryLatencies, serverCount, size, clientCount, durationSeconds,
+                    warmupSeconds));
+        }
+        try (Writer writer = new FileWriter(resultFile)) {
+            writer.write("[\n" + String.join(",\n", results) + "\n]\n");
+        }
+        System.out.println("Results are written to " + resultFile);
+        // The servers have no way to stop.
+        System.exit(0);
+    }
+
+    /**
+     * @param addresses The servers like "127.0.0.1:9001".
+     * @param queries The name, the query and the weight of each query in the mix.
+     */
+    public LoadGenerator(List<String> addresses, List<String[]> queries) {
+        this.addresses = addresses;
+        this.queries = queries;
+        int weight = 0;
+        for (String[] query : queries) {
+            weight += Integer.parseInt(query[2]);
+        }
+        this.totalWeight = weight;
+    }
+
+    // Parse "name:weight,..." with the names of QUERIES. All the queries have the same weight by default.
+    private static List<String[]> parseMix(String mix) {
+        List<String[]> queries = new ArrayList<>();
+        if (mix == null) {
+            for (String[] query : QUERIES) {
+                queries.add(new String[]{query[0], query[1], "1"});
+            }
+            return queries;
+        }
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.split(":");
+            String query = null;
+            for (String[] knownQuery : QUERIES) {
+                if (knownQuery[0].equals(nameAndWeight[0])) {
+                    query = knownQuery[1];
+                }
+            }
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1]) : 1;
+            if (query == null || weight <= 0) {
+                throw new IllegalArgumentException("Invalid query in the mix: " + entry);
+            }
+            queries.add(new String[]{nameAndWeight[0], query, String.valueOf(weight)});
+        }
+        return queries;
+    }
+
+    /**
+     * Start the servers in this JVM. Each server has the directory "server-i" with its own corpus, which is generated
+     * the first time with a different seed.
+     *
+     * @return The addresses of the servers.
+     */
+    static List<String> startServers(int serverCount, int basePort, File directory, String size, boolean isNio,
+                                     boolean isResultCacheEnabled) throws InterruptedException {
+        long targetBytes = LogGenerator.parseSize(size);
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < serverCount; i++) {
+            File logDirectory = new File(directory, "server-" + (i + 1));
+            File corpus = new File(logDirectory, "vm" + (i + 1) + ".log");
+            if (corpus.length() < targetBytes) {
+                if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+                    throw new RuntimeException("Failed to create " + logDirectory);
+                }
+                System.out.println("Generating " + corpus);
+                LogGenerator.generateCorpus(corpus.getPath(), targetBytes, LogGenerator.CORPUS_SEED + i);
+            }
+            int port = basePort + i;
+            // Compaction is off, since the corpora are fresh and the load should not change during the run.
+            // Like SocketMultipleServer, the NIO server does not scan a file on the fork-join pool too.
+            QueryHandler queryHandler = new QueryHandler(logDirectory, isResultCacheEnabled, !isNio);
+            Thread serverThread = new Thread(() -> {
+                if (isNio) {
+                    new SelectorLogServer(port, queryHandler).start();
+                } else {
+                    new SocketMultipleServer(port, queryHandler).start();
+                }
+            }, "log-server-" + port);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            addresses.add("127.0.0.1:" + port);
+        }
+        for (String address : addresses) {
+            awaitServer(address);
+        }
+        return addresses;
+    }
+
+    private static void awaitServer(String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+        while (true) {
+            SocketClient client = SocketClient.forAddress(address, FrameCompression.NO_COMPRESSION);
+            if (client.ping((int) SERVER_START_TIMEOUT_MILLIS)) {
+                client.cancel();
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeException(address + " did not start");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    // Run each query of the mix once.
+    private void runOnce() {
+        QueryCoordinator coordinator = connect();
+        for (String[] query : queries) {
+            coordinator.stream(query[1], (serverIp, batch) -> { }).join();
+        }
+        coordinator.shutdown();
+    }
+
+    /**
+     * Run the clients for the duration. Each client sends its next query as soon as the result of the query before
+     * is returned.
+     *
+     * @return The latencies of each query, and of all of them as "all".
+     */
+    private Map<String, Latencies> run(int clientCount, long durationMillis, long seed) throws InterruptedException {
+        List<Map<String, Latencies>> clientLatencies = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(clientCount);
+        long end = System.currentTimeMillis() + durationMillis;
+        for (int c = 0; c < clientCount; c++) {
+            Map<String, Latencies> latencies = new LinkedHashMap<>();
+            clientLatencies.add(latencies);
+            Random random = new Random(seed * 31 + c);
+            Thread clientThread = new Thread(() -> {
+                QueryCoordinator coordinator = connect();
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        String[] query = pickQuery(random);
+                        long start = System.nanoTime();
+                        QueryResult result = coordinator.stream(query[1], (serverIp, batch) -> { }).join();
+                        long latency = System.nanoTime() - start;
+                        boolean isFailed = false;
+                        for (ServerResponse response : result.getResponses()) {
+                            isFailed |= response.isFailed() || response.isTimedOut();
+                        }
+                        latencies.computeIfAbsent(query[0], name -> new Latencies()).add(latency, isFailed);
+                    }
+                } finally {
+                    coordinator.shutdown();
+                    done.countDown();
+                }
+            }, "load-client-" + c);
+            clientThread.start();
+        }
+        done.await();
+
+        Map<String, Latencies> merged = new LinkedHashMap<>();
+        Latencies all = new Latencies();
+        for (String[] query : queries) {
+            Latencies queryLatencies = new Latencies();
+            for (Map<String, Latencies> latencies : clientLatencies) {
+                queryLatencies.addAll(latencies.get(query[0]));
+            }
+            merged.put(query[0], queryLatencies);
+            all.addAll(queryLatencies);
+        }
+        merged.put("all", all);
+        return merged;
+    }
+
+    // Each client has its own connections, like a user running LogFinderMain.
+    private QueryCoordinator connect() {
+        List<SocketClient> clients = new ArrayList<>();
+        for (String address : addresses) {
+            SocketClient client = SocketClient.forAddress(address, FrameCompression.DEFAULT_LEVEL);
+            client.start();
+            clients.add(client);
+        }
+        return new QueryCoordinator(clients);
+    }
+
+    private String[] pickQuery(Random random) {
+        int value = random.nextInt(totalWeight);
+        for (String[] query : queries) {
+            value -= Integer.parseInt(query[2]);
+            if (value < 0) {
+                return query;
+            }
+        }
+        return queries.get(queries.size() - 1);
+    }
+
+    private static String toJson(String query, Latencies latencies, int serverCount, String size, int clientCount,
+                                 int durationSeconds, int warmupSeconds) {
+        return "{\"benchmark\": \"" + BENCHMARK_NAME + "\", \"mode\": \"thrpt\", \"threads\": " + clientCount
+                + ", \"forks\": 0, \"warmupTime\": \"" + warmupSeconds + " s\", \"measurementTime\": \""
+                + durationSeconds + " s\", \"params\": {\"servers\": \"" + serverCount + "\", \"corpusSize\": \""
+                + size + "\", \"query\": \"" + query + "\"}, \"primaryMetric\": {\"score\": "
+                + latencies.getThroughput(durationSeconds) + ", \"scoreUnit\": \"ops/s\"}, \"secondaryMetrics\": {"
+                + "\"p50\": {\"score\": " + latencies.getPercentile(50) + ", \"scoreUnit\": \"ms/op\"}, "
+                + "\"p99\": {\"score\": " + latencies.getPercentile(99) + ", \"scoreUnit\": \"ms/op\"}, "
+                + "\"max\": {\"score\": " + latencies.getPercentile(100) + ", \"scoreUnit\": \"ms/op\"}, "
+                + "\"errors\": {\"score\": " + latencies.errorCount + ", \"scoreUnit\": \"ops\"}}}";
+    }
+
+    /**
+     * Latencies of the queries in nanoseconds. Each client has its own, so they are merged after the run.
+     */
+    static class Latencies {
+        private long[] values = new long[1024];
+        private int count = 0;
+        private int errorCount = 0;
+
+        void add(long latencyNanos, boolean isFailed) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = latencyNanos;
+            if (isFailed) {
+                errorCount++;
+            }
+        }
+
+        void addAll(Latencies other) {
+            if (other == null) {
+                return;
+            }
+            if (count + other.count > values.length) {
+                values = Arrays.copyOf(values, Math.max(count + other.count, values.length * 2));
+            }
+            System.arraycopy(other.values, 0, values, count, other.count);
+            count += other.count;
+            errorCount += other.errorCount;
+        }
+
+        double getThroughput(int durationSeconds) {
+            return (double) count / durationSeconds;
+        }
+
+        /**
+         * @param percentile From 0 to 100. 100 is the max.
+         * @return The latency in milliseconds with the nearest-rank method, or 0 if there is none.
+         */
+        double getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * count);
+            return sorted[Math.max(rank, 1) - 1] / 1000000.0;
+        }
+    }
+}
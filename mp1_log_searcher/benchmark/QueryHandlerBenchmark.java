@@ -0,0 +1,236 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmark of QueryHandler on generated log files from 100 MB to 10 GB. Each corpus size runs in a new JVM like a JMH
+ * fork, and each query has warmup iterations before the measured ones. The results are written as JSON in the same
+ * format as JMH, so the same tools can compare two runs.
+ *
+ * Usage: QueryHandlerBenchmark [--sizes 100MB,1GB,10GB] [--corpus-dir ./benchmarkCorpus] [--warmup 3]
+ * [--iterations 5] [--forks 1] [--result benchmark_result.json]
+ */
+public class QueryHandlerBenchmark {
+    private static final String BENCHMARK_NAME = "QueryHandlerBenchmark.query";
+    private static final String RESULT_PREFIX = "RESULT ";
+    // Patterns with different frequencies in the corpus from LogGenerator.generateCorpus.
+    private static final String[][] PATTERNS = {
+            {"frequent", "Ping"},
+            {"infrequent", "RareErrorCode"},
+            {"regex", "-E 'Timeout after [0-9]+ ms'"},
+            // All the patterns above in one scan, with each line tagged by the patterns it matches.
+            {"batch", "-E --batch -e Ping -e RareErrorCode -e 'Timeout after [0-9]+ ms'"},
+    };
+    private static final String[][] OUTPUTS = {
+            {"count", "-c "},
+            {"lines", ""},
+    };
+    // Quantiles of the t-distribution for a 99.9% confidence interval, like JMH. Index is the degrees of freedom.
+    private static final double[] T_QUANTILES = {Double.NaN, 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78,
+            4.59};
+
+    private long outputBytes = 0;
+
+    public static void main(String[] args) throws Exception {
+        List<String> sizes = Arrays.asList("100MB", "1GB", "10GB");
+        String corpusDirectory = "./benchmarkCorpus";
+        int warmupIterations = 3;
+        int iterations = 5;
+        int forks = 1;
+        String resultFile = "benchmark_result.json";
+        String runSize = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.asList(value.split(","));
+                    break;
+                case "--corpus-dir":
+                    corpusDirectory = value;
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--forks":
+                    forks = Integer.parseInt(value);
+                    break;
+                case "--result":
+                    resultFile = value;
+                    break;
+                case "--run":
+                    // Used by the forked JVM to run one corpus size.
+                    runSize = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (runSize != null) {
+            for (String result : new QueryHandlerBenchmark().run(getCorpusDirectory(corpusDirectory, runSize), runSize,
+                    warmupIterations, iterations, forks)) {
+                System.out.println(RESULT_PREFIX + result);
+            }
+            return;
+        }
+
+        List<String> results = new ArrayList<>();
+        for (String size : sizes) {
+            File directory = getCorpusDirectory(corpusDirectory, size);
+            prepareCorpus(directory, size);
+            if (forks == 0) {
+                results.addAll(new QueryHandlerBenchmark().run(directory, size, warmupIterations, iterations, 0));
+            } else {
+                for (int fork = 0; fork < forks; fork++) {
+                    results.addAll(runInNewJvm(size, corpusDirectory, warmupIterations, iterations, forks));
+                }
+            }
+        }
+        try (Writer writer = new FileWriter(resultFile)) {
+            writer.write("[\n" + String.join(",\n", results) + "\n]\n");
+        }
+        System.out.println("Results are written to " + resultFile);
+    }
+
+    static File getCorpusDirectory(String corpusDirectory, String size) {
+        return new File(corpusDirectory, size);
+    }
+
+    // Generate the corpus if it is not there. The file name has the size, so the indexes of different sizes are kept
+    // apart.
+    static void prepareCorpus(File directory, String size) {
+        File corpus = new File(directory, "corpus-" + size + ".log");
+        long targetBytes = LogGenerator.parseSize(size);
+        if (corpus.length() >= targetBytes) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Failed to create " + directory);
+        }
+        System.out.println("Generating " + corpus);
+        LogGenerator.generateCorpus(corpus.getPath(), targetBytes, LogGenerator.CORPUS_SEED);
+    }
+
+    private static List<String> runInNewJvm(String size, String corpusDirectory, int warmupIterations, int iterations,
+                                            int forks) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                QueryHandlerBenchmark.class.getName(), "--run", size, "--corpus-dir", corpusDirectory,
+                "--warmup", String.valueOf(warmupIterations), "--iterations", String.valueOf(iterations),
+                "--forks", String.valueOf(forks))
+                .redirectErrorStream(true)
+                .start();
+        List<String> results = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    results.add(line.substring(RESULT_PREFIX.length()));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new RuntimeException("Benchmark of " + size + " failed");
+        }
+        return results;
+    }
+
+    // Run all the queries on one corpus and return the results as JSON objects.
+    private List<String> run(File directory, String size, int warmupIterations, int iterations, int forks)
+            throws InterruptedException {
+        // The result cache is off, so each iteration scans the file.
+        QueryHandler queryHandler = new QueryHandler(directory, false);
+        long corpusBytes = 0;
+        for (File logFile : QueryHandler.listLogFiles(directory)) {
+            corpusBytes += logFile.length();
+        }
+        // The first queries start building the indexes. Measure the queries after the indexes are ready, like on a
+        // server that has been running.
+        for (String[] pattern : PATTERNS) {
+            queryHandler.executeQuery("grep -c " + pattern[1], null, (line, length) -> { });
+        }
+        QueryHandler.awaitIndexing();
+
+        List<String> results = new ArrayList<>();
+        for (String[] pattern : PATTERNS) {
+            for (String[] output : OUTPUTS) {
+                String query = "grep " + output[1] + pattern[1];
+                for (int i = 0; i < warmupIterations; i++) {
+                    long[] measurement = measure(queryHandler, query);
+                    System.out.println(size + " " + query + " warmup " + (i + 1) + ": "
+                            + measurement[0] / 1000000.0 + " ms");
+                }
+                double[] times = new double[iterations];
+                long lineCount = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long[] measurement = measure(queryHandler, query);
+                    times[i] = measurement[0] / 1000000.0;
+                    lineCount = measurement[1];
+                    System.out.println(size + " " + query + " iteration " + (i + 1) + ": " + times[i] + " ms");
+                }
+                results.add(toJson(size, pattern[0], output[0], times, corpusBytes, lineCount, warmupIterations,
+                        forks));
+            }
+        }
+        System.out.println("Output bytes: " + outputBytes);
+        return results;
+    }
+
+    // Return the time in nanoseconds and the number of output lines.
+    private long[] measure(QueryHandler queryHandler, String query) {
+        long start = System.nanoTime();
+        long lineCount = queryHandler.executeQuery(query, null, (line, length) -> outputBytes += length);
+        return new long[]{System.nanoTime() - start, lineCount};
+    }
+
+    private static String toJson(String size, String pattern, String output, double[] times, long corpusBytes,
+                                 long lineCount, int warmupIterations, int forks) {
+        double mean = 0;
+        for (double time : times) {
+            mean += time;
+        }
+        mean /= times.length;
+        double error = Double.NaN;
+        if (times.length > 1) {
+            double variance = 0;
+            for (double time : times) {
+                variance += (time - mean) * (time - mean);
+            }
+            variance /= times.length - 1;
+            int degreesOfFreedom = times.length - 1;
+            // Close to the real quantiles when there are more than 10 iterations.
+            double quantile = degreesOfFreedom < T_QUANTILES.length
+                    ? T_QUANTILES[degreesOfFreedom] : 3.29 + 13.0 / degreesOfFreedom;
+            error = quantile * Math.sqrt(variance / times.length);
+        }
+        double megabytesPerSecond = mean > 0 ? corpusBytes / 1048576.0 / (mean / 1000) : 0;
+        StringBuilder rawData = new StringBuilder();
+        for (double time : times) {
+            rawData.append(rawData.length() == 0 ? "" : ", ").append(time);
+        }
+        return "{\"benchmark\": \"" + BENCHMARK_NAME + "\", \"mode\": \"avgt\", \"threads\": 1, \"forks\": " + forks
+                + ", \"warmupIterations\": " + warmupIterations + ", \"measurementIterations\": " + times.length
+                + ", \"params\": {\"corpusSize\": \"" + size + "\", \"pattern\": \"" + pattern + "\", \"output\": \""
+                + output + "\"}, \"primaryMetric\": {\"score\": " + mean + ", \"scoreError\": " + toJsonNumber(error)
+                + ", \"scoreConfidence\": [" + toJsonNumber(mean - error) + ", " + toJsonNumber(mean + error)
+                + "], \"scoreUnit\": \"ms/op\", \"rawData\": [[" + rawData + "]]}, \"secondaryMetrics\": {"
+                + "\"throughput\": {\"score\": " + megabytesPerSecond + ", \"scoreUnit\": \"MB/s\"}, "
+                + "\"outputLines\": {\"score\": " + lineCount + ", \"scoreUnit\": \"lines/op\"}}}";
+    }
+
+    // JSON has no NaN, so it is written as the string "NaN" like JMH does.
+    private static String toJsonNumber(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.valueOf(value);
+    }
+}
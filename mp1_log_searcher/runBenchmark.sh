@@ -0,0 +1,20 @@
+# Compile the project and the benchmark. The log files for the benchmark are generated under ./benchmarkCorpus the
+# first time, so make sure there is enough disk space for the sizes, e.g. "sh runBenchmark.sh --sizes 100MB,1GB".
+rm -rf ./compileBenchmark
+mkdir ./compileBenchmark
+javac -target 8 -source 8 -d ./compileBenchmark ./src/*.java ./test/LogGenerator.java ./test/CorpusGenerator.java \
+  ./benchmark/*.java
+# Run the benchmark. The results are written to benchmark_result.json in the JMH format.
+# "sh runBenchmark.sh compression --size 1GB" runs the compression benchmark instead, and the results are written to
+# compression_result.json.
+# "sh runBenchmark.sh load --servers 4 --clients 8" starts the servers on loopback and runs the load generator instead,
+# and the results are written to load_result.json.
+if [ "$1" = "compression" ]; then
+  shift
+  java -classpath ./compileBenchmark CompressionBenchmark "$@"
+elif [ "$1" = "load" ]; then
+  shift
+  java -classpath ./compileBenchmark LoadGenerator "$@"
+else
+  java -classpath ./compileBenchmark QueryHandlerBenchmark "$@"
+fi
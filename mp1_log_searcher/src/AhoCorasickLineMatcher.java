@@ -0,0 +1,161 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Matcher for a set of literal patterns. The patterns are compiled into an Aho-Corasick automaton, so each byte of the
+ * line is read once whatever the number of patterns. The automaton is stored as a full transition table with 256
+ * entries for each state, so a byte only needs one lookup.
+ *
+ * The case is ignored only for ASCII letters, like Pattern.CASE_INSENSITIVE.
+ */
+public class AhoCorasickLineMatcher extends LineMatcher {
+    private static final int ALPHABET_SIZE = 256;
+
+    private final int[] patternLengths;
+    // Next state is transitions[state * ALPHABET_SIZE + byte].
+    private final int[] transitions;
+    // Pattern that ends at the state, or -1. A pattern given more than once is chained by samePatterns.
+    private final int[] statePatterns;
+    private final int[] samePatterns;
+    // Nearest state for a proper suffix of the state that has a pattern, or -1.
+    private final int[] outputLinks;
+    // A pattern that ends at the state or at one of its suffixes, or -1. It is enough to know whether a line matches.
+    private final int[] firstOutputs;
+
+    /**
+     * @param patterns The literal patterns as bytes. They must not contain a line separator.
+     * @param ignoreCase Whether the case of the ASCII letters is ignored.
+     */
+    public AhoCorasickLineMatcher(byte[][] patterns, boolean ignoreCase) {
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+        patternLengths = new int[patterns.length];
+        int[] trie = new int[maxStates * ALPHABET_SIZE];
+        Arrays.fill(trie, -1);
+        int[] patternsAtState = new int[maxStates];
+        Arrays.fill(patternsAtState, -1);
+        samePatterns = new int[patterns.length];
+        int stateCount = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            patternLengths[i] = patterns[i].length;
+            int state = 0;
+            for (byte b : patterns[i]) {
+                int index = state * ALPHABET_SIZE + (ignoreCase ? toLowerCase(b) : b & 0xff);
+                if (trie[index] < 0) {
+                    trie[index] = stateCount++;
+                }
+                state = trie[index];
+            }
+            samePatterns[i] = patternsAtState[state];
+            patternsAtState[state] = i;
+        }
+
+        transitions = Arrays.copyOf(trie, stateCount * ALPHABET_SIZE);
+        statePatterns = Arrays.copyOf(patternsAtState, stateCount);
+        outputLinks = new int[stateCount];
+        firstOutputs = new int[stateCount];
+        // Visit the states by depth, so the failure state of a state is always done before it. The missing
+        // transitions are filled with the ones of the failure state.
+        int[] failures = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int queueStart = 0;
+        int queueEnd = 0;
+        outputLinks[0] = -1;
+        firstOutputs[0] = statePatterns[0];
+        for (int b = 0; b < ALPHABET_SIZE; b++) {
+            int next = transitions[b];
+            if (next < 0) {
+                transitions[b] = 0;
+            } else {
+                failures[next] = 0;
+                queue[queueEnd++] = next;
+            }
+        }
+        while (queueStart < queueEnd) {
+            int state = queue[queueStart++];
+            int failure = failures[state];
+            outputLinks[state] = statePatterns[failure] >= 0 ? failure : outputLinks[failure];
+            firstOutputs[state] = statePatterns[state] >= 0 ? statePatterns[state] : firstOutputs[failure];
+            for (int b = 0; b < ALPHABET_SIZE; b++) {
+                int index = state * ALPHABET_SIZE + b;
+                int next = transitions[index];
+                if (next < 0) {
+                    transitions[index] = transitions[failure * ALPHABET_SIZE + b];
+                } else {
+                    failures[next] = transitions[failure * ALPHABET_SIZE + b];
+                    queue[queueEnd++] = next;
+                }
+            }
+        }
+        if (ignoreCase) {
+            // The patterns are in lower case, so an upper case letter moves to the same state as its lower case.
+            for (int state = 0; state < stateCount; state++) {
+                for (int b = 'A'; b <= 'Z'; b++) {
+                    transitions[state * ALPHABET_SIZE + b] = transitions[state * ALPHABET_SIZE + b - 'A' + 'a'];
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean matches(ByteBuffer buffer, int start, int end) {
+        return find(buffer, start, end) >= 0;
+    }
+
+    @Override
+    public int find(ByteBuffer buffer, int start, int end) {
+        if (firstOutputs[0] >= 0) {
+            // An empty pattern matches every line.
+            return start;
+        }
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            state = transitions[state * ALPHABET_SIZE + (buffer.get(i) & 0xff)];
+            int pattern = firstOutputs[state];
+            if (pattern >= 0) {
+                return i + 1 - patternLengths[pattern];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isLiteral() {
+        return true;
+    }
+
+    /**
+     * Find all the patterns that occur in the line.
+     *
+     * @param buffer Buffer that holds the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line, not including the line separator.
+     * @param matched Set to true at the index of each pattern that occurs. Other values are not changed.
+     */
+    public void collectMatches(ByteBuffer buffer, int start, int end, boolean[] matched) {
+        addPatterns(0, matched);
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            state = transitions[state * ALPHABET_SIZE + (buffer.get(i) & 0xff)];
+            if (firstOutputs[state] >= 0) {
+                addPatterns(state, matched);
+            }
+        }
+    }
+
+    // Mark the patterns that end at the state or at one of its suffixes.
+    private void addPatterns(int state, boolean[] matched) {
+        while (state >= 0) {
+            for (int pattern = statePatterns[state]; pattern >= 0; pattern = samePatterns[pattern]) {
+                matched[pattern] = true;
+            }
+            state = outputLinks[state];
+        }
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b - 'A' + 'a' : b & 0xff;
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter of int values, like the trigrams of a block of log lines. It can say that a value was never added, but
+ * may say that a value was added when it was not. With 10 bits for each value and 7 hash functions, that happens for
+ * less than 1% of the values.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_VALUE = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final long[] words;
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * @param expectedCount Number of values that will be added.
+     * @return An empty filter sized for the number of values.
+     */
+    public static BloomFilter create(int expectedCount) {
+        long bitCount = Math.max(64, (long) expectedCount * BITS_PER_VALUE);
+        return new BloomFilter(new long[(int) Math.min(Integer.MAX_VALUE, (bitCount + 63) / 64)]);
+    }
+
+    public void add(int value) {
+        long hash = mix(value);
+        int firstHash = (int) hash;
+        int secondHash = (int) (hash >>> 32);
+        long bitCount = (long) words.length * 64;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            // Double hashing gives the other hash functions from two hashes.
+            long bit = ((firstHash + (long) i * secondHash) & Long.MAX_VALUE) % bitCount;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the value was never added. true if it may have been added.
+     */
+    public boolean mightContain(int value) {
+        long hash = mix(value);
+        int firstHash = (int) hash;
+        int secondHash = (int) (hash >>> 32);
+        long bitCount = (long) words.length * 64;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = ((firstHash + (long) i * secondHash) & Long.MAX_VALUE) % bitCount;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if one of the values was never added.
+     */
+    public boolean mightContainAll(int[] values) {
+        for (int value : values) {
+            if (!mightContain(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Written as the number of words and the words.
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter read(DataInput in) throws IOException {
+        int wordCount = in.readInt();
+        if (wordCount <= 0) {
+            throw new IOException("Invalid bloom filter size " + wordCount);
+        }
+        long[] words = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words);
+    }
+
+    // Size of the filter when it is written.
+    public int getSerializedSize() {
+        return 4 + 8 * words.length;
+    }
+
+    // The trigrams are small and close to each other, so they are mixed before they are used as hashes. This is the
+    // finalizer of MurmurHash3.
+    private static long mix(int value) {
+        long hash = value & 0xffffffffL;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
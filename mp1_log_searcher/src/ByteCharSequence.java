@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A CharSequence view of a byte range in a buffer. Each byte is read as one ISO-8859-1 char, which is the same as ASCII
+ * for the log files we search.
+ */
+public class ByteCharSequence implements CharSequence {
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    public ByteCharSequence() {
+    }
+
+    public ByteCharSequence(ByteBuffer buffer, int start, int end) {
+        reset(buffer, start, end);
+    }
+
+    // Point the view to another range so that the same object can be reused for every line.
+    public void reset(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(start + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return new ByteCharSequence(buffer, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length());
+        for (int i = start; i < end; i++) {
+            sb.append((char) (buffer.get(i) & 0xff));
+        }
+        return sb.toString();
+    }
+}
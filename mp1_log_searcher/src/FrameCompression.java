@@ -0,0 +1,70 @@
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the response frames, negotiated for each connection. After connecting, the client sends
+ * "compress deflate [level]" like a query. A server that supports it answers with an END frame, and the LINES frames of
+ * the next responses may then be sent as COMPRESSED_LINES frames. An older server answers with an ERROR frame since it
+ * is not a grep command, and the client keeps reading plain frames. "compress none" turns the compression off.
+ *
+ * Each frame is compressed on its own, so a frame can be read without the ones before it and a cancelled query does
+ * not leave any state behind.
+ */
+public class FrameCompression {
+    public static final String COMMAND = "compress";
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+    // Level used by the client when none is given. Log lines compress well even at the fastest level.
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    // Level that turns the compression off.
+    public static final int NO_COMPRESSION = -1;
+
+    /**
+     * @return true if the line received by the server is a compression command instead of a query.
+     */
+    public static boolean isCommand(String line) {
+        return line.equals(COMMAND) || line.startsWith(COMMAND + " ");
+    }
+
+    /**
+     * @param level Compression level from 1 to 9, or NO_COMPRESSION.
+     * @return The command that the client sends to ask for the level.
+     */
+    public static String toCommand(int level) {
+        return level == NO_COMPRESSION ? COMMAND + " " + NONE : COMMAND + " " + DEFLATE + " " + level;
+    }
+
+    /**
+     * Parse the command sent by the client, like "compress deflate 6".
+     *
+     * @return The compression level, or NO_COMPRESSION for "compress none".
+     * @throws IllegalArgumentException If the codec or the level is not supported.
+     */
+    public static int parseCommand(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length == 2 && tokens[1].equals(NONE)) {
+            return NO_COMPRESSION;
+        }
+        if (tokens.length < 2 || tokens.length > 3 || !tokens[1].equals(DEFLATE)) {
+            throw new IllegalArgumentException("Unsupported compression " + line);
+        }
+        if (tokens.length == 2) {
+            return DEFAULT_LEVEL;
+        }
+        try {
+            int level = Integer.parseInt(tokens[2]);
+            if (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION) {
+                return level;
+            }
+        } catch (NumberFormatException e) {
+            // Same error as a level out of the range.
+        }
+        throw new IllegalArgumentException("Invalid compression level " + tokens[2]);
+    }
+
+    /**
+     * @return A deflater for the level, or null for NO_COMPRESSION. The caller ends it when the connection is closed.
+     */
+    public static Deflater createDeflater(int level) {
+        return level == NO_COMPRESSION ? null : new Deflater(level);
+    }
+}
@@ -0,0 +1,542 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parsed form of a grep command like "grep -Ec ^te.t". We support the options -c, -E, -i, -v and -n. Options can be
+ * combined in one argument like grep does. The lines can also be limited to a time range with "--since <timestamp>"
+ * and "--until <timestamp>", like "grep --since '2022-09-24 17:46' ERROR".
+ *
+ * "-m N", "--max-count N" or "--limit N" stops the query after N selected lines. Unlike grep, the limit is for all the
+ * files of a server instead of each file, and the client stops the other servers once N lines are received in total.
+ *
+ * Several patterns can be given with "-e PATTERN", and a line is selected if any of them matches. With "--batch", each
+ * output line starts with the index of a pattern that matches it, like "1:./logFiles/vm1.log:...". A line that
+ * matches several patterns is given once for each of them, and "-c" gives a count for each pattern. All the patterns
+ * are still evaluated in one scan of the files.
+ *
+ * "--group-by level", "--group-by minute", "--group-by hour" or "--group-by REGEX" counts the selected lines of each
+ * group instead of returning them. Each server returns one line "count:group" for each group, and the client adds up
+ * the counts of the same group.
+ *
+ * The client parses the command once and sends it to the servers in a compact binary form, see toWireLine, so the
+ * servers don't parse the quotes and the options again.
+ */
+public class GrepCommand {
+    // A line "query <base64>" received by a server is a command in the binary form. "query" alone asks whether the
+    // server supports it.
+    public static final String WIRE_COMMAND = "query";
+    private static final byte WIRE_VERSION = 1;
+    private static final int COUNT_ONLY = 1;
+    private static final int EXTENDED_REGEX = 1 << 1;
+    private static final int IGNORE_CASE = 1 << 2;
+    private static final int INVERT_MATCH = 1 << 3;
+    private static final int LINE_NUMBER = 1 << 4;
+    private static final int BATCH = 1 << 5;
+    private static final int HAS_TIME_RANGE = 1 << 6;
+    private static final int HAS_GROUP_BY = 1 << 7;
+
+    private final List<String> patterns;
+    private final boolean countOnly;
+    private final boolean extendedRegex;
+    private final boolean ignoreCase;
+    private final boolean invertMatch;
+    private final boolean lineNumber;
+    private final TimeRange timeRange;
+    private final long limit;
+    private final boolean batch;
+    private final String groupBy;
+
+    public GrepCommand(String pattern, boolean countOnly, boolean extendedRegex, boolean ignoreCase,
+                       boolean invertMatch, boolean lineNumber, TimeRange timeRange) {
+        this(pattern, countOnly, extendedRegex, ignoreCase, invertMatch, lineNumber, timeRange, -1);
+    }
+
+    public GrepCommand(String pattern, boolean countOnly, boolean extendedRegex, boolean ignoreCase,
+                       boolean invertMatch, boolean lineNumber, TimeRange timeRange, long limit) {
+        this(Collections.singletonList(pattern), countOnly, extendedRegex, ignoreCase, invertMatch, lineNumber,
+                timeRange, limit, false);
+    }
+
+    /**
+     * @param patterns Patterns of the query. A line is selected if any of them matches.
+     * @param batch Whether the output lines are tagged with the index of the pattern that matches them.
+     * @throws IllegalArgumentException If there is no pattern, or a batch query is also inverted or limited.
+     */
+    public GrepCommand(List<String> patterns, boolean countOnly, boolean extendedRegex, boolean ignoreCase,
+                       boolean invertMatch, boolean lineNumber, TimeRange timeRange, long limit, boolean batch) {
+        this(patterns, countOnly, extendedRegex, ignoreCase, invertMatch, lineNumber, timeRange, limit, batch, null);
+    }
+
+    /**
+     * @param groupBy "level", "minute", "hour" or a regex to count the selected lines by group, or null to return the
+     *                lines.
+     * @throws IllegalArgumentException If there is no pattern, a batch query is also inverted or limited, or a group-by
+     * query is also a count, batch or limited query.
+     */
+    public GrepCommand(List<String> patterns, boolean countOnly, boolean extendedRegex, boolean ignoreCase,
+                       boolean invertMatch, boolean lineNumber, TimeRange timeRange, long limit, boolean batch,
+                       String groupBy) {
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("Missing pattern");
+        }
+        // A tagged line says which pattern matches it, which means nothing for -v. A limit of the lines cannot be
+        // split between the tags.
+        if (batch && invertMatch) {
+            throw new IllegalArgumentException("--batch cannot be used with -v");
+        }
+        if (batch && limit >= 0) {
+            throw new IllegalArgumentException("--batch cannot be used with a limit");
+        }
+        // The output of a group-by query is already a count for each group, and the limit of the client would cut the
+        // groups instead of the lines.
+        if (groupBy != null && (countOnly || batch || limit >= 0)) {
+            throw new IllegalArgumentException("--group-by cannot be used with -c, -m or --batch");
+        }
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+        this.countOnly = countOnly;
+        this.extendedRegex = extendedRegex;
+        this.ignoreCase = ignoreCase;
+        this.invertMatch = invertMatch;
+        this.lineNumber = lineNumber;
+        this.timeRange = timeRange;
+        this.limit = limit;
+        this.batch = batch;
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Parse the grep command received from client.
+     *
+     * @param inputLine The grep command, e.g. "grep -c keyword". Quotes are handled in the same way as the shell.
+     * @return The parsed command.
+     * @throws IllegalArgumentException If the command is not a supported grep command.
+     */
+    public static GrepCommand parse(String inputLine) {
+        List<String> tokens = tokenize(inputLine);
+        if (tokens.isEmpty() || !tokens.get(0).equals("grep")) {
+            throw new IllegalArgumentException("Not a grep command");
+        }
+        List<String> patterns = new ArrayList<>();
+        String pattern = null;
+        boolean countOnly = false;
+        boolean extendedRegex = false;
+        boolean ignoreCase = false;
+        boolean invertMatch = false;
+        boolean lineNumber = false;
+        Long since = null;
+        Long until = null;
+        long limit = -1;
+        boolean batch = false;
+        String groupBy = null;
+        boolean isOptionEnded = false;
+        for (int i = 1; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (!isOptionEnded && token.equals("--")) {
+                isOptionEnded = true;
+            } else if (!isOptionEnded && token.equals("--batch")) {
+                batch = true;
+            } else if (!isOptionEnded && token.startsWith("--")) {
+                // Long options take a value like "--since=value" or "--since value".
+                int separatorIndex = token.indexOf('=');
+                String name = separatorIndex < 0 ? token : token.substring(0, separatorIndex);
+                String value;
+                if (separatorIndex >= 0) {
+                    value = token.substring(separatorIndex + 1);
+                } else if (i + 1 < tokens.size()) {
+                    value = tokens.get(++i);
+                } else {
+                    throw new IllegalArgumentException("Missing value for " + name);
+                }
+                if (name.equals("--since")) {
+                    since = TimeRange.parseTimestamp(value, false);
+                } else if (name.equals("--until")) {
+                    until = TimeRange.parseTimestamp(value, true);
+                } else if (name.equals("--max-count") || name.equals("--limit")) {
+                    limit = parseLimit(value);
+                } else if (name.equals("--group-by")) {
+                    groupBy = value;
+                } else if (name.equals("--regexp")) {
+                    patterns.add(value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported option " + name);
+                }
+            } else if (!isOptionEnded && token.length() > 1 && token.startsWith("-")) {
+                for (int j = 1; j < token.length(); j++) {
+                    char option = token.charAt(j);
+                    if (option == 'm' || option == 'e') {
+                        // The value is the rest of the argument like "-m10", or the next argument.
+                        String value;
+                        if (j + 1 < token.length()) {
+                            value = token.substring(j + 1);
+                        } else if (i + 1 < tokens.size()) {
+                            value = tokens.get(++i);
+                        } else {
+                            throw new IllegalArgumentException("Missing value for -" + option);
+                        }
+                        if (option == 'm') {
+                            limit = parseLimit(value);
+                        } else {
+                            patterns.add(value);
+                        }
+                        break;
+                    } else if (option == 'c') {
+                        countOnly = true;
+                    } else if (option == 'E') {
+                        extendedRegex = true;
+                    } else if (option == 'i') {
+                        ignoreCase = true;
+                    } else if (option == 'v') {
+                        invertMatch = true;
+                    } else if (option == 'n') {
+                        lineNumber = true;
+                    } else {
+                        throw new IllegalArgumentException("Unsupported option -" + option);
+                    }
+                }
+            } else if (pattern == null && patterns.isEmpty()) {
+                // With -e, every argument would be a file like in grep.
+                pattern = token;
+            } else {
+                // The files to search are always ./logFiles/*.log, so we don't take any file arguments.
+                throw new IllegalArgumentException("Unexpected argument " + token);
+            }
+        }
+        if (pattern != null) {
+            if (!patterns.isEmpty()) {
+                throw new IllegalArgumentException("Unexpected argument " + pattern);
+            }
+            patterns.add(pattern);
+        }
+        TimeRange timeRange = null;
+        if (since != null || until != null) {
+            timeRange = new TimeRange(since == null ? 0 : since, until == null ? Long.MAX_VALUE : until);
+        }
+        return new GrepCommand(patterns, countOnly, extendedRegex, ignoreCase, invertMatch, lineNumber, timeRange,
+                limit, batch, groupBy);
+    }
+
+    private static long parseLimit(String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Same error as a negative number.
+        }
+        throw new IllegalArgumentException("Invalid max count " + value);
+    }
+
+    // Split the command by whitespaces. Single quotes, double quotes and backslashes work like they do in the shell
+    // so that patterns with spaces can be sent.
+    private static List<String> tokenize(String inputLine) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean hasToken = false;
+        char quote = 0;
+        for (int i = 0; i < inputLine.length(); i++) {
+            char c = inputLine.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else if (c == '\\' && i + 1 < inputLine.length() && "\"\\$`".indexOf(inputLine.charAt(i + 1)) >= 0) {
+                    current.append(inputLine.charAt(++i));
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                hasToken = true;
+            } else if (c == '\\' && i + 1 < inputLine.length()) {
+                current.append(inputLine.charAt(++i));
+                hasToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (hasToken) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    hasToken = false;
+                }
+            } else {
+                current.append(c);
+                hasToken = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unmatched quote " + quote);
+        }
+        if (hasToken) {
+            tokens.add(current.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * @return The command with the options in a fixed order, so the same query written in different ways gives the same
+     * string. Timestamps are in the parsed form.
+     */
+    public String getNormalizedQuery() {
+        StringBuilder options = new StringBuilder();
+        if (countOnly) {
+            options.append('c');
+        }
+        if (extendedRegex) {
+            options.append('E');
+        }
+        if (ignoreCase) {
+            options.append('i');
+        }
+        if (invertMatch) {
+            options.append('v');
+        }
+        if (lineNumber) {
+            options.append('n');
+        }
+        StringBuilder query = new StringBuilder("grep");
+        if (options.length() > 0) {
+            query.append(" -").append(options);
+        }
+        if (timeRange != null) {
+            query.append(" --since=").append(timeRange.getSince()).append(" --until=").append(timeRange.getUntil());
+        }
+        if (limit >= 0) {
+            query.append(" -m ").append(limit);
+        }
+        if (batch) {
+            query.append(" --batch");
+        }
+        if (groupBy != null) {
+            // The length tells where the group-by ends, since it can have any character.
+            query.append(" --group-by=").append(groupBy.length()).append(':').append(groupBy);
+        }
+        // The patterns are the rest of the string, so they need no quoting. A pattern never contains a line separator.
+        return query.append(" -- ").append(String.join("\n", patterns)).toString();
+    }
+
+    /**
+     * @return The command as a grep command that parse reads back to the same command. The patterns are quoted, so
+     * they can have any character but a line separator.
+     */
+    public String toCommandLine() {
+        StringBuilder query = new StringBuilder("grep");
+        String options = (countOnly ? "c" : "") + (extendedRegex ? "E" : "") + (ignoreCase ? "i" : "")
+                + (invertMatch ? "v" : "") + (lineNumber ? "n" : "");
+        if (!options.isEmpty()) {
+            query.append(" -").append(options);
+        }
+        // The bounds that were not given are left out, since they are not valid timestamps.
+        if (timeRange != null && timeRange.getSince() > 0) {
+            query.append(" --since=").append(timeRange.getSince());
+        }
+        if (timeRange != null && timeRange.getUntil() < Long.MAX_VALUE) {
+            query.append(" --until=").append(timeRange.getUntil());
+        }
+        if (limit >= 0) {
+            query.append(" -m ").append(limit);
+        }
+        if (batch) {
+            query.append(" --batch");
+        }
+        if (groupBy != null) {
+            query.append(" --group-by ").append(quote(groupBy));
+        }
+        for (String pattern : patterns) {
+            query.append(" -e ").append(quote(pattern));
+        }
+        return query.toString();
+    }
+
+    // Quote like the shell, so tokenize gives back the same text. A quote is closed, escaped and opened again.
+    private static String quote(String text) {
+        return "'" + text.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * @return The line to send to a server that supports the binary form, like "query AQEA...". It is a version, the
+     * options as bits, the limit, the time range, the group-by and the patterns, with the numbers as varints.
+     */
+    public String toWireLine() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(WIRE_VERSION);
+        int flags = (countOnly ? COUNT_ONLY : 0) | (extendedRegex ? EXTENDED_REGEX : 0)
+                | (ignoreCase ? IGNORE_CASE : 0) | (invertMatch ? INVERT_MATCH : 0) | (lineNumber ? LINE_NUMBER : 0)
+                | (batch ? BATCH : 0) | (timeRange != null ? HAS_TIME_RANGE : 0) | (groupBy != null ? HAS_GROUP_BY : 0);
+        bytes.write(flags);
+        // No limit is -1, so it is shifted to stay positive.
+        writeVarLong(bytes, limit + 1);
+        if (timeRange != null) {
+            writeVarLong(bytes, timeRange.getSince());
+            writeVarLong(bytes, timeRange.getUntil());
+        }
+        if (groupBy != null) {
+            writeString(bytes, groupBy);
+        }
+        writeVarLong(bytes, patterns.size());
+        for (String pattern : patterns) {
+            writeString(bytes, pattern);
+        }
+        return WIRE_COMMAND + " " + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @return true if the line received by the server is a command in the binary form.
+     */
+    public static boolean isWireLine(String line) {
+        return line.startsWith(WIRE_COMMAND + " ");
+    }
+
+    /**
+     * Read a command sent by the client, either in the binary form or as a grep command.
+     *
+     * @param line The line received by the server.
+     * @return The command.
+     * @throws IllegalArgumentException If it is not a valid command.
+     */
+    public static GrepCommand fromLine(String line) {
+        return isWireLine(line) ? fromWireLine(line) : parse(line);
+    }
+
+    /**
+     * @param line The line from toWireLine.
+     * @return The command.
+     * @throws IllegalArgumentException If the line is not a valid command in the binary form.
+     */
+    public static GrepCommand fromWireLine(String line) {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(line.substring(WIRE_COMMAND.length() + 1).trim()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid encoded query: " + e.getMessage());
+        }
+        try {
+            byte version = buffer.get();
+            if (version != WIRE_VERSION) {
+                throw new IllegalArgumentException("Unsupported query version " + version);
+            }
+            int flags = buffer.get() & 0xff;
+            long limit = readVarLong(buffer) - 1;
+            TimeRange timeRange = null;
+            if ((flags & HAS_TIME_RANGE) != 0) {
+                timeRange = new TimeRange(readVarLong(buffer), readVarLong(buffer));
+            }
+            String groupBy = (flags & HAS_GROUP_BY) != 0 ? readString(buffer) : null;
+            long patternCount = readVarLong(buffer);
+            // Each pattern takes at least a byte, which limits a broken count.
+            if (patternCount > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid encoded query: " + patternCount + " patterns");
+            }
+            List<String> patterns = new ArrayList<>();
+            for (long i = 0; i < patternCount; i++) {
+                patterns.add(readString(buffer));
+            }
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Invalid encoded query: " + buffer.remaining() + " bytes left");
+            }
+            return new GrepCommand(patterns, (flags & COUNT_ONLY) != 0, (flags & EXTENDED_REGEX) != 0,
+                    (flags & IGNORE_CASE) != 0, (flags & INVERT_MATCH) != 0, (flags & LINE_NUMBER) != 0, timeRange,
+                    limit, (flags & BATCH) != 0, groupBy);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Invalid encoded query: too short");
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream bytes, long value) {
+        while ((value & ~0x7fL) != 0) {
+            bytes.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid encoded query: varint too long");
+    }
+
+    private static void writeString(ByteArrayOutputStream bytes, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes, textBytes.length);
+        bytes.write(textBytes, 0, textBytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid encoded query: too short");
+        }
+        byte[] textBytes = new byte[(int) length];
+        buffer.get(textBytes);
+        return new String(textBytes, StandardCharsets.UTF_8);
+    }
+
+    // The first pattern. Use getPatterns when the query may have several.
+    public String getPattern() {
+        return patterns.get(0);
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    public boolean hasMultiplePatterns() {
+        return patterns.size() > 1;
+    }
+
+    public boolean isCountOnly() {
+        return countOnly;
+    }
+
+    public boolean isExtendedRegex() {
+        return extendedRegex;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    public boolean isInvertMatch() {
+        return invertMatch;
+    }
+
+    public boolean isLineNumber() {
+        return lineNumber;
+    }
+
+    // Null if the query has no time range.
+    public TimeRange getTimeRange() {
+        return timeRange;
+    }
+
+    // Maximum number of selected lines, or -1 if there is no limit.
+    public long getLimit() {
+        return limit;
+    }
+
+    // Whether the output lines are tagged with the index of the pattern, like "0:./logFiles/vm1.log:...".
+    public boolean isBatch() {
+        return batch;
+    }
+
+    // "level", "minute", "hour" or a regex to group the lines by, or null if the lines are not grouped.
+    public String getGroupBy() {
+        return groupBy;
+    }
+}
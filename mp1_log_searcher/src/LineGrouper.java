@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Find the group of a line for "grep --group-by". A line can be grouped by the level field of the cluster loggers, like
+ * "SEVERE" in "[2022-09-24 17:46:19] [SEVERE ] ...", by the minute or the hour of its timestamp, or by a regex. For a
+ * regex, the group is the text of the first capture group, or the whole match if the regex has no group.
+ *
+ * A grouper is used by one thread at a time.
+ */
+public class LineGrouper {
+    public static final String LEVEL = "level";
+    public static final String MINUTE = "minute";
+    public static final String HOUR = "hour";
+    // Group of the lines that don't have the field or don't match the regex.
+    public static final String NO_GROUP = "";
+    // Group of the lines whose group would go over the maximum number of groups of a server.
+    public static final String OTHER_GROUPS = "(other groups)";
+
+    private static final int TIMESTAMP_LENGTH = "[yyyy-MM-dd HH:mm:ss]".length();
+
+    private final String field;
+    // Null unless the lines are grouped by a regex.
+    private final Matcher matcher;
+    private final ByteCharSequence line = new ByteCharSequence();
+
+    private LineGrouper(String field, Pattern pattern) {
+        this.field = field;
+        this.matcher = pattern == null ? null : pattern.matcher(line);
+    }
+
+    /**
+     * @param groupBy "level", "minute", "hour", or a regex in the grep syntax.
+     * @param extendedRegex Whether the regex is an extended regex (-E) instead of a basic regex.
+     * @param ignoreCase Whether the case is ignored by the regex (-i).
+     * @throws java.util.regex.PatternSyntaxException If it is not a valid regex.
+     */
+    public static LineGrouper create(String groupBy, boolean extendedRegex, boolean ignoreCase) {
+        if (groupBy.equals(LEVEL) || groupBy.equals(MINUTE) || groupBy.equals(HOUR)) {
+            return new LineGrouper(groupBy, null);
+        }
+        // Lines are read as ISO-8859-1, so the regex is read in the same way like in LineMatcher.
+        String bytePattern = new String(groupBy.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        return new LineGrouper(null, Pattern.compile(LineMatcher.toJavaRegex(bytePattern, extendedRegex),
+                ignoreCase ? Pattern.CASE_INSENSITIVE : 0));
+    }
+
+    /**
+     * @param buffer Buffer that holds the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line, not including the line separator.
+     * @return The group of the line, or NO_GROUP if the line has no group.
+     */
+    public String getGroup(ByteBuffer buffer, int start, int end) {
+        if (matcher != null) {
+            line.reset(buffer, start, end);
+            if (!matcher.reset(line).find()) {
+                return NO_GROUP;
+            }
+            int group = matcher.groupCount() > 0 ? 1 : 0;
+            if (matcher.start(group) < 0) {
+                // The capture group is in a branch that didn't match.
+                return NO_GROUP;
+            }
+            return toString(buffer, start + matcher.start(group), start + matcher.end(group));
+        }
+        if (field.equals(LEVEL)) {
+            return getLevel(buffer, start, end);
+        }
+        long timestamp = TimeRange.parseLineTimestamp(buffer, start, end);
+        if (timestamp < 0) {
+            return NO_GROUP;
+        }
+        // The timestamp is at the beginning of the line like "[yyyy-MM-dd HH:mm:ss]", so the minute or the hour is a
+        // prefix of it.
+        int length = field.equals(MINUTE) ? "yyyy-MM-dd HH:mm".length() : "yyyy-MM-dd HH".length();
+        return toString(buffer, start + 1, start + 1 + length);
+    }
+
+    // The level is the field in brackets after the timestamp, without the padding.
+    private static String getLevel(ByteBuffer buffer, int start, int end) {
+        int i = TimeRange.parseLineTimestamp(buffer, start, end) >= 0 ? start + TIMESTAMP_LENGTH : start;
+        while (i < end && buffer.get(i) == ' ') {
+            i++;
+        }
+        if (i >= end || buffer.get(i) != '[') {
+            return NO_GROUP;
+        }
+        int levelStart = i + 1;
+        int levelEnd = levelStart;
+        while (levelEnd < end && buffer.get(levelEnd) != ']') {
+            levelEnd++;
+        }
+        if (levelEnd >= end) {
+            return NO_GROUP;
+        }
+        while (levelEnd > levelStart && buffer.get(levelEnd - 1) == ' ') {
+            levelEnd--;
+        }
+        return toString(buffer, levelStart, levelEnd);
+    }
+
+    private static String toString(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
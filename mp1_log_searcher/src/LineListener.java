@@ -0,0 +1,15 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Callback for the lines selected by a LogScanner. The buffer is only valid during the call, so the line needs to be
+ * copied if it is kept.
+ */
+public interface LineListener {
+    /**
+     * @param lineNumber Line number in the file starting from 1, or -1 if line numbers are not tracked.
+     * @param buffer Buffer that holds the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line, not including the line separator.
+     */
+    void onLine(long lineNumber, ByteBuffer buffer, int start, int end);
+}
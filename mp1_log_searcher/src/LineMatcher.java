@@ -0,0 +1,267 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Match a single line of a log file. The line is given as a byte range of a buffer, so we don't need to create a String
+ * for each line. Matchers are compiled once and cached, since the same query is usually sent many times.
+ */
+public abstract class LineMatcher {
+    private static final int MAX_CACHED_MATCHERS = 256;
+    // The least recently used matcher is removed when the cache is full, so the matchers of the frequent queries stay.
+    private static final Map<String, LineMatcher> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, LineMatcher>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LineMatcher> eldest) {
+                    return size() > MAX_CACHED_MATCHERS;
+                }
+            });
+    private static final LongAdder CACHE_HITS = new LongAdder();
+    private static final LongAdder CACHE_MISSES = new LongAdder();
+
+    // Characters that have a special meaning in a basic regex. The extended regex has a few more.
+    private static final String BASIC_REGEX_SPECIAL_CHARACTERS = "\\.[]*^$";
+    private static final String EXTENDED_REGEX_SPECIAL_CHARACTERS = BASIC_REGEX_SPECIAL_CHARACTERS + "+?(){}|";
+
+    /**
+     * Check whether the line contains the pattern.
+     *
+     * @param buffer Buffer that holds the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line, not including the line separator.
+     * @return true if the line matches the pattern.
+     */
+    public abstract boolean matches(ByteBuffer buffer, int start, int end);
+
+    /**
+     * Find the first match in a range that may contain multiple lines. By default, each line is checked by matches,
+     * and a literal matcher searches the whole range at once instead.
+     *
+     * @param buffer Buffer that holds the lines.
+     * @param start Index of the first byte of the range.
+     * @param end Index after the last byte of the range.
+     * @return An index in the first line that matches, or -1 if there is no match. A literal matcher returns the index
+     *         where the match starts, and the default returns the start of the line.
+     */
+    public int find(ByteBuffer buffer, int start, int end) {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (matches(buffer, lineStart, lineEnd)) {
+                return lineStart;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if find searches the whole range faster than checking each line, because the pattern is a literal
+     *         that can never match across lines.
+     */
+    public boolean isLiteral() {
+        return false;
+    }
+
+    /**
+     * Get a matcher for the grep pattern. Matchers are cached by the pattern and the options.
+     *
+     * @param pattern Pattern in the grep syntax.
+     * @param extendedRegex Whether the pattern is an extended regex (-E) instead of a basic regex.
+     * @param ignoreCase Whether the case is ignored (-i).
+     * @return A matcher that can be shared by multiple threads.
+     * @throws java.util.regex.PatternSyntaxException If the pattern is not a valid regex.
+     */
+    public static LineMatcher compile(String pattern, boolean extendedRegex, boolean ignoreCase) {
+        String key = (extendedRegex ? "E" : "G") + (ignoreCase ? "i" : "-") + pattern;
+        LineMatcher matcher = CACHE.get(key);
+        if (matcher == null) {
+            CACHE_MISSES.increment();
+            // Two threads may compile the same pattern, which is fine since the matchers are the same.
+            matcher = create(pattern, extendedRegex, ignoreCase);
+            CACHE.put(key, matcher);
+        } else {
+            CACHE_HITS.increment();
+        }
+        return matcher;
+    }
+
+    /**
+     * Get a matcher that selects the lines matching any of the patterns, like grep with several "-e" options. The
+     * literal patterns are searched together by one Aho-Corasick automaton.
+     *
+     * @param patterns Patterns in the grep syntax.
+     * @param extendedRegex Whether the patterns are extended regexes (-E) instead of basic regexes.
+     * @param ignoreCase Whether the case is ignored (-i).
+     * @return A matcher that can be shared by multiple threads.
+     * @throws java.util.regex.PatternSyntaxException If a pattern is not a valid regex.
+     */
+    public static PatternSetMatcher compile(List<String> patterns, boolean extendedRegex, boolean ignoreCase) {
+        // A pattern never contains a line separator, so it can separate the patterns in the key.
+        String key = (extendedRegex ? "E" : "G") + (ignoreCase ? "i" : "-") + "\n" + String.join("\n", patterns);
+        LineMatcher matcher = CACHE.get(key);
+        if (matcher == null) {
+            CACHE_MISSES.increment();
+            matcher = new PatternSetMatcher(patterns, extendedRegex, ignoreCase);
+            CACHE.put(key, matcher);
+        } else {
+            CACHE_HITS.increment();
+        }
+        return (PatternSetMatcher) matcher;
+    }
+
+    /**
+     * @return Number of compile calls that found the matcher in the cache, since the start of the process.
+     */
+    public static long getCacheHits() {
+        return CACHE_HITS.sum();
+    }
+
+    /**
+     * @return Number of compile calls that had to compile the matcher, including the invalid patterns.
+     */
+    public static long getCacheMisses() {
+        return CACHE_MISSES.sum();
+    }
+
+    private static LineMatcher create(String pattern, boolean extendedRegex, boolean ignoreCase) {
+        boolean isLiteral = isLiteral(pattern, extendedRegex);
+        if (isLiteral && !ignoreCase) {
+            return new LiteralLineMatcher(pattern.getBytes(StandardCharsets.UTF_8));
+        }
+        return createRegex(pattern, extendedRegex, ignoreCase);
+    }
+
+    /**
+     * @return true if the pattern has no character with a special meaning, so it can be compared as bytes.
+     */
+    static boolean isLiteral(String pattern, boolean extendedRegex) {
+        String specialCharacters = extendedRegex ? EXTENDED_REGEX_SPECIAL_CHARACTERS : BASIC_REGEX_SPECIAL_CHARACTERS;
+        for (char c : pattern.toCharArray()) {
+            if (specialCharacters.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The text matched by the pattern if it is a literal after removing the backslashes before the special
+     * characters, like "10\.0\.0\.1". Otherwise, null.
+     */
+    static String toLiteral(String pattern, boolean extendedRegex) {
+        String specialCharacters = extendedRegex ? EXTENDED_REGEX_SPECIAL_CHARACTERS : BASIC_REGEX_SPECIAL_CHARACTERS;
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length() && specialCharacters.indexOf(pattern.charAt(i + 1)) >= 0) {
+                literal.append(pattern.charAt(++i));
+            } else if (specialCharacters.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    static RegexLineMatcher createRegex(String pattern, boolean extendedRegex, boolean ignoreCase) {
+        // Lines are read as ISO-8859-1 so each byte is one char. Read the pattern in the same way so that non-ASCII
+        // characters in the pattern match their UTF-8 bytes.
+        String bytePattern = new String(pattern.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        String regex = isLiteral(pattern, extendedRegex)
+                ? Pattern.quote(bytePattern) : toJavaRegex(bytePattern, extendedRegex);
+        return new RegexLineMatcher(Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE : 0));
+    }
+
+    // Translate a POSIX regex used by grep to the Java syntax. In a basic regex, "+?|(){}" are literals and become
+    // operators when escaped. Bracket expressions need to be translated since Java treats "[", "&&" and "\" in them
+    // differently.
+    static String toJavaRegex(String pattern, boolean extendedRegex) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '[') {
+                i = appendBracketExpression(pattern, i, sb);
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                char next = pattern.charAt(i + 1);
+                if (next == '<' || next == '>') {
+                    sb.append("\\b");
+                } else if (!extendedRegex && "+?|(){}".indexOf(next) >= 0) {
+                    sb.append(next);
+                } else {
+                    sb.append(c).append(next);
+                }
+                i += 2;
+            } else {
+                if (!extendedRegex && "+?|(){}".indexOf(c) >= 0) {
+                    sb.append('\\');
+                }
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Append the bracket expression starting at the index and return the index after it.
+    private static int appendBracketExpression(String pattern, int start, StringBuilder sb) {
+        int i = start + 1;
+        StringBuilder expression = new StringBuilder("[");
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            expression.append('^');
+            i++;
+        }
+        // A "]" right after the opening bracket is a literal.
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            expression.append("\\]");
+            i++;
+        }
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == ']') {
+                sb.append(expression).append(']');
+                return i + 1;
+            }
+            if (c == '[' && i + 1 < pattern.length() && pattern.charAt(i + 1) == ':') {
+                int classEnd = pattern.indexOf(":]", i + 2);
+                if (classEnd > 0) {
+                    expression.append(toJavaCharacterClass(pattern.substring(i + 2, classEnd)));
+                    i = classEnd + 2;
+                    continue;
+                }
+            }
+            if (c == '[' || c == '\\' || c == '&') {
+                expression.append('\\');
+            }
+            expression.append(c);
+            i++;
+        }
+        // Not closed. Keep it as it is and let Pattern report the error.
+        sb.append(pattern.substring(start));
+        return pattern.length();
+    }
+
+    private static String toJavaCharacterClass(String posixClass) {
+        if (posixClass.equals("xdigit")) {
+            return "\\p{XDigit}";
+        }
+        String[] supportedClasses = {"alpha", "digit", "alnum", "upper", "lower", "space", "punct", "blank", "cntrl",
+                "print", "graph"};
+        for (String supportedClass : supportedClasses) {
+            if (supportedClass.equals(posixClass)) {
+                return "\\p{" + Character.toUpperCase(posixClass.charAt(0)) + posixClass.substring(1) + "}";
+            }
+        }
+        throw new IllegalArgumentException("Unsupported character class [:" + posixClass + ":]");
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Matcher for a pattern without any special character. It compares the bytes directly using the Boyer-Moore-Horspool
+ * algorithm, which skips most of the bytes for a long pattern.
+ */
+public class LiteralLineMatcher extends LineMatcher {
+    private final byte[] needle;
+    private final int[] skipTable = new int[256];
+
+    public LiteralLineMatcher(byte[] needle) {
+        this.needle = needle;
+        Arrays.fill(skipTable, Math.max(needle.length, 1));
+        for (int i = 0; i < needle.length - 1; i++) {
+            skipTable[needle[i] & 0xff] = needle.length - 1 - i;
+        }
+    }
+
+    @Override
+    public boolean matches(ByteBuffer buffer, int start, int end) {
+        return find(buffer, start, end) >= 0;
+    }
+
+    @Override
+    public int find(ByteBuffer buffer, int start, int end) {
+        if (needle.length == 0) {
+            // An empty pattern matches every line.
+            return start;
+        }
+        int last = needle.length - 1;
+        byte lastByte = needle[last];
+        int i = start;
+        while (i + last < end) {
+            byte b = buffer.get(i + last);
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && buffer.get(i + j) == needle[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skipTable[b & 0xff];
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isLiteral() {
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact the closed log files into LogSegment files in the background. A log file is closed when it is not the newest
+ * log file in the directory and has not been modified for an hour, so the file that is still written is always
+ * searched as plain text. The log file is only deleted after its segment is written and checked, and if the file did
+ * not change in the meantime.
+ *
+ * Usage: LogCompactor compact logFile | restore segmentFile
+ */
+public class LogCompactor {
+    // A log file that was modified recently may still be written.
+    private static final long MIN_CLOSED_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long INTERVAL_MINUTES = 10;
+
+    private final File logDirectory;
+    private final LogIndexManager indexManager;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param logDirectory Directory of the log files.
+     * @param indexManager The indexes of a log file are removed when it is compacted. It can be null.
+     */
+    public LogCompactor(File logDirectory, LogIndexManager indexManager) {
+        this.logDirectory = logDirectory;
+        this.indexManager = indexManager;
+    }
+
+    /**
+     * Compact the closed log files now and then every 10 minutes.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compactClosedFiles();
+            } catch (RuntimeException e) {
+                // An exception would cancel the next runs.
+                System.out.println("Failed to compact the log files: " + e.getMessage());
+            }
+        }, 0, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Compact each closed log file that has no segment yet.
+     *
+     * @return Number of compacted files.
+     */
+    public int compactClosedFiles() {
+        List<File> logFiles = QueryHandler.listLogFiles(logDirectory);
+        // The newest file is the one that is written.
+        File newestFile = null;
+        for (File logFile : logFiles) {
+            if (logFile.isFile() && (newestFile == null || logFile.lastModified() > newestFile.lastModified())) {
+                newestFile = logFile;
+            }
+        }
+        int compactedCount = 0;
+        long now = System.currentTimeMillis();
+        for (File logFile : logFiles) {
+            if (!logFile.isFile() || logFile.equals(newestFile) || now - logFile.lastModified() < MIN_CLOSED_MILLIS) {
+                continue;
+            }
+            try {
+                compact(logFile);
+                compactedCount++;
+            } catch (IOException e) {
+                System.out.println("Failed to compact " + logFile + ": " + e.getMessage());
+            }
+        }
+        return compactedCount;
+    }
+
+    /**
+     * Compact a log file into its segment file and delete the log file.
+     *
+     * @throws IOException If the segment cannot be written, or the log file changed.
+     */
+    public void compact(File logFile) throws IOException {
+        long start = System.currentTimeMillis();
+        long length = logFile.length();
+        long lastModified = logFile.lastModified();
+        LogSegment segment = LogSegment.write(logFile, LogSegment.getSegmentFile(logFile));
+        // A line appended after the segment was written would be lost, so the file is kept if it changed.
+        if (logFile.length() != length || logFile.lastModified() != lastModified) {
+            Files.delete(segment.getSegmentFile().toPath());
+            throw new IOException(logFile + " changed while it was compacted");
+        }
+        Files.delete(logFile.toPath());
+        if (indexManager != null) {
+            indexManager.removeIndexes(logFile);
+        }
+        System.out.println("Compacted " + logFile + " from " + length + " to " + segment.getSegmentFile().length()
+                + " bytes in " + segment.getBlockCount() + " blocks in " + (System.currentTimeMillis() - start)
+                + " milliseconds");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !args[0].equals("compact") && !args[0].equals("restore")) {
+            System.out.println("Usage: LogCompactor compact logFile | restore segmentFile");
+            return;
+        }
+        File file = new File(args[1]);
+        if (args[0].equals("compact")) {
+            new LogCompactor(file.getAbsoluteFile().getParentFile(), null).compact(file);
+        } else {
+            LogSegment.open(file).restore(LogSegment.getLogFile(file));
+            Files.delete(file.toPath());
+            System.out.println("Restored " + LogSegment.getLogFile(file));
+        }
+    }
+}
@@ -1,13 +1,30 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Main class as a client. This class will handle the input
  * command and start multiple clients that connect to all the servers.
+ * The responses are compressed unless it is started with "--no-compression".
+ * "follow grep ..." prints the new matching lines of all the servers as one
+ * stream until Enter is pressed. "--deadline <milliseconds>" sets how long each
+ * server has to respond before the result is returned without it.
+ * "--servers host1[:port],host2..." or "--servers-file <file>" with one
+ * "host[:port]" on each line replace the ten VMs, so the servers can run on
+ * other hosts and ports. "stats" prints the counters of each server, like the
+ * latency percentiles of the queries and the hit ratio of the caches.
  */
 public class LogFinderMain {
-    public static void main(String[] args) {
+    // Width of the longest bar of a group in the histogram.
+    private static final int HISTOGRAM_WIDTH = 40;
+
+    public static void main(String[] args) throws IOException {
         // List of all the VMs
         String[] ips = {
                 "fa22-cs425-0501.cs.illinois.edu",
@@ -22,50 +39,82 @@ public class LogFinderMain {
                 "fa22-cs425-0510.cs.illinois.edu"
         };
 
+        int compressionLevel = FrameCompression.DEFAULT_LEVEL;
+        long deadlineMillis = QueryCoordinator.DEFAULT_DEADLINE_MILLIS;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--no-compression")) {
+                compressionLevel = FrameCompression.NO_COMPRESSION;
+            } else if (args[i].equals("--deadline") && i + 1 < args.length) {
+                deadlineMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--servers") && i + 1 < args.length) {
+                ips = args[++i].split(",");
+            } else if (args[i].equals("--servers-file") && i + 1 < args.length) {
+                ips = readServers(new File(args[++i]));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // The servers that are off are connected in the background by the coordinator.
         List<SocketClient> clients = new ArrayList<>();
         for (String ip : ips) {
-            SocketClient client = new SocketClient(ip);
-            boolean isSucceeded = client.start();
-            if (isSucceeded) {
-                clients.add(client);
-            }
+            SocketClient client = SocketClient.forAddress(ip.trim(), compressionLevel);
+            client.start();
+            clients.add(client);
         }
 
+        QueryCoordinator coordinator = new QueryCoordinator(clients);
+        coordinator.setDeadlineMillis(deadlineMillis);
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.print("$ ");
             String query = scanner.nextLine();
-            if (query.startsWith("grep ")) {
-                long startTime = System.currentTimeMillis();
-                List<String> results = new ArrayList<>();
-                int totalCount = 0;
-                // Send command to each client and process server response.
-                for (SocketClient client : clients) {
-                    List<String> singleClientResult = client.sendMessage(query);
-                    results.addAll(singleClientResult);
-                    if (shouldReturnCount(query)) {
-                        // When the user wants the count, we will also need to calculate the total count.
-                        // The line will have the format "fileLocation:lineCount"
-                        for (String res: singleClientResult) {
-                            String[] splitedResponse = res.split(":");
-                            try {
-                                int singleCount = Integer.parseInt(splitedResponse[splitedResponse.length - 1]);
-                                totalCount += singleCount;
-                            } catch (Exception e) {
-                                // In case the calculation failed, we will choose to not add the total count.
-                            }
-                        }
+            if (query.startsWith(LogTailer.COMMAND + " grep ")) {
+                // The lines of all the servers are printed as they arrive, until Enter is pressed.
+                CompletableFuture<QueryResult> result = coordinator.follow(
+                        query.substring(LogTailer.COMMAND.length() + 1), (serverIp, batch) -> {
+                    for (String logs : batch) {
+                        System.out.println(logs);
                     }
+                });
+                System.out.println("Following the new lines. Press Enter to stop.");
+                scanner.nextLine();
+                coordinator.stopFollowing();
+                printResponses(result.join());
+            } else if (query.startsWith("grep ")) {
+                // Send command to all the servers at the same time. Lines are printed as soon as they arrive. The
+                // counts of a group-by query are only printed when they are merged.
+                boolean isGroupQuery = QueryCoordinator.getGroupBy(query) != null;
+                QueryResult result = coordinator.stream(query, (serverIp, batch) -> {
+                    if (isGroupQuery) {
+                        return;
+                    }
+                    for (String logs : batch) {
+                        System.out.println(logs);
+                    }
+                }).join();
+                if (result.isGroupQuery()) {
+                    printHistogram(result.getGroupCounts());
                 }
-                for (String logs : results) {
-                    System.out.println(logs);
+                if (result.isCountQuery()) {
+                    System.out.println("Total number for the matching lines is: " + result.getTotalCount());
                 }
-                if (shouldReturnCount(query)) {
-                    System.out.println("Total number for the matching lines is: " + totalCount);
+                if (result.isBatchQuery()) {
+                    List<String> patterns = result.getBatchPatterns();
+                    for (int i = 0; i < patterns.size(); i++) {
+                        System.out.println("Pattern " + i + " (" + patterns.get(i) + ") matches "
+                                + result.getPatternCount(i) + " lines");
+                    }
                 }
-                long finishTime = System.currentTimeMillis();
-                long timeElapsed = finishTime - startTime;
-                System.out.println("Total time used for this command is " + timeElapsed + " milliseconds");
+                printResponses(result);
+            } else if (query.equals(ServerMetrics.COMMAND)) {
+                // Each line starts with the server, since the lines of the servers can be mixed.
+                QueryResult result = coordinator.stream(query, (serverIp, batch) -> {
+                    for (String line : batch) {
+                        System.out.println(serverIp + " " + line);
+                    }
+                }).join();
+                printResponses(result);
             } else {
                 System.out.println("Unexpected Query");
             }
@@ -74,11 +123,65 @@ public class LogFinderMain {
         // scanner.close();
     }
 
-    private static boolean shouldReturnCount(String message) {
-        String[] splitMessage = message.split(" ");
-        if (splitMessage.length >= 2) {
-            return splitMessage[1].equals("-c") || splitMessage[1].equals("-Ec");
+    /**
+     * @param serversFile File with one server like "host" or "host:port" on each line. Empty lines and the lines
+     *                    starting with "#" are skipped.
+     * @return The servers in the file.
+     */
+    static String[] readServers(File serversFile) throws IOException {
+        List<String> servers = new ArrayList<>();
+        for (String line : Files.readAllLines(serversFile.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                servers.add(line);
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No server in " + serversFile);
+        }
+        return servers.toArray(new String[0]);
+    }
+
+    // Print how each server responded and the total time.
+    private static void printResponses(QueryResult result) {
+        for (ServerResponse response : result.getResponses()) {
+            if (response.isTimedOut()) {
+                System.out.println(response.getServerIp() + " missed its deadline after " + response.getLatencyMillis()
+                        + " milliseconds, and only " + response.getLineCount() + " lines were received");
+            } else if (response.isCancelled()) {
+                System.out.println(response.getServerIp() + " was stopped after " + response.getLineCount()
+                        + " lines because the limit of " + result.getLimit() + " was reached");
+            } else if (response.isFailed()) {
+                System.out.println(response.getServerIp() + " failed after " + response.getLatencyMillis()
+                        + " milliseconds: " + response.getErrorMessage());
+            } else {
+                System.out.println(response.getServerIp() + " returned " + response.getLineCount()
+                        + " lines in " + response.getLatencyMillis() + " milliseconds");
+            }
+        }
+        if (result.isPartial()) {
+            System.out.println("The result is partial. Servers that failed or missed their deadline: "
+                    + result.getMissingServers());
+        }
+        System.out.println("Total time used for this command is " + result.getTotalTimeMillis() + " milliseconds");
+    }
+
+    // Print the count of each group with a bar that is scaled to the largest count.
+    private static void printHistogram(Map<String, Long> groupCounts) {
+        long maxCount = 1;
+        int maxGroupLength = "(no group)".length();
+        for (Map.Entry<String, Long> group : groupCounts.entrySet()) {
+            maxCount = Math.max(maxCount, group.getValue());
+            maxGroupLength = Math.max(maxGroupLength, group.getKey().length());
+        }
+        for (Map.Entry<String, Long> group : groupCounts.entrySet()) {
+            String name = group.getKey().equals(LineGrouper.NO_GROUP) ? "(no group)" : group.getKey();
+            StringBuilder bar = new StringBuilder();
+            for (long i = 0; i < Math.round((double) group.getValue() * HISTOGRAM_WIDTH / maxCount); i++) {
+                bar.append('#');
+            }
+            System.out.println(String.format("%-" + maxGroupLength + "s %12d %s", name, group.getValue(), bar));
         }
-        return false;
+        System.out.println("Number of groups: " + groupCounts.size());
     }
 }
@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keep the trigram and timestamp indexes of the log files. Indexes are built in a background thread, so a query never
+ * waits for an index. Until the indexes of a file are ready, the whole file is scanned.
+ */
+public class LogIndexManager {
+    // Small files are fast enough to scan.
+    private static final long MIN_INDEXED_FILE_SIZE = 4L * TrigramIndex.BLOCK_SIZE;
+    // Update the indexes when this much has been appended to the file after the indexes were built.
+    private static final long MAX_UNINDEXED_LENGTH = 4L * TrigramIndex.BLOCK_SIZE;
+    private static final String TRIGRAM_INDEX_EXTENSION = ".tri";
+    private static final String TIMESTAMP_INDEX_EXTENSION = ".ts";
+
+    private final File indexDirectory;
+    private final Map<String, TrigramIndex> trigramIndexes = new ConcurrentHashMap<>();
+    private final Map<String, TimestampIndex> timestampIndexes = new ConcurrentHashMap<>();
+    private final Set<String> filesBeingIndexed = ConcurrentHashMap.newKeySet();
+    private final ExecutorService indexBuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-index-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param indexDirectory Directory for the index files. It is created when the first index is built.
+     */
+    public LogIndexManager(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Plan the ranges of a log file to scan. Indexes are built or updated in the background if they are needed.
+     *
+     * @param logFile The log file.
+     * @param anyOfTrigramSets Trigrams from TrigramQueryPlanner, or null if the query cannot use the trigram index.
+     * @param timeRange Time range of the query, or null if there is none.
+     * @return The ranges to scan.
+     */
+    public ScanPlan plan(File logFile, List<int[]> anyOfTrigramSets, TimeRange timeRange) {
+        long fileLength = logFile.length();
+        if (fileLength < MIN_INDEXED_FILE_SIZE) {
+            return ScanPlan.wholeFile();
+        }
+        TrigramIndex trigramIndex = getValidTrigramIndex(logFile);
+        TimestampIndex timestampIndex = getValidTimestampIndex(logFile);
+        if (trigramIndex == null || fileLength - trigramIndex.getIndexedLength() > MAX_UNINDEXED_LENGTH
+                || timestampIndex == null || fileLength - timestampIndex.getIndexedLength() > MAX_UNINDEXED_LENGTH) {
+            scheduleBuild(logFile, trigramIndex, timestampIndex);
+        }
+
+        ScanPlan plan = ScanPlan.wholeFile();
+        if (trigramIndex != null && anyOfTrigramSets != null) {
+            plan = trigramIndex.plan(anyOfTrigramSets);
+        }
+        if (timestampIndex != null && timeRange != null) {
+            plan = timestampIndex.restrict(plan, timeRange);
+        }
+        return plan;
+    }
+
+    private TrigramIndex getValidTrigramIndex(File logFile) {
+        String key = logFile.getPath();
+        try {
+            TrigramIndex index = trigramIndexes.get(key);
+            if (index == null) {
+                File indexFile = getIndexFile(logFile, TRIGRAM_INDEX_EXTENSION);
+                if (!indexFile.exists()) {
+                    return null;
+                }
+                index = TrigramIndex.load(indexFile);
+                trigramIndexes.put(key, index);
+            }
+            if (index.isValidFor(logFile)) {
+                return index;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to load the trigram index of " + key + ": " + e.getMessage());
+        }
+        // The file was replaced or the index is broken. It will be built again.
+        trigramIndexes.remove(key);
+        return null;
+    }
+
+    private TimestampIndex getValidTimestampIndex(File logFile) {
+        String key = logFile.getPath();
+        try {
+            TimestampIndex index = timestampIndexes.get(key);
+            if (index == null) {
+                File indexFile = getIndexFile(logFile, TIMESTAMP_INDEX_EXTENSION);
+                if (!indexFile.exists()) {
+                    return null;
+                }
+                index = TimestampIndex.load(indexFile);
+                timestampIndexes.put(key, index);
+            }
+            if (index.isValidFor(logFile)) {
+                return index;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to load the timestamp index of " + key + ": " + e.getMessage());
+        }
+        timestampIndexes.remove(key);
+        return null;
+    }
+
+    private void scheduleBuild(File logFile, TrigramIndex previousTrigramIndex,
+                               TimestampIndex previousTimestampIndex) {
+        String key = logFile.getPath();
+        if (!filesBeingIndexed.add(key)) {
+            return;
+        }
+        indexBuilder.submit(() -> {
+            try {
+                if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+                    throw new IOException("Failed to create " + indexDirectory);
+                }
+                long start = System.currentTimeMillis();
+                File trigramIndexFile = getIndexFile(logFile, TRIGRAM_INDEX_EXTENSION);
+                TrigramIndex.build(logFile, trigramIndexFile, previousTrigramIndex);
+                trigramIndexes.put(key, TrigramIndex.load(trigramIndexFile));
+                File timestampIndexFile = getIndexFile(logFile, TIMESTAMP_INDEX_EXTENSION);
+                TimestampIndex.build(logFile, timestampIndexFile, previousTimestampIndex);
+                timestampIndexes.put(key, TimestampIndex.load(timestampIndexFile));
+                System.out.println("Indexed " + key + " in " + (System.currentTimeMillis() - start) + " milliseconds");
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to index " + key + ": " + e.getMessage());
+            } finally {
+                filesBeingIndexed.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Remove the indexes of a log file that was compacted into a LogSegment, which has its own filters. It is done by
+     * the builder, so it does not race with a build of the same file.
+     */
+    public void removeIndexes(File logFile) {
+        String key = logFile.getPath();
+        indexBuilder.submit(() -> {
+            trigramIndexes.remove(key);
+            timestampIndexes.remove(key);
+            try {
+                Files.deleteIfExists(getIndexFile(logFile, TRIGRAM_INDEX_EXTENSION).toPath());
+                Files.deleteIfExists(getIndexFile(logFile, TIMESTAMP_INDEX_EXTENSION).toPath());
+            } catch (IOException e) {
+                System.out.println("Failed to remove the indexes of " + key + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Wait until the indexes that are already scheduled are built.
+     */
+    public void awaitBuilds() throws InterruptedException {
+        try {
+            // The builder runs the tasks in order, so this task is run after the scheduled builds.
+            indexBuilder.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File getIndexFile(File logFile, String extension) {
+        return new File(indexDirectory, logFile.getName() + extension);
+    }
+}
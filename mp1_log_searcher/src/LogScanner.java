@@ -0,0 +1,410 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scan a log file for the lines selected by a matcher. The file is memory-mapped region by region, and each region
+ * ends at a line separator so that no line is split between two regions. Only the ranges in a ScanPlan are scanned.
+ * In the parallel mode, a large region is split into chunks that are scanned by the common fork-join pool, and the
+ * results are still given in the order of the lines.
+ */
+public class LogScanner {
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+    private static final byte LINE_SEPARATOR = '\n';
+    // Size of a chunk scanned by one task in the parallel mode. Smaller regions are scanned by the calling thread.
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final LineMatcher matcher;
+    private final boolean invertMatch;
+    private final boolean trackLineNumbers;
+    private final TimeRange timeRange;
+    private final boolean parallel;
+    // Bytes of the blocks given to scanBlock. Only the thread calling scan changes it.
+    private long scannedBytes = 0;
+
+    /**
+     * @param matcher Matcher for the pattern.
+     * @param invertMatch Select the lines that don't match, like grep -v.
+     * @param trackLineNumbers Whether to count the line numbers for the selected lines, like grep -n.
+     */
+    public LogScanner(LineMatcher matcher, boolean invertMatch, boolean trackLineNumbers) {
+        this(matcher, invertMatch, trackLineNumbers, null);
+    }
+
+    /**
+     * @param matcher Matcher for the pattern.
+     * @param invertMatch Select the lines that don't match, like grep -v.
+     * @param trackLineNumbers Whether to count the line numbers for the selected lines, like grep -n.
+     * @param timeRange Only select the lines in the time range. A line without a timestamp has the timestamp of the
+     *                  line before it, and is not selected if there is no such line in the scanned range. It can be
+     *                  null.
+     */
+    public LogScanner(LineMatcher matcher, boolean invertMatch, boolean trackLineNumbers, TimeRange timeRange) {
+        this(matcher, invertMatch, trackLineNumbers, timeRange, false);
+    }
+
+    /**
+     * @param matcher Matcher for the pattern.
+     * @param invertMatch Select the lines that don't match, like grep -v.
+     * @param trackLineNumbers Whether to count the line numbers for the selected lines, like grep -n.
+     * @param timeRange Only select the lines in the time range. It can be null.
+     * @param parallel Whether to scan the chunks of a large file on all the cores. The listener is still only called
+     *                 by the thread calling scan.
+     */
+    public LogScanner(LineMatcher matcher, boolean invertMatch, boolean trackLineNumbers, TimeRange timeRange,
+                      boolean parallel) {
+        this.matcher = matcher;
+        this.invertMatch = invertMatch;
+        this.trackLineNumbers = trackLineNumbers;
+        this.timeRange = timeRange;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Scan the whole file.
+     *
+     * @param file The log file.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @return Number of selected lines.
+     */
+    public long scan(File file, LineListener listener) throws IOException {
+        return scan(file, ScanPlan.wholeFile(), listener);
+    }
+
+    /**
+     * Scan the ranges of the file in the plan.
+     *
+     * @param file The log file.
+     * @param plan Ranges of the file to scan.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @return Number of selected lines.
+     */
+    public long scan(File file, ScanPlan plan, LineListener listener) throws IOException {
+        return scan(file, plan, listener, null);
+    }
+
+    /**
+     * Scan the ranges of the file in the plan, and return where the scan ended so that it can be continued from there
+     * with ScanPlan.fromOffset when the file grows.
+     *
+     * @param file The log file.
+     * @param plan Ranges of the file to scan.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @param endState If not null, it is set to {size of the file, lines before the end, timestamp of the last line
+     *                 with one}. The number of lines is -1 if the scan cannot be continued, because the plan skipped
+     *                 the end of the file and the line numbers or timestamps are needed.
+     * @return Number of selected lines.
+     */
+    public long scan(File file, ScanPlan plan, LineListener listener, long[] endState) throws IOException {
+        return scan(file, plan, listener, endState, Long.MAX_VALUE);
+    }
+
+    /**
+     * Scan the ranges of the file in the plan until enough lines are selected.
+     *
+     * @param file The log file.
+     * @param plan Ranges of the file to scan.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @param endState Set to where the scan ended like above. It can be null.
+     * @param maxSelectedLines The scan stops after this number of lines are selected.
+     * @return Number of selected lines, which is at most maxSelectedLines.
+     */
+    public long scan(File file, ScanPlan plan, LineListener listener, long[] endState, long maxSelectedLines)
+            throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            long size = channel.size();
+            // Lines before the current position, selected lines, the timestamp of the last line with one, and the
+            // maximum number of selected lines.
+            long[] counters = new long[4];
+            counters[3] = maxSelectedLines;
+            long end = 0;
+            for (ScanPlan.Range range : plan.getRanges()) {
+                if (counters[1] >= counters[3]) {
+                    break;
+                }
+                end = range.getEnd() < 0 ? size : Math.min(range.getEnd(), size);
+                counters[0] = range.getLinesBefore();
+                counters[2] = range.getTimestampBefore();
+                scanRange(channel, range.getStart(), end, counters, listener);
+            }
+            if (endState != null) {
+                boolean isContinuable = counters[1] < counters[3]
+                        && (end == size || (!trackLineNumbers && timeRange == null));
+                endState[0] = size;
+                endState[1] = isContinuable ? counters[0] : -1;
+                endState[2] = counters[2];
+            }
+            return counters[1];
+        }
+    }
+
+    // Map the range region by region. The end of the range is always the end of a line.
+    private void scanRange(FileChannel channel, long start, long end, long[] counters, LineListener listener)
+            throws IOException {
+        long position = start;
+        while (position < end && counters[1] < counters[3]) {
+            long length = Math.min(REGION_SIZE, end - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int regionEnd = (int) length;
+            if (position + length < end) {
+                regionEnd = lastIndexOf(buffer, LINE_SEPARATOR, 0, (int) length) + 1;
+                // The line is longer than the region. Map a larger region, up to the limit of a buffer.
+                while (regionEnd == 0 && position + length < end && length < Integer.MAX_VALUE) {
+                    length = Math.min(Math.min(length * 2, Integer.MAX_VALUE), end - position);
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    regionEnd = position + length == end
+                            ? (int) length : lastIndexOf(buffer, LINE_SEPARATOR, 0, (int) length) + 1;
+                }
+                if (regionEnd == 0) {
+                    regionEnd = (int) length;
+                }
+            }
+            scanBlock(buffer, 0, regionEnd, counters, listener);
+            position += regionEnd;
+        }
+    }
+
+    // Scan a block of whole lines, like a region of a file or an inflated block of a LogSegment, with the same counters
+    // as scanRegion. A large block is scanned in parallel in the parallel mode.
+    void scanBlock(ByteBuffer buffer, int start, int end, long[] counters, LineListener listener) {
+        scannedBytes += end - start;
+        if (parallel && end - start >= 2 * CHUNK_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            scanRegionInParallel(buffer, start, end, counters, listener);
+        } else {
+            scanRegion(buffer, start, end, counters, listener);
+        }
+    }
+
+    /**
+     * @return Number of bytes of the log files scanned so far. The ranges skipped by the plan are not counted, and a
+     *         compacted block is counted by its inflated size.
+     */
+    public long getScannedBytes() {
+        return scannedBytes;
+    }
+
+    /**
+     * @return The time range of the selected lines, or null if there is none.
+     */
+    public TimeRange getTimeRange() {
+        return timeRange;
+    }
+
+    // Scan the lines in [start, end). counters[0] is the number of lines before start, and will be updated to the
+    // number of lines before end when line numbers are tracked. counters[1] is increased by the number of selected
+    // lines. counters[2] is the timestamp of the last line that has one, used when there is a time range. The scan stops
+    // when counters[1] reaches counters[3].
+    void scanRegion(ByteBuffer buffer, int start, int end, long[] counters, LineListener listener) {
+        if (matcher.isLiteral() && !invertMatch && timeRange == null) {
+            scanRegionForLiteral(buffer, start, end, counters, listener);
+            return;
+        }
+        int lineStart = start;
+        while (lineStart < end && counters[1] < counters[3]) {
+            int lineEnd = indexOf(buffer, LINE_SEPARATOR, lineStart, end);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            counters[0]++;
+            if (timeRange != null) {
+                long timestamp = TimeRange.parseLineTimestamp(buffer, lineStart, lineEnd);
+                if (timestamp >= 0) {
+                    counters[2] = timestamp;
+                }
+                if (counters[2] < 0 || !timeRange.contains(counters[2])) {
+                    lineStart = lineEnd + 1;
+                    continue;
+                }
+            }
+            if (matcher.matches(buffer, lineStart, lineEnd) != invertMatch) {
+                counters[1]++;
+                if (listener != null) {
+                    listener.onLine(trackLineNumbers ? counters[0] : -1, buffer, lineStart, lineEnd);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    // Same as scanRegion, but the region is split into chunks ending at line separators, which are scanned in the common
+    // fork-join pool. The chunks are joined in order, so the lines of the first chunk are given to the listener while
+    // the others are still being scanned. The counters of the chunks are added up.
+    private void scanRegionInParallel(ByteBuffer buffer, int start, int end, long[] counters, LineListener listener) {
+        List<ChunkScanTask> tasks = new ArrayList<>();
+        long timestampBefore = counters[2];
+        int previousChunkStart = start;
+        int chunkStart = start;
+        while (chunkStart < end) {
+            int chunkEnd = end;
+            // The last chunk takes the rest if it is not much larger than a chunk.
+            if (end - chunkStart > CHUNK_SIZE + CHUNK_SIZE / 2) {
+                int separatorIndex = indexOf(buffer, LINE_SEPARATOR, chunkStart + CHUNK_SIZE - 1, end);
+                chunkEnd = separatorIndex < 0 ? end : separatorIndex + 1;
+            }
+            if (timeRange != null && chunkStart > start) {
+                // The first lines of the chunk may have no timestamp, so they need the one of the chunk before.
+                long timestamp = lastLineTimestamp(buffer, previousChunkStart, chunkStart);
+                if (timestamp >= 0) {
+                    timestampBefore = timestamp;
+                }
+            }
+            ChunkScanTask task = new ChunkScanTask(buffer, chunkStart, chunkEnd, timestampBefore,
+                    counters[3] - counters[1], listener != null);
+            task.fork();
+            tasks.add(task);
+            previousChunkStart = chunkStart;
+            chunkStart = chunkEnd;
+        }
+        for (ChunkScanTask task : tasks) {
+            if (counters[1] >= counters[3]) {
+                // Enough lines are selected by the chunks before.
+                task.cancel(false);
+                continue;
+            }
+            task.join();
+            long remainingLineCount = counters[3] - counters[1];
+            for (int i = 0; i < task.selectedLineCount && i < remainingLineCount; i++) {
+                long lineNumber = trackLineNumbers ? counters[0] + task.lineNumbers[i] : -1;
+                listener.onLine(lineNumber, buffer, task.lineOffsets[2 * i], task.lineOffsets[2 * i + 1]);
+            }
+            counters[0] += task.counters[0];
+            counters[1] += Math.min(task.counters[1], remainingLineCount);
+            counters[2] = task.counters[2];
+        }
+    }
+
+    // Timestamp of the last line in [start, end) that has one, or -1 if there is none. end is the start of a line.
+    private static long lastLineTimestamp(ByteBuffer buffer, int start, int end) {
+        int lineEnd = end - 1;
+        while (lineEnd >= start) {
+            int lineStart = lastIndexOf(buffer, LINE_SEPARATOR, start, lineEnd) + 1;
+            if (lineStart == 0) {
+                lineStart = start;
+            }
+            long timestamp = TimeRange.parseLineTimestamp(buffer, lineStart, lineEnd);
+            if (timestamp >= 0) {
+                return timestamp;
+            }
+            lineEnd = lineStart - 1;
+        }
+        return -1;
+    }
+
+    // Search the literal in the whole range instead of line by line. Only the lines that contain a match are located,
+    // and the line separators are counted only if line numbers are needed.
+    private void scanRegionForLiteral(ByteBuffer buffer, int start, int end, long[] counters, LineListener listener) {
+        int searchStart = start;
+        int countedUntil = start;
+        while (searchStart < end && counters[1] < counters[3]) {
+            int matchIndex = matcher.find(buffer, searchStart, end);
+            if (matchIndex < 0) {
+                break;
+            }
+            int lineStart = Math.max(searchStart, lastIndexOf(buffer, LINE_SEPARATOR, searchStart, matchIndex) + 1);
+            int lineEnd = indexOf(buffer, LINE_SEPARATOR, matchIndex, end);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            counters[1]++;
+            if (listener != null) {
+                long lineNumber = -1;
+                if (trackLineNumbers) {
+                    counters[0] += countSeparators(buffer, countedUntil, lineStart);
+                    countedUntil = lineStart;
+                    lineNumber = counters[0] + 1;
+                }
+                listener.onLine(lineNumber, buffer, lineStart, lineEnd);
+            }
+            searchStart = lineEnd + 1;
+        }
+        if (trackLineNumbers && counters[1] < counters[3]) {
+            counters[0] += countSeparators(buffer, countedUntil, end);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of the last value in [start, end), or -1 if not found.
+    private static int lastIndexOf(ByteBuffer buffer, byte value, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int countSeparators(ByteBuffer buffer, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == LINE_SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scan a chunk of a region with counters starting from 0, so the line numbers are relative to the chunk. The
+     * selected lines are kept as offsets in the buffer until they are given to the listener in order.
+     */
+    private class ChunkScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+        private final boolean isKeepingLines;
+        private final long[] counters = new long[4];
+        // Start and end of each selected line.
+        private int[] lineOffsets = new int[0];
+        private long[] lineNumbers = new long[0];
+        private int selectedLineCount = 0;
+
+        ChunkScanTask(ByteBuffer buffer, int start, int end, long timestampBefore, long maxSelectedLines,
+                      boolean isKeepingLines) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            this.isKeepingLines = isKeepingLines;
+            counters[2] = timestampBefore;
+            counters[3] = maxSelectedLines;
+        }
+
+        @Override
+        protected void compute() {
+            scanRegion(buffer, start, end, counters, isKeepingLines ? this::addLine : null);
+        }
+
+        private void addLine(long lineNumber, ByteBuffer buffer, int lineStart, int lineEnd) {
+            if (2 * selectedLineCount == lineOffsets.length) {
+                lineOffsets = Arrays.copyOf(lineOffsets, Math.max(2 * lineOffsets.length, 256));
+            }
+            lineOffsets[2 * selectedLineCount] = lineStart;
+            lineOffsets[2 * selectedLineCount + 1] = lineEnd;
+            if (trackLineNumbers) {
+                if (selectedLineCount == lineNumbers.length) {
+                    lineNumbers = Arrays.copyOf(lineNumbers, Math.max(2 * lineNumbers.length, 128));
+                }
+                lineNumbers[selectedLineCount] = lineNumber;
+            }
+            selectedLineCount++;
+        }
+    }
+}
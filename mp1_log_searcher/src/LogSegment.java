@@ -0,0 +1,446 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compacted form of a closed log file. The lines are split into blocks of about 1 MB, and each block is compressed by
+ * deflate on its own. The header of a block has a bloom filter of the trigrams of its lines and the time range of its
+ * lines, so a query only reads and inflates the blocks that can have a selected line. The lines are the same as in the
+ * log file, so the output of a query is the same as before the file was compacted.
+ *
+ * The file starts with a header: magic, length, modification time and CRC32 of the log file, and the number of blocks.
+ * Each block is: length of the lines, length of the compressed lines, lines before the block, timestamp of the last
+ * line before the block with one, first and last timestamps of the lines in the block, the bloom filter, and the
+ * compressed lines. A timestamp is -1 if there is none.
+ */
+public class LogSegment {
+    public static final String EXTENSION = ".seg";
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAGIC = 0x4c534731; // "LSG1"
+    private static final int COMPRESSION_LEVEL = 6;
+
+    private final File segmentFile;
+    private final long logLength;
+    private final long logLastModified;
+    private final long logChecksum;
+    private final int blockCount;
+
+    private LogSegment(File segmentFile, long logLength, long logLastModified, long logChecksum, int blockCount) {
+        this.segmentFile = segmentFile;
+        this.logLength = logLength;
+        this.logLastModified = logLastModified;
+        this.logChecksum = logChecksum;
+        this.blockCount = blockCount;
+    }
+
+    /**
+     * @param segmentFile A segment file written by write.
+     * @return The segment with its header.
+     * @throws IOException If it is not a segment file.
+     */
+    public static LogSegment open(File segmentFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a log segment " + segmentFile);
+            }
+            return new LogSegment(segmentFile, in.readLong(), in.readLong(), in.readLong(), in.readInt());
+        }
+    }
+
+    /**
+     * Compact a log file into a segment file. The segment is written to a temporary file and checked against the log
+     * file before it is moved to the segment file, so the segment file is either complete or missing.
+     *
+     * @param logFile A log file that is not written anymore.
+     * @param segmentFile Where to write the segment.
+     * @return The segment.
+     * @throws IOException If the log file cannot be read, or it changed while it was compacted.
+     */
+    public static LogSegment write(File logFile, File segmentFile) throws IOException {
+        File temporaryFile = new File(segmentFile.getPath() + ".tmp");
+        long lastModified = logFile.lastModified();
+        CRC32 crc32 = new CRC32();
+        long length = 0;
+        int blockCount;
+        try (InputStream in = new FileInputStream(logFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(temporaryFile), 64 * 1024))) {
+            // The length, the checksum and the number of blocks are written again at the end.
+            out.writeInt(MAGIC);
+            out.writeLong(0);
+            out.writeLong(lastModified);
+            out.writeLong(0);
+            out.writeInt(0);
+            BlockWriter blockWriter = new BlockWriter(out);
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                crc32.update(buffer, 0, count);
+                length += count;
+                blockWriter.add(buffer, count);
+            }
+            blockWriter.finish();
+            blockCount = blockWriter.blockCount;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw")) {
+            randomAccessFile.seek(4);
+            randomAccessFile.writeLong(length);
+            randomAccessFile.writeLong(lastModified);
+            randomAccessFile.writeLong(crc32.getValue());
+            randomAccessFile.writeInt(blockCount);
+        }
+        LogSegment segment = open(temporaryFile);
+        if (logFile.length() != length || logFile.lastModified() != lastModified
+                || segment.computeChecksum() != crc32.getValue()) {
+            Files.deleteIfExists(temporaryFile.toPath());
+            throw new IOException(logFile + " changed while it was compacted");
+        }
+        Files.move(temporaryFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new LogSegment(segmentFile, length, lastModified, crc32.getValue(), blockCount);
+    }
+
+    /**
+     * Scan the blocks that can have a selected line.
+     *
+     * @param scanner Scanner for the query. Its time range is also used to skip the blocks.
+     * @param anyOfTrigramSets Trigrams from TrigramQueryPlanner, or null if the blocks cannot be skipped by them.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @param maxSelectedLines The scan stops after this number of lines are selected.
+     * @return Number of selected lines.
+     */
+    public long scan(LogScanner scanner, List<int[]> anyOfTrigramSets, LineListener listener, long maxSelectedLines)
+            throws IOException {
+        TimeRange timeRange = scanner.getTimeRange();
+        // Same counters as LogScanner: lines before, selected lines, last timestamp and the maximum selected lines.
+        long[] counters = new long[4];
+        counters[3] = maxSelectedLines;
+        try (BlockReader blockReader = new BlockReader()) {
+            for (int i = 0; i < blockCount && counters[1] < counters[3]; i++) {
+                BlockHeader header = blockReader.readHeader();
+                if (!header.mightMatch(anyOfTrigramSets, timeRange)) {
+                    blockReader.skipLines(header);
+                    continue;
+                }
+                byte[] lines = blockReader.readLines(header);
+                counters[0] = header.linesBefore;
+                counters[2] = header.timestampBefore;
+                scanner.scanBlock(ByteBuffer.wrap(lines), 0, header.length, counters, listener);
+            }
+        }
+        return counters[1];
+    }
+
+    /**
+     * Write the lines back to a log file, like before the file was compacted.
+     *
+     * @throws IOException If the segment is broken.
+     */
+    public void restore(File logFile) throws IOException {
+        File temporaryFile = new File(logFile.getPath() + ".tmp");
+        CRC32 crc32 = new CRC32();
+        try (BlockReader blockReader = new BlockReader();
+             OutputStream out = new FileOutputStream(temporaryFile)) {
+            for (int i = 0; i < blockCount; i++) {
+                BlockHeader header = blockReader.readHeader();
+                byte[] lines = blockReader.readLines(header);
+                crc32.update(lines, 0, header.length);
+                out.write(lines, 0, header.length);
+            }
+        }
+        if (crc32.getValue() != logChecksum || temporaryFile.length() != logLength) {
+            Files.deleteIfExists(temporaryFile.toPath());
+            throw new IOException("The lines of " + segmentFile + " are broken");
+        }
+        Files.move(temporaryFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!logFile.setLastModified(logLastModified)) {
+            System.out.println("Failed to set the modification time of " + logFile);
+        }
+    }
+
+    // Inflate all the blocks and return the CRC32 of the lines.
+    private long computeChecksum() throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (BlockReader blockReader = new BlockReader()) {
+            for (int i = 0; i < blockCount; i++) {
+                BlockHeader header = blockReader.readHeader();
+                crc32.update(blockReader.readLines(header), 0, header.length);
+            }
+        }
+        return crc32.getValue();
+    }
+
+    public File getSegmentFile() {
+        return segmentFile;
+    }
+
+    // Length of the log file that was compacted.
+    public long getLogLength() {
+        return logLength;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return The segment file of a log file, like "./logFiles/vm1.log.seg".
+     */
+    public static File getSegmentFile(File logFile) {
+        return new File(logFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * @return The log file that was compacted into a segment file. It is used in the output, so the lines have the same
+     * file name as before.
+     */
+    public static File getLogFile(File segmentFile) {
+        String path = segmentFile.getPath();
+        return new File(path.substring(0, path.length() - EXTENSION.length()));
+    }
+
+    // Header of a block. The bloom filter is null if the block has no trigram.
+    private static class BlockHeader {
+        private int length;
+        private int compressedLength;
+        private long linesBefore;
+        private long timestampBefore;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private BloomFilter bloomFilter;
+
+        // Whether a line in the block can contain the trigrams of the query and be in its time range.
+        boolean mightMatch(List<int[]> anyOfTrigramSets, TimeRange timeRange) {
+            if (timeRange != null && (firstTimestamp < 0 || lastTimestamp < timeRange.getSince()
+                    || firstTimestamp > timeRange.getUntil())) {
+                return false;
+            }
+            if (anyOfTrigramSets == null) {
+                return true;
+            }
+            for (int[] trigramSet : anyOfTrigramSets) {
+                if (trigramSet.length == 0 || bloomFilter != null && bloomFilter.mightContainAll(trigramSet)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Read the blocks one by one after the header of the segment file.
+    private class BlockReader implements AutoCloseable {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] compressed = new byte[64 * 1024];
+        private byte[] lines = new byte[BLOCK_SIZE];
+
+        BlockReader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024));
+            // Skip the header of the segment file.
+            in.readFully(new byte[4 + 8 + 8 + 8 + 4]);
+        }
+
+        BlockHeader readHeader() throws IOException {
+            BlockHeader header = new BlockHeader();
+            header.length = in.readInt();
+            header.compressedLength = in.readInt();
+            header.linesBefore = in.readLong();
+            header.timestampBefore = in.readLong();
+            header.firstTimestamp = in.readLong();
+            header.lastTimestamp = in.readLong();
+            if (in.readBoolean()) {
+                header.bloomFilter = BloomFilter.read(in);
+            }
+            if (header.length < 0 || header.compressedLength < 0) {
+                throw new IOException("Invalid block in " + segmentFile);
+            }
+            return header;
+        }
+
+        void skipLines(BlockHeader header) throws IOException {
+            int remaining = header.compressedLength;
+            while (remaining > 0) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped <= 0) {
+                    throw new IOException("Unexpected end of " + segmentFile);
+                }
+                remaining -= skipped;
+            }
+        }
+
+        // The lines of the block are at the beginning of the returned array.
+        byte[] readLines(BlockHeader header) throws IOException {
+            if (header.compressedLength > compressed.length) {
+                compressed = new byte[header.compressedLength];
+            }
+            in.readFully(compressed, 0, header.compressedLength);
+            if (header.length > lines.length) {
+                lines = new byte[header.length];
+            }
+            inflater.reset();
+            inflater.setInput(compressed, 0, header.compressedLength);
+            int length = 0;
+            try {
+                while (length < header.length && !inflater.finished()) {
+                    int count = inflater.inflate(lines, length, header.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (length != header.length) {
+                throw new IOException("Invalid block in " + segmentFile);
+            }
+            return lines;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    // Split the lines of the log file into blocks, and write each block with its header.
+    private static class BlockWriter {
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private final byte[] deflateBuffer = new byte[64 * 1024];
+        private byte[] block = new byte[BLOCK_SIZE + 64 * 1024];
+        private int blockLength = 0;
+        private int lineStart = 0;
+        private int blockCount = 0;
+        private long linesBefore = 0;
+        private long blockLineCount = 0;
+        // The last timestamp before the block, and the first and last ones in the block, including the lines that
+        // get their timestamp from the line before.
+        private long timestampBefore = -1;
+        private long lastTimestamp = -1;
+        private long firstBlockTimestamp = -1;
+        // Trigrams in the block. The set is cleared with the list, so it is not allocated again for each block.
+        private final BitSet trigramSet = new BitSet(1 << 24);
+        private int[] trigrams = new int[4096];
+        private int trigramCount = 0;
+        private int trigram = 0;
+        private int lineLength = 0;
+
+        BlockWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void add(byte[] bytes, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                byte b = bytes[i];
+                if (blockLength == block.length) {
+                    // A line longer than the block continues in a larger block.
+                    block = Arrays.copyOf(block, block.length * 2);
+                }
+                block[blockLength++] = b;
+                if (b == '\n') {
+                    endLine(blockLength - 1);
+                    if (blockLength >= BLOCK_SIZE) {
+                        writeBlock();
+                    }
+                    continue;
+                }
+                trigram = ((trigram << 8) | TrigramIndex.toLowerCase(b)) & 0xffffff;
+                lineLength++;
+                if (lineLength >= 3 && !trigramSet.get(trigram)) {
+                    trigramSet.set(trigram);
+                    if (trigramCount == trigrams.length) {
+                        trigrams = Arrays.copyOf(trigrams, trigramCount * 2);
+                    }
+                    trigrams[trigramCount++] = trigram;
+                }
+            }
+        }
+
+        // The last line may not end with a line separator.
+        void finish() throws IOException {
+            if (blockLength > lineStart) {
+                endLine(blockLength);
+            }
+            if (blockLength > 0) {
+                writeBlock();
+            }
+            deflater.end();
+        }
+
+        private void endLine(int lineEnd) {
+            long timestamp = TimeRange.parseLineTimestamp(ByteBuffer.wrap(block), lineStart, lineEnd);
+            if (timestamp >= 0) {
+                lastTimestamp = timestamp;
+            }
+            if (firstBlockTimestamp < 0) {
+                firstBlockTimestamp = lastTimestamp;
+            }
+            blockLineCount++;
+            lineStart = lineEnd + 1;
+            trigram = 0;
+            lineLength = 0;
+        }
+
+        private void writeBlock() throws IOException {
+            compressed.reset();
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(deflateBuffer);
+                compressed.write(deflateBuffer, 0, count);
+            }
+            out.writeInt(blockLength);
+            out.writeInt(compressed.size());
+            out.writeLong(linesBefore);
+            out.writeLong(timestampBefore);
+            // The timestamps only increase, so the first and last ones are the range of the block.
+            out.writeLong(firstBlockTimestamp);
+            out.writeLong(firstBlockTimestamp < 0 ? -1 : lastTimestamp);
+            out.writeBoolean(trigramCount > 0);
+            if (trigramCount > 0) {
+                BloomFilter bloomFilter = BloomFilter.create(trigramCount);
+                for (int i = 0; i < trigramCount; i++) {
+                    bloomFilter.add(trigrams[i]);
+                    trigramSet.clear(trigrams[i]);
+                }
+                bloomFilter.write(out);
+            }
+            compressed.writeTo(out);
+
+            blockCount++;
+            linesBefore += blockLineCount;
+            timestampBefore = lastTimestamp;
+            blockLength = 0;
+            lineStart = 0;
+            blockLineCount = 0;
+            firstBlockTimestamp = -1;
+            trigramCount = 0;
+            if (block.length > BLOCK_SIZE + 64 * 1024) {
+                block = new byte[BLOCK_SIZE + 64 * 1024];
+            }
+        }
+    }
+}
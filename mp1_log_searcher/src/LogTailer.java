@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follow the log files of a directory like "tail -f | grep". The end of each file is kept when the tailer starts, and
+ * only the lines appended after that are scanned, so the old lines are never scanned again. A WatchService wakes the
+ * tailer up as soon as a file changes. Then all the files are checked, which only needs their sizes.
+ *
+ * A new log file is followed from its beginning. A file that is replaced, like when it is rotated, or truncated is
+ * followed again from its beginning. A line is only given once it ends with a line separator, so a line that is still
+ * being written is never split.
+ *
+ * The client sends "follow grep ..." to start following, and the server streams the new lines until the client sends
+ * "unfollow" on the same connection. Only the patterns and -E, -i and -v can be used, since the counts, the limit,
+ * the line numbers and the time range need the lines before.
+ */
+public class LogTailer {
+    public static final String COMMAND = "follow";
+    public static final String STOP_COMMAND = "unfollow";
+
+    private final File logDirectory;
+    private final LogScanner scanner;
+    private final Map<File, FileState> fileStates = new HashMap<>();
+    private WatchService watchService;
+    // Reused for each output line.
+    private byte[] outputLine = new byte[256];
+
+    /**
+     * @param logDirectory Directory of the log files.
+     * @param command The grep command to select the new lines.
+     * @throws IllegalArgumentException If the command has an option that cannot be used when following.
+     */
+    public LogTailer(File logDirectory, GrepCommand command) {
+        if (command.isCountOnly() || command.getLimit() >= 0 || command.isLineNumber()
+                || command.getTimeRange() != null || command.isBatch() || command.getGroupBy() != null) {
+            throw new IllegalArgumentException("Only the patterns and -E, -i and -v can be used when following");
+        }
+        LineMatcher matcher;
+        if (command.hasMultiplePatterns()) {
+            matcher = LineMatcher.compile(command.getPatterns(), command.isExtendedRegex(), command.isIgnoreCase());
+        } else {
+            matcher = LineMatcher.compile(command.getPattern(), command.isExtendedRegex(), command.isIgnoreCase());
+        }
+        this.logDirectory = logDirectory;
+        this.scanner = new LogScanner(matcher, command.isInvertMatch(), false);
+    }
+
+    /**
+     * @return true if the line received by the server starts following instead of running a query.
+     */
+    public static boolean isCommand(String line) {
+        return line.startsWith(COMMAND + " ");
+    }
+
+    /**
+     * @param line The command like "follow grep -i error".
+     * @return The grep command in it.
+     * @throws IllegalArgumentException If it is not a valid grep command.
+     */
+    public static GrepCommand parseCommand(String line) {
+        return GrepCommand.parse(line.substring(COMMAND.length() + 1).trim());
+    }
+
+    /**
+     * Keep the end of each log file and start watching the directory. Only the lines after this are given by poll.
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        logDirectory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        for (File logFile : QueryHandler.listLogFiles(logDirectory)) {
+            if (logFile.isFile()) {
+                fileStates.put(logFile, new FileState(getFileKey(logFile), logFile.length()));
+            }
+        }
+    }
+
+    /**
+     * Wait until a log file changes or the timeout, and give the new lines to the consumer. Each line starts with the
+     * path of its file, like "./logFiles/vm1.log:...".
+     *
+     * @param timeoutMillis How long to wait for a change. The files are also checked after the timeout, in case the
+     *                      WatchService of the platform is slow.
+     * @param consumer Called for each new selected line in order.
+     * @return Number of new selected lines.
+     */
+    public long poll(long timeoutMillis, OutputLineConsumer consumer) throws IOException, InterruptedException {
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        // The events are only used to wake up, so they are all dropped.
+        while (key != null) {
+            key.pollEvents();
+            key.reset();
+            key = watchService.poll();
+        }
+        return scanNewLines(consumer);
+    }
+
+    // Scan what was appended to each log file since the last scan.
+    private long scanNewLines(OutputLineConsumer consumer) throws IOException {
+        long lineCount = 0;
+        List<File> logFiles = QueryHandler.listLogFiles(logDirectory);
+        Set<File> followedFiles = new HashSet<>();
+        for (File logFile : logFiles) {
+            // A compacted file was closed, so it has no new lines.
+            if (!logFile.isFile()) {
+                continue;
+            }
+            Object fileKey;
+            try {
+                fileKey = getFileKey(logFile);
+            } catch (NoSuchFileException e) {
+                // The file was deleted after it was listed.
+                continue;
+            }
+            followedFiles.add(logFile);
+            long length = logFile.length();
+            FileState state = fileStates.get(logFile);
+            if (state == null || !Objects.equals(state.fileKey, fileKey) || length < state.offset) {
+                // A new or replaced file.
+                state = new FileState(fileKey, 0);
+                fileStates.put(logFile, state);
+            }
+            long end = findLinesEnd(logFile, state.offset, length);
+            if (end <= state.offset) {
+                continue;
+            }
+            byte[] prefix = (logFile.getPath() + ":").getBytes(StandardCharsets.UTF_8);
+            ScanPlan plan = new ScanPlan();
+            plan.addRange(state.offset, end, 0);
+            lineCount += scanner.scan(logFile, plan, (lineNumber, buffer, start, lineEnd) -> {
+                int outputLength = prefix.length + lineEnd - start;
+                if (outputLength > outputLine.length) {
+                    outputLine = Arrays.copyOf(outputLine, Math.max(outputLength, outputLine.length * 2));
+                }
+                System.arraycopy(prefix, 0, outputLine, 0, prefix.length);
+                for (int i = start; i < lineEnd; i++) {
+                    outputLine[prefix.length + i - start] = buffer.get(i);
+                }
+                consumer.accept(outputLine, outputLength);
+            });
+            state.offset = end;
+        }
+        fileStates.keySet().retainAll(followedFiles);
+        return lineCount;
+    }
+
+    // Return the offset after the last line separator in [start, end), or start if there is none.
+    private static long findLinesEnd(File logFile, long start, long end) throws IOException {
+        if (end <= start) {
+            return start;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "r")) {
+            byte[] buffer = new byte[8 * 1024];
+            long position = end;
+            while (position > start) {
+                int length = (int) Math.min(buffer.length, position - start);
+                position -= length;
+                randomAccessFile.seek(position);
+                randomAccessFile.readFully(buffer, 0, length);
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer[i] == '\n') {
+                        return position + i + 1;
+                    }
+                }
+            }
+        }
+        return start;
+    }
+
+    // Identity of the file, like the inode, to find out when a file is replaced. It can be null on some platforms.
+    private static Object getFileKey(File logFile) throws IOException {
+        return Files.readAttributes(logFile.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    // Stop watching the directory.
+    public void close() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close the watch service: " + e.getMessage());
+        }
+    }
+
+    // The end of the lines that were already scanned in a file.
+    private static class FileState {
+        private final Object fileKey;
+        private long offset;
+
+        FileState(Object fileKey, long offset) {
+            this.fileKey = fileKey;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Callback for the output lines of a query, in the same format as the grep output. The bytes are UTF-8 without the
+ * line separator. The array is reused for the next line, so it needs to be copied if it is kept.
+ */
+public interface OutputLineConsumer {
+    void accept(byte[] line, int length);
+}
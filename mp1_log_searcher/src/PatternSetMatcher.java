@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matcher for several patterns, like grep with several "-e" options. A line matches if any of the patterns matches.
+ * The literal patterns are searched together by one Aho-Corasick automaton, and the regexes are tried on the same line,
+ * so the file is only read once for all the patterns. The patterns that match a selected line can be found with
+ * collectMatches, which is used to tag the results of a batch query.
+ */
+public class PatternSetMatcher extends LineMatcher {
+    private final List<String> patterns;
+    // Null if there is no literal pattern.
+    private final AhoCorasickLineMatcher literalMatcher;
+    private final int[] literalIndexes;
+    private final LineMatcher[] regexMatchers;
+    private final int[] regexIndexes;
+    // Buffer for the literals found by collectMatches, for each thread.
+    private final ThreadLocal<boolean[]> threadLiteralMatches;
+
+    /**
+     * @param patterns Patterns in the grep syntax.
+     * @param extendedRegex Whether the patterns are extended regexes (-E) instead of basic regexes.
+     * @param ignoreCase Whether the case is ignored (-i).
+     * @throws java.util.regex.PatternSyntaxException If a pattern is not a valid regex.
+     */
+    public PatternSetMatcher(List<String> patterns, boolean extendedRegex, boolean ignoreCase) {
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> literalIndexList = new ArrayList<>();
+        List<LineMatcher> regexes = new ArrayList<>();
+        List<Integer> regexIndexList = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            String literal = LineMatcher.toLiteral(pattern, extendedRegex);
+            if (literal != null) {
+                literals.add(literal.getBytes(StandardCharsets.UTF_8));
+                literalIndexList.add(i);
+            } else {
+                regexes.add(LineMatcher.createRegex(pattern, extendedRegex, ignoreCase));
+                regexIndexList.add(i);
+            }
+        }
+        this.literalMatcher = literals.isEmpty()
+                ? null : new AhoCorasickLineMatcher(literals.toArray(new byte[0][]), ignoreCase);
+        this.literalIndexes = toArray(literalIndexList);
+        this.regexMatchers = regexes.toArray(new LineMatcher[0]);
+        this.regexIndexes = toArray(regexIndexList);
+        int literalCount = literals.size();
+        this.threadLiteralMatches = ThreadLocal.withInitial(() -> new boolean[literalCount]);
+    }
+
+    @Override
+    public boolean matches(ByteBuffer buffer, int start, int end) {
+        if (literalMatcher != null && literalMatcher.matches(buffer, start, end)) {
+            return true;
+        }
+        for (LineMatcher regexMatcher : regexMatchers) {
+            if (regexMatcher.matches(buffer, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int find(ByteBuffer buffer, int start, int end) {
+        return isLiteral() ? literalMatcher.find(buffer, start, end) : super.find(buffer, start, end);
+    }
+
+    // Without a regex, the scanner can search a whole region with the automaton instead of each line.
+    @Override
+    public boolean isLiteral() {
+        return regexMatchers.length == 0;
+    }
+
+    /**
+     * Find all the patterns that match the line.
+     *
+     * @param buffer Buffer that holds the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line, not including the line separator.
+     * @param matched Set to true at the index of each pattern that matches, and false for the others. Its length is
+     *                the number of patterns.
+     */
+    public void collectMatches(ByteBuffer buffer, int start, int end, boolean[] matched) {
+        if (literalMatcher != null) {
+            boolean[] literalMatches = threadLiteralMatches.get();
+            Arrays.fill(literalMatches, false);
+            literalMatcher.collectMatches(buffer, start, end, literalMatches);
+            for (int i = 0; i < literalIndexes.length; i++) {
+                matched[literalIndexes[i]] = literalMatches[i];
+            }
+        }
+        for (int i = 0; i < regexMatchers.length; i++) {
+            matched[regexIndexes[i]] = regexMatchers[i].matches(buffer, start, end);
+        }
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
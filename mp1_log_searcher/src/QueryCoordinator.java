@@ -0,0 +1,527 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Send a query to all the servers at the same time and merge the responses as they arrive. The total time of a query
+ * is the time of the slowest server instead of the sum of all the servers.
+ *
+ * If the query has a limit like "grep -m 100", the servers that are still running are cancelled once that many lines
+ * are received from all the servers.
+ *
+ * Lines of a batch query like "grep --batch -e A -e B" start with the index of the pattern, so the lines or the counts
+ * of each pattern are added up in the result. Lines of a group-by query are "count:group", and the counts of the same
+ * group are added up.
+ *
+ * A query can also be followed on all the servers, like "tail -f | grep". The new lines of all the servers are merged
+ * into one stream until stopFollowing is called.
+ *
+ * A slow or half-dead server does not stall the query. Each server has a deadline, after which it is stopped and the
+ * query returns the lines of the other servers as a partial result. Once half of the servers have responded, the
+ * others get a few times the latency of that half, adjusted by how slow each server has been in the recent queries.
+ * A server that fails or misses its deadline is left out of the next queries, and is connected again and pinged in
+ * the background until it answers.
+ */
+public class QueryCoordinator {
+    // Deadline of a query on each server, unless it is changed by setDeadlineMillis.
+    public static final long DEFAULT_DEADLINE_MILLIS = 30000;
+    // The servers that have not responded when half of them have get this many times the latency of the half.
+    private static final double STRAGGLER_FACTOR = 3;
+    private static final long MIN_STRAGGLER_MILLIS = 1000;
+    // Queries faster than this are too noisy to compare the latencies of the servers.
+    private static final long MIN_MEASURED_LATENCY_MILLIS = 10;
+    // Weight of the last query in the relative latency of a server.
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final double MAX_RELATIVE_LATENCY = 10;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 5000;
+    private static final int PING_TIMEOUT_MILLIS = 2000;
+
+    private final List<SocketClient> clients;
+    private final Map<SocketClient, ServerHealth> healths = new LinkedHashMap<>();
+    private final ExecutorService executor;
+    // Stops the servers that miss their deadline.
+    private final ScheduledExecutorService deadlineTimer;
+    // Connects the unavailable servers again. It has its own thread, since a connection can block until its timeout.
+    private final ScheduledExecutorService healthChecker;
+    private volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+    // The query that is being followed, or null.
+    private volatile QueryExecution followedExecution;
+
+    /**
+     * @param clients Clients of the servers. A client that is not connected, like when its server was off at startup,
+     *                is connected in the background and used once its server answers.
+     */
+    public QueryCoordinator(List<SocketClient> clients) {
+        this.clients = Collections.unmodifiableList(new ArrayList<>(clients));
+        for (SocketClient client : clients) {
+            healths.put(client, new ServerHealth(client.isConnected()));
+        }
+        // One thread per server, since each thread is blocked on the socket until its server responds.
+        this.executor = Executors.newFixedThreadPool(Math.max(1, clients.size()), daemonThreads("query-coordinator"));
+        this.deadlineTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("query-deadline"));
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(daemonThreads("server-health-check"));
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL_MILLIS,
+                HEALTH_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param deadlineMillis How long each server has to respond to a query, or 0 for no deadline. The servers can be
+     *                       stopped earlier if they are much slower than the others.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("Invalid deadline " + deadlineMillis);
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @return The servers that are left out of the queries until they answer again.
+     */
+    public List<String> getUnavailableServers() {
+        List<String> servers = new ArrayList<>();
+        for (Map.Entry<SocketClient, ServerHealth> entry : healths.entrySet()) {
+            if (!entry.getValue().isHealthy) {
+                servers.add(entry.getKey().getServerIp());
+            }
+        }
+        return servers;
+    }
+
+    // Ping the unavailable servers, which also connects them again.
+    private void checkHealth() {
+        for (Map.Entry<SocketClient, ServerHealth> entry : healths.entrySet()) {
+            if (entry.getValue().isHealthy) {
+                continue;
+            }
+            SocketClient client = entry.getKey();
+            try {
+                if (client.ping(PING_TIMEOUT_MILLIS)) {
+                    entry.getValue().isHealthy = true;
+                    System.out.println("Reconnected to " + client.getServerIp());
+                }
+            } catch (RuntimeException e) {
+                // An exception would cancel the next checks.
+                System.out.println("Failed to check " + client.getServerIp() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public CompletableFuture<QueryResult> query(String query) {
+        return query(query, null);
+    }
+
+    /**
+     * Send the query to all the servers and collect all the lines of each server.
+     *
+     * @param query The grep command.
+     * @param responseConsumer Called once for each server when its response arrives. Calls are never concurrent, so
+     *                         the consumer can print the lines directly. It can be null.
+     * @return A future that completes when all the servers have responded or failed.
+     */
+    public CompletableFuture<QueryResult> query(String query, Consumer<ServerResponse> responseConsumer) {
+        return send(query, true, null, responseConsumer);
+    }
+
+    /**
+     * Send the query to all the servers and give each batch of lines to the consumer as soon as it arrives. Lines are
+     * not kept in the result, so the memory does not grow with the number of lines.
+     *
+     * @param query The grep command.
+     * @param batchConsumer Called with the server ip and a batch of lines. Calls are never concurrent.
+     * @return A future that completes when all the servers have responded or failed.
+     */
+    public CompletableFuture<QueryResult> stream(String query, BiConsumer<String, List<String>> batchConsumer) {
+        return send(query, false, batchConsumer, null);
+    }
+
+    /**
+     * Follow the new lines of the query on all the servers until stopFollowing is called. Only the lines appended to
+     * the log files after this are sent, so the old lines are not scanned again.
+     *
+     * @param query The grep command, like "grep -i error".
+     * @param batchConsumer Called with the server ip and a batch of new lines. Calls are never concurrent, so the lines
+     *                      of all the servers can be printed as one stream.
+     * @return A future that completes when all the servers have stopped following or failed.
+     */
+    public CompletableFuture<QueryResult> follow(String query, BiConsumer<String, List<String>> batchConsumer) {
+        QueryExecution execution = new QueryExecution(query, false, batchConsumer, true);
+        followedExecution = execution;
+        return send(execution, null);
+    }
+
+    /**
+     * Ask the servers that are following a query to stop. The future returned by follow completes when they have sent
+     * their remaining lines.
+     */
+    public void stopFollowing() {
+        QueryExecution execution = followedExecution;
+        if (execution == null) {
+            return;
+        }
+        synchronized (execution.result) {
+            for (SocketClient client : execution.runningClients) {
+                client.stopFollowing();
+            }
+        }
+        followedExecution = null;
+    }
+
+    private CompletableFuture<QueryResult> send(String query, boolean shouldKeepLines,
+                                                BiConsumer<String, List<String>> batchConsumer,
+                                                Consumer<ServerResponse> responseConsumer) {
+        return send(new QueryExecution(query, shouldKeepLines, batchConsumer, false), responseConsumer);
+    }
+
+    private CompletableFuture<QueryResult> send(QueryExecution execution, Consumer<ServerResponse> responseConsumer) {
+        long startTime = System.currentTimeMillis();
+        List<SocketClient> queriedClients = new ArrayList<>();
+        for (SocketClient client : clients) {
+            if (healths.get(client).isHealthy) {
+                queriedClients.add(client);
+            }
+        }
+        List<ScheduledFuture<?>> deadlines = new ArrayList<>();
+        long deadline = execution.isFollowing ? 0 : deadlineMillis;
+        if (deadline > 0) {
+            deadlines.add(deadlineTimer.schedule(() -> execution.stopRunningClients(), deadline,
+                    TimeUnit.MILLISECONDS));
+        }
+        // Successful responses, to set the deadlines of the stragglers once half of the servers have responded.
+        int[] respondedCount = new int[1];
+        int quorum = (queriedClients.size() + 1) / 2;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (SocketClient client : clients) {
+            CompletableFuture<ServerResponse> future = queriedClients.contains(client)
+                    ? CompletableFuture.supplyAsync(() -> execution.sendToServer(client), executor)
+                    : CompletableFuture.completedFuture(new ServerResponse(client.getServerIp(),
+                    Collections.<String>emptyList(), 0, 0, 0, "Unavailable, reconnecting in the background"));
+            futures.add(future.thenAccept(response -> {
+                synchronized (execution.result) {
+                    execution.result.addResponse(response);
+                    execution.responses.put(client, response);
+                    if (responseConsumer != null) {
+                        responseConsumer.accept(response);
+                    }
+                    boolean isSucceeded = !response.isFailed() && !response.isCancelled() && !response.isTimedOut();
+                    if (deadline > 0 && isSucceeded && ++respondedCount[0] == quorum && queriedClients.size() > 1) {
+                        deadlines.addAll(scheduleStragglerDeadlines(execution, startTime, deadline,
+                                response.getLatencyMillis()));
+                    }
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            synchronized (execution.result) {
+                for (ScheduledFuture<?> scheduledDeadline : deadlines) {
+                    scheduledDeadline.cancel(false);
+                }
+            }
+            updateHealth(execution);
+            execution.result.setTotalTimeMillis(System.currentTimeMillis() - startTime);
+            return execution.result;
+        });
+    }
+
+    // Give each server that is still running a few times the latency of the servers that have responded, and more if
+    // it has been slower than the others recently. Called with the lock of the result.
+    private List<ScheduledFuture<?>> scheduleStragglerDeadlines(QueryExecution execution, long startTime,
+                                                                 long deadline, long quorumLatencyMillis) {
+        List<ScheduledFuture<?>> deadlines = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (SocketClient client : execution.runningClients) {
+            double relativeLatency = Math.max(1, healths.get(client).getRelativeLatency());
+            long allowedMillis = Math.max(MIN_STRAGGLER_MILLIS,
+                    (long) (STRAGGLER_FACTOR * quorumLatencyMillis * relativeLatency));
+            if (allowedMillis < deadline) {
+                deadlines.add(deadlineTimer.schedule(() -> execution.stopClient(client),
+                        Math.max(0, startTime + allowedMillis - now), TimeUnit.MILLISECONDS));
+            }
+        }
+        return deadlines;
+    }
+
+    // Leave out the servers that failed or missed their deadline until they answer a ping, and update the relative
+    // latencies of the others.
+    private void updateHealth(QueryExecution execution) {
+        List<Long> latencies = new ArrayList<>();
+        Map<SocketClient, ServerResponse> responses;
+        synchronized (execution.result) {
+            responses = new LinkedHashMap<>(execution.responses);
+        }
+        for (Map.Entry<SocketClient, ServerResponse> entry : responses.entrySet()) {
+            ServerResponse response = entry.getValue();
+            if (response.isTimedOut() || response.isFailed() && !entry.getKey().isConnected()) {
+                if (healths.get(entry.getKey()).isHealthy) {
+                    System.out.println(entry.getKey().getServerIp() + " is unavailable until it answers again");
+                }
+                healths.get(entry.getKey()).isHealthy = false;
+            } else if (!response.isFailed() && !response.isCancelled()) {
+                latencies.add(response.getLatencyMillis());
+            }
+        }
+        if (execution.isFollowing || latencies.isEmpty()) {
+            return;
+        }
+        Collections.sort(latencies);
+        long medianLatency = latencies.get(latencies.size() / 2);
+        if (medianLatency < MIN_MEASURED_LATENCY_MILLIS) {
+            return;
+        }
+        for (Map.Entry<SocketClient, ServerResponse> entry : responses.entrySet()) {
+            ServerResponse response = entry.getValue();
+            if (!response.isFailed() && !response.isCancelled() && !response.isTimedOut()) {
+                healths.get(entry.getKey()).updateRelativeLatency((double) response.getLatencyMillis() / medianLatency);
+            }
+        }
+    }
+
+    // Stop the threads. The clients are not closed.
+    public void shutdown() {
+        executor.shutdown();
+        deadlineTimer.shutdownNow();
+        healthChecker.shutdownNow();
+    }
+
+    /**
+     * Health of a server as seen by the coordinator.
+     */
+    private static class ServerHealth {
+        // Whether the server is sent the queries. Set by the query threads and the health checker.
+        private volatile boolean isHealthy;
+        // Latency of the server divided by the median latency of the servers in the same queries, smoothed over the
+        // recent queries.
+        private double relativeLatency = 1;
+
+        ServerHealth(boolean isHealthy) {
+            this.isHealthy = isHealthy;
+        }
+
+        synchronized void updateRelativeLatency(double latencyRatio) {
+            relativeLatency = Math.min(MAX_RELATIVE_LATENCY,
+                    (1 - LATENCY_SMOOTHING) * relativeLatency + LATENCY_SMOOTHING * latencyRatio);
+        }
+
+        synchronized double getRelativeLatency() {
+            return relativeLatency;
+        }
+    }
+
+    /**
+     * State of a query sent to all the servers. The result is used as the lock for the batch consumer and the limit.
+     */
+    private static class QueryExecution {
+        private final String query;
+        // Parsed once for all the servers. Null if the query is not a valid grep command, which is then sent as it is
+        // so that each server reports the error.
+        private final GrepCommand command;
+        private final boolean isCountQuery;
+        private final long limit;
+        private final boolean shouldKeepLines;
+        private final BiConsumer<String, List<String>> batchConsumer;
+        private final boolean isFollowing;
+        private final QueryResult result;
+        // Clients that have not finished. They are cancelled when the limit is reached.
+        private final Set<SocketClient> runningClients = new HashSet<>();
+        // Clients that were stopped because they missed their deadline.
+        private final Set<SocketClient> timedOutClients = new HashSet<>();
+        private final Map<SocketClient, ServerResponse> responses = new LinkedHashMap<>();
+        // Lines given to the consumer, or the sum of the counts for a count query.
+        private long receivedCount = 0;
+
+        QueryExecution(String query, boolean shouldKeepLines, BiConsumer<String, List<String>> batchConsumer,
+                       boolean isFollowing) {
+            this.query = query;
+            this.command = parseOrNull(query);
+            this.isCountQuery = command != null && command.isCountOnly();
+            this.limit = command == null ? -1 : command.getLimit();
+            this.shouldKeepLines = shouldKeepLines;
+            this.batchConsumer = batchConsumer;
+            this.isFollowing = isFollowing;
+            this.result = new QueryResult(isCountQuery, limit,
+                    command != null && command.isBatch() ? command.getPatterns() : null,
+                    command != null && command.getGroupBy() != null);
+        }
+
+        ServerResponse sendToServer(SocketClient client) {
+            long startTime = System.currentTimeMillis();
+            List<String> lines = new ArrayList<>();
+            long[] counts = new long[2]; // Lines kept from the server, and the sum of its counts.
+            synchronized (result) {
+                if (isLimitReached()) {
+                    return new ServerResponse(client.getServerIp(), lines, 0, 0, 0, null, true);
+                }
+                runningClients.add(client);
+            }
+            try {
+                Consumer<List<String>> consumer = batch -> {
+                    synchronized (result) {
+                        List<String> acceptedBatch = acceptBatch(batch);
+                        counts[0] += acceptedBatch.size();
+                        if (isCountQuery) {
+                            counts[1] += sumCounts(acceptedBatch);
+                        }
+                        if (shouldKeepLines) {
+                            lines.addAll(acceptedBatch);
+                        }
+                        if (batchConsumer != null && !acceptedBatch.isEmpty()) {
+                            batchConsumer.accept(client.getServerIp(), acceptedBatch);
+                        }
+                        if (isLimitReached()) {
+                            cancelRunningClients(client);
+                        }
+                    }
+                };
+                if (isFollowing) {
+                    client.follow(query, consumer);
+                } else if (command != null) {
+                    client.sendQuery(command, consumer);
+                } else {
+                    client.sendMessage(query, consumer);
+                }
+                return new ServerResponse(client.getServerIp(), lines, counts[0], counts[1],
+                        System.currentTimeMillis() - startTime, null);
+            } catch (CancellationException e) {
+                // Other servers have sent enough lines, or the server missed its deadline. The lines received before
+                // are still in the result.
+                boolean isTimedOut;
+                synchronized (result) {
+                    isTimedOut = timedOutClients.contains(client);
+                }
+                return new ServerResponse(client.getServerIp(), lines, counts[0], counts[1],
+                        System.currentTimeMillis() - startTime, null, !isTimedOut, isTimedOut);
+            } catch (RuntimeException e) {
+                // A failed server should not fail the whole query.
+                return new ServerResponse(client.getServerIp(), Collections.<String>emptyList(), 0, 0,
+                        System.currentTimeMillis() - startTime, String.valueOf(e.getMessage()));
+            } finally {
+                synchronized (result) {
+                    runningClients.remove(client);
+                }
+            }
+        }
+
+        // Keep only the lines that are still within the limit. Counts are never split.
+        private List<String> acceptBatch(List<String> batch) {
+            if (result.isGroupQuery()) {
+                for (String line : batch) {
+                    int separatorIndex = line.indexOf(':');
+                    try {
+                        long count = Long.parseLong(line.substring(0, Math.max(separatorIndex, 0)));
+                        result.addGroupCount(line.substring(separatorIndex + 1), count);
+                    } catch (NumberFormatException e) {
+                        // Not a count of a group, so it is skipped.
+                    }
+                }
+            }
+            if (result.isBatchQuery()) {
+                for (String line : batch) {
+                    int separatorIndex = line.indexOf(':');
+                    try {
+                        int patternIndex = Integer.parseInt(line.substring(0, Math.max(separatorIndex, 0)));
+                        long count = isCountQuery ? sumCounts(Collections.singletonList(line)) : 1;
+                        result.addPatternCount(patternIndex, count);
+                    } catch (NumberFormatException e) {
+                        // Not a tagged line, so it is not counted for any pattern.
+                    }
+                }
+            }
+            if (isCountQuery) {
+                receivedCount += sumCounts(batch);
+                return batch;
+            }
+            if (limit >= 0 && receivedCount + batch.size() > limit) {
+                batch = batch.subList(0, (int) Math.max(0, limit - receivedCount));
+            }
+            receivedCount += batch.size();
+            return batch;
+        }
+
+        private boolean isLimitReached() {
+            return limit >= 0 && receivedCount >= limit;
+        }
+
+        // Stop a server that missed its deadline.
+        void stopClient(SocketClient client) {
+            synchronized (result) {
+                if (runningClients.remove(client)) {
+                    timedOutClients.add(client);
+                    client.cancel();
+                }
+            }
+        }
+
+        // Stop all the servers that are still running when the deadline of the query is reached.
+        void stopRunningClients() {
+            synchronized (result) {
+                for (SocketClient client : new ArrayList<>(runningClients)) {
+                    stopClient(client);
+                }
+            }
+        }
+
+        private void cancelRunningClients(SocketClient currentClient) {
+            for (SocketClient client : runningClients) {
+                client.cancel();
+            }
+            runningClients.clear();
+            // The current client may still have lines coming, so it is also cancelled.
+            currentClient.cancel();
+        }
+    }
+
+    private static GrepCommand parseOrNull(String query) {
+        try {
+            return GrepCommand.parse(query);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return What the lines are grouped by in a query like "grep --group-by level", or null if they are not grouped.
+     */
+    public static String getGroupBy(String query) {
+        try {
+            return GrepCommand.parse(query).getGroupBy();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // The lines will have the format "fileLocation:lineCount".
+    private static long sumCounts(List<String> lines) {
+        long count = 0;
+        for (String line : lines) {
+            String[] splitLine = line.split(":");
+            try {
+                count += Long.parseLong(splitLine[splitLine.length - 1]);
+            } catch (NumberFormatException e) {
+                // In case the calculation failed, we will choose to not add the count.
+            }
+        }
+        return count;
+    }
+}
@@ -1,44 +1,475 @@
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
- * Use a process to run the grep command directly.
+ * Run the grep command inside the process. The log files are scanned by LogScanner, so we don't need to start a shell
+ * for each query. Large files are indexed by trigrams and timestamps, and only the parts that can match are scanned.
+ * The output has the same format as the grep system call.
+ *
+ * A batch query ("grep --batch -e A -e B") scans the files once for all the patterns, and the patterns that match each
+ * selected line are found again only for that line to tag it.
+ *
+ * A group-by query ("grep --group-by level ERROR") counts the selected lines of each group in all the files, and only
+ * returns one line "count:group" for each group.
+ *
+ * A log file compacted by LogCompactor is searched in its LogSegment, and has the same name in the output as before.
+ *
+ * Each query is recorded in the ServerMetrics of the handler, which are reported with the counters of the caches by
+ * getStats.
  */
 public class QueryHandler {
-    private static final String LOG_FILE_LOCATION = " ./logFiles/*.log";
+    public static final String LOG_DIRECTORY = "./logFiles/";
+    public static final String LOG_FILE_EXTENSION = ".log";
+    public static final String INDEX_DIRECTORY = "./logIndex/";
+    // Indexes of another log directory are in this directory inside it, so the log files with the same name in two
+    // directories have their own indexes.
+    private static final String INDEX_SUBDIRECTORY = ".logIndex";
+
+    // Index manager of each log directory, shared by all the connections, so each file is only indexed once.
+    private static final Map<Path, LogIndexManager> INDEX_MANAGERS = new ConcurrentHashMap<>();
+    // Results of recent queries, so a repeated query only scans what was appended to the files since.
+    private static final QueryResultCache RESULT_CACHE = new QueryResultCache(64L * 1024 * 1024);
+    // A regex can give a different group for every line, so the groups of a query are limited. The lines of the other
+    // groups are counted in LineGrouper.OTHER_GROUPS.
+    private static final int MAX_GROUPS = 10000;
+
+    private final File logDirectory;
+    private final boolean isResultCacheEnabled;
+    private final boolean isParallelScanEnabled;
+    private final LogIndexManager indexManager;
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    public QueryHandler() {
+        this(new File(LOG_DIRECTORY), true);
+    }
+
+    /**
+     * @param logDirectory Directory of the log files to search.
+     * @param isResultCacheEnabled Whether to reuse the results of the queries before. The benchmark turns it off to
+     *                             measure the scan.
+     */
+    public QueryHandler(File logDirectory, boolean isResultCacheEnabled) {
+        this(logDirectory, isResultCacheEnabled, true);
+    }
+
+    /**
+     * @param logDirectory Directory of the log files to search.
+     * @param isResultCacheEnabled Whether to reuse the results of the queries before.
+     * @param isParallelScanEnabled Whether to scan the chunks of a large file on the common fork-join pool. It is off
+     *                              when the queries already run on a pool of a worker for each core, like in
+     *                              SelectorLogServer.
+     */
+    public QueryHandler(File logDirectory, boolean isResultCacheEnabled, boolean isParallelScanEnabled) {
+        this.logDirectory = logDirectory;
+        this.isResultCacheEnabled = isResultCacheEnabled;
+        this.isParallelScanEnabled = isParallelScanEnabled;
+        this.indexManager = getIndexManager(logDirectory);
+    }
+
+    // The indexes of ./logFiles are in ./logIndex, and the indexes of another directory are inside it.
+    private static LogIndexManager getIndexManager(File logDirectory) {
+        Path directory = logDirectory.toPath().toAbsolutePath().normalize();
+        return INDEX_MANAGERS.computeIfAbsent(directory, key -> {
+            boolean isDefaultDirectory = key.equals(new File(LOG_DIRECTORY).toPath().toAbsolutePath().normalize());
+            return new LogIndexManager(isDefaultDirectory
+                    ? new File(INDEX_DIRECTORY) : new File(logDirectory, INDEX_SUBDIRECTORY));
+        });
+    }
+
+    public File getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * @return Counters of the queries run by this handler. The servers also count their connections in it.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The report of the metrics, followed by the counters of the result cache and the matcher cache. The
+     *         caches are shared by all the handlers of the process.
+     */
+    public List<String> getStats() {
+        List<String> lines = metrics.report();
+        ServerMetrics.addCache(lines, "result_cache", RESULT_CACHE.getHitCount() + RESULT_CACHE.getAppendCount(),
+                RESULT_CACHE.getMissCount());
+        ServerMetrics.add(lines, "result_cache_appends_total", RESULT_CACHE.getAppendCount());
+        ServerMetrics.addCache(lines, "matcher_cache", LineMatcher.getCacheHits(), LineMatcher.getCacheMisses());
+        return lines;
+    }
+
+    /**
+     * Answer the "stats" query with the lines of getStats.
+     * @param consumer Called for each line in order.
+     * @return Number of output lines.
+     */
+    public long writeStats(OutputLineConsumer consumer) {
+        List<String> lines = getStats();
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            consumer.accept(bytes, bytes.length);
+        }
+        return lines.size();
+    }
 
     /**
-     * Query local files on server using grep system call.
+     * Query local files on server.
      * @param inputLine The grep command received from client
      * @param singleFilePath If the directory ./logFiles only contains 1 log, this will be set to the path of the file.
-     * @return Grep results from stdout collected in a list.
+     * @return Grep results collected in a list. The list is empty if the command is invalid.
      */
     public List<String> getQueryResults(String inputLine, String singleFilePath) {
         List<String> commandResults = new ArrayList<>();
         try {
-            // We need to treat it as shell for command that includes *.
-            // https://stackoverflow.com/questions/2111983/java-runtime-getruntime-exec-wildcards
-            String[] args = new String[]{"sh", "-c", inputLine + LOG_FILE_LOCATION};
-            ProcessBuilder builder = new ProcessBuilder(args);
-            Process process = builder.start();
-            BufferedReader responseReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-            String commandOutput;
-            while ((commandOutput = responseReader.readLine()) != null) {
-                if (singleFilePath == null) {
-                    commandResults.add(commandOutput);
+            executeQuery(inputLine, singleFilePath,
+                    (line, length) -> commandResults.add(new String(line, 0, length, StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException e) {
+            // Same as grep, nothing is returned for an invalid command.
+            System.out.println("Invalid command " + inputLine + ": " + e.getMessage());
+        }
+        return commandResults;
+    }
+
+    /**
+     * Query local files on server and give each output line to the consumer as soon as it is found. Lines are copied
+     * from the log files as bytes, so no String is created.
+     * @param inputLine The grep command received from client, or the command in the binary form of GrepCommand.
+     * @param singleFilePath If the directory ./logFiles only contains 1 log, this will be set to the path of the file.
+     * @param consumer Called for each output line in order.
+     * @return Number of output lines.
+     * @throws IllegalArgumentException If the command is invalid.
+     */
+    public long executeQuery(String inputLine, String singleFilePath, OutputLineConsumer consumer) {
+        long startNanos = System.nanoTime();
+        GrepCommand command;
+        try {
+            command = GrepCommand.fromLine(inputLine);
+        } catch (IllegalArgumentException e) {
+            metrics.recordFailure();
+            metrics.recordQuery(System.nanoTime() - startNanos, 0, 0);
+            throw e;
+        }
+        return executeQuery(command, singleFilePath, consumer);
+    }
+
+    /**
+     * Query local files on server and give each output line to the consumer as soon as it is found.
+     * @param command The parsed command.
+     * @param singleFilePath If the directory ./logFiles only contains 1 log, this will be set to the path of the file.
+     * @param consumer Called for each output line in order.
+     * @return Number of output lines.
+     * @throws IllegalArgumentException If a pattern is invalid.
+     */
+    public long executeQuery(GrepCommand command, String singleFilePath, OutputLineConsumer consumer) {
+        long startNanos = System.nanoTime();
+        LogScanner scanner = null;
+        long[] returnedLineCount = new long[1];
+        try {
+            LineMatcher matcher;
+            if (command.hasMultiplePatterns() || command.isBatch()) {
+                matcher = LineMatcher.compile(command.getPatterns(), command.isExtendedRegex(), command.isIgnoreCase());
+            } else {
+                matcher = LineMatcher.compile(command.getPattern(), command.isExtendedRegex(), command.isIgnoreCase());
+            }
+            scanner = new LogScanner(matcher, command.isInvertMatch(), command.isLineNumber(), command.getTimeRange(),
+                    isParallelScanEnabled);
+            return executeQuery(command, matcher, scanner, singleFilePath, (line, length) -> {
+                returnedLineCount[0]++;
+                consumer.accept(line, length);
+            });
+        } catch (UncheckedIOException e) {
+            // The client closed the connection.
+            metrics.recordCancellation();
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            metrics.recordQuery(System.nanoTime() - startNanos, scanner == null ? 0 : scanner.getScannedBytes(),
+                    returnedLineCount[0]);
+        }
+    }
+
+    // Run the query with the matcher and the scanner for its patterns.
+    private long executeQuery(GrepCommand command, LineMatcher matcher, LogScanner scanner, String singleFilePath,
+                              OutputLineConsumer consumer) {
+        // The index can only skip the lines that don't contain the pattern, so it is not used for -v.
+        List<int[]> requiredTrigrams = command.isInvertMatch()
+                ? null : TrigramQueryPlanner.requiredTrigrams(command.getPatterns(), command.isExtendedRegex());
+        String normalizedQuery = command.getNormalizedQuery();
+        List<File> logFiles = listLogFiles(logDirectory);
+        OutputLine outputLine = new OutputLine();
+        long outputLineCount = 0;
+        LineGrouper grouper = command.getGroupBy() == null
+                ? null : LineGrouper.create(command.getGroupBy(), command.isExtendedRegex(), command.isIgnoreCase());
+        // Counts of the groups in all the files. The count is an array so it can be changed in the map.
+        Map<String, long[]> groupCounts = new TreeMap<>();
+        // The limit is for all the files, so each file can only select what is left.
+        long remainingLineCount = command.getLimit() < 0 ? Long.MAX_VALUE : command.getLimit();
+        try {
+            for (File logFile : logFiles) {
+                // Like grep, the file name is only added when there are multiple files.
+                String prefix = logFiles.size() > 1 ? logFile.getPath() + ":" : "";
+                if (singleFilePath != null) {
+                    prefix = singleFilePath + ":" + prefix;
+                }
+                byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+                Supplier<ScanPlan> planSupplier =
+                        () -> indexManager.plan(logFile, requiredTrigrams, command.getTimeRange());
+                if (grouper != null) {
+                    scanFile(normalizedQuery, logFile, scanner, planSupplier, requiredTrigrams, Long.MAX_VALUE,
+                            (lineNumber, buffer, start, end) -> {
+                        String group = grouper.getGroup(buffer, start, end);
+                        long[] count = groupCounts.get(group);
+                        if (count == null) {
+                            if (groupCounts.size() >= MAX_GROUPS) {
+                                group = LineGrouper.OTHER_GROUPS;
+                                count = groupCounts.get(group);
+                            }
+                            if (count == null) {
+                                count = new long[1];
+                                groupCounts.put(group, count);
+                            }
+                        }
+                        count[0]++;
+                    });
+                } else if (command.isBatch()) {
+                    outputLineCount += scanFileForBatch(command, (PatternSetMatcher) matcher, normalizedQuery, logFile,
+                            scanner, planSupplier, requiredTrigrams, prefixBytes, outputLine, consumer);
+                } else if (command.isCountOnly()) {
+                    long count = scanFile(normalizedQuery, logFile, scanner, planSupplier, requiredTrigrams,
+                            remainingLineCount, null);
+                    outputLine.reset(prefixBytes);
+                    outputLine.appendNumber(count);
+                    consumer.accept(outputLine.bytes, outputLine.length);
+                    outputLineCount++;
+                    remainingLineCount = subtractFromLimit(remainingLineCount, count);
                 } else {
-                    commandResults.add(singleFilePath + ":" + commandOutput);
+                    long selectedLineCount = scanFile(normalizedQuery, logFile, scanner, planSupplier,
+                            requiredTrigrams, remainingLineCount, (lineNumber, buffer, start, end) -> {
+                        outputLine.reset(prefixBytes);
+                        if (lineNumber >= 0) {
+                            outputLine.appendNumber(lineNumber);
+                            outputLine.append((byte) ':');
+                        }
+                        outputLine.append(buffer, start, end);
+                        consumer.accept(outputLine.bytes, outputLine.length);
+                    });
+                    outputLineCount += selectedLineCount;
+                    remainingLineCount = subtractFromLimit(remainingLineCount, selectedLineCount);
                 }
             }
-            process.waitFor();
-            process.destroy();
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return commandResults;
+        for (Map.Entry<String, long[]> group : groupCounts.entrySet()) {
+            outputLine.reset(new byte[0]);
+            outputLine.appendNumber(group.getValue()[0]);
+            outputLine.append((byte) ':');
+            byte[] groupBytes = group.getKey().getBytes(StandardCharsets.UTF_8);
+            outputLine.append(groupBytes, groupBytes.length);
+            consumer.accept(outputLine.bytes, outputLine.length);
+            outputLineCount++;
+        }
+        return outputLineCount;
+    }
+
+    // Scan the file once for all the patterns, and give each selected line once for each pattern that matches it. The
+    // tag is the index of the pattern. Return the number of output lines.
+    private long scanFileForBatch(GrepCommand command, PatternSetMatcher matcher, String normalizedQuery, File logFile,
+                                  LogScanner scanner, Supplier<ScanPlan> planSupplier, List<int[]> requiredTrigrams,
+                                  byte[] prefixBytes, OutputLine outputLine, OutputLineConsumer consumer)
+            throws IOException {
+        int patternCount = command.getPatterns().size();
+        byte[][] tags = new byte[patternCount][];
+        for (int i = 0; i < patternCount; i++) {
+            tags[i] = (i + ":").getBytes(StandardCharsets.UTF_8);
+        }
+        boolean[] matched = new boolean[patternCount];
+        long[] patternCounts = new long[patternCount];
+        scanFile(normalizedQuery, logFile, scanner, planSupplier, requiredTrigrams, Long.MAX_VALUE,
+                (lineNumber, buffer, start, end) -> {
+            matcher.collectMatches(buffer, start, end, matched);
+            for (int i = 0; i < patternCount; i++) {
+                if (!matched[i]) {
+                    continue;
+                }
+                patternCounts[i]++;
+                if (!command.isCountOnly()) {
+                    outputLine.reset(tags[i]);
+                    outputLine.append(prefixBytes, prefixBytes.length);
+                    if (lineNumber >= 0) {
+                        outputLine.appendNumber(lineNumber);
+                        outputLine.append((byte) ':');
+                    }
+                    outputLine.append(buffer, start, end);
+                    consumer.accept(outputLine.bytes, outputLine.length);
+                }
+            }
+        });
+        if (!command.isCountOnly()) {
+            long outputLineCount = 0;
+            for (long count : patternCounts) {
+                outputLineCount += count;
+            }
+            return outputLineCount;
+        }
+        for (int i = 0; i < patternCount; i++) {
+            outputLine.reset(tags[i]);
+            outputLine.append(prefixBytes, prefixBytes.length);
+            outputLine.appendNumber(patternCounts[i]);
+            consumer.accept(outputLine.bytes, outputLine.length);
+        }
+        return patternCount;
+    }
+
+    // A compacted log file is scanned in its segment, which skips the blocks by the trigrams and the time range. The
+    // segment does not change, so its results are not cached.
+    private long scanFile(String normalizedQuery, File logFile, LogScanner scanner, Supplier<ScanPlan> planSupplier,
+                          List<int[]> requiredTrigrams, long maxSelectedLines, LineListener listener)
+            throws IOException {
+        if (!logFile.isFile()) {
+            LogSegment segment = LogSegment.open(LogSegment.getSegmentFile(logFile));
+            return segment.scan(scanner, requiredTrigrams, listener, maxSelectedLines);
+        }
+        if (!isResultCacheEnabled) {
+            return scanner.scan(logFile, planSupplier.get(), listener, null, maxSelectedLines);
+        }
+        return RESULT_CACHE.scan(normalizedQuery, logFile, scanner, planSupplier, maxSelectedLines, listener);
+    }
+
+    /**
+     * Start compacting the closed log files of the directory in the background. It should only be started once for
+     * each directory.
+     */
+    public void startCompactor() {
+        new LogCompactor(logDirectory, indexManager).start();
+    }
+
+    /**
+     * Wait until the indexes requested by the queries before are built, so that the next queries can use them.
+     */
+    public static void awaitIndexing() throws InterruptedException {
+        for (LogIndexManager indexManager : INDEX_MANAGERS.values()) {
+            indexManager.awaitBuilds();
+        }
+    }
+
+    // Long.MAX_VALUE means no limit, so it stays the same.
+    private static long subtractFromLimit(long limit, long selectedLineCount) {
+        return limit == Long.MAX_VALUE ? limit : limit - selectedLineCount;
+    }
+
+    /**
+     * @return All the log files under ./logFiles, sorted by the name like the shell does for "*.log".
+     */
+    public static List<File> listLogFiles() {
+        return listLogFiles(new File(LOG_DIRECTORY));
+    }
+
+    /**
+     * @param directory Directory of the log files.
+     * @return All the log files in the directory, sorted by the name like the shell does for "*.log". A compacted log
+     * file is in the list with its name before it was compacted, and it no longer exists as a file.
+     */
+    public static List<File> listLogFiles(File directory) {
+        List<File> logFiles = new ArrayList<>();
+        File[] allFiles = directory.listFiles();
+        if (allFiles != null) {
+            Set<File> fileSet = new HashSet<>(Arrays.asList(allFiles));
+            for (File file : allFiles) {
+                // Hidden files are not matched by "*" in the shell.
+                if (!file.isFile() || file.getName().startsWith(".")) {
+                    continue;
+                }
+                if (file.getName().endsWith(LOG_FILE_EXTENSION)) {
+                    logFiles.add(file);
+                } else if (file.getName().endsWith(LOG_FILE_EXTENSION + LogSegment.EXTENSION)
+                        && !fileSet.contains(LogSegment.getLogFile(file))) {
+                    // The log file is searched instead while it is being compacted.
+                    logFiles.add(LogSegment.getLogFile(file));
+                }
+            }
+            Collections.sort(logFiles);
+        }
+        return logFiles;
+    }
+
+    /**
+     * @return The path of the log file if there is only one log file. Otherwise, null. Grep doesn't print the path
+     * for a single file, so the path is added to the beginning of each line instead.
+     */
+    public static String getSingleFilePath() {
+        return getSingleFilePath(new File(LOG_DIRECTORY));
+    }
+
+    /**
+     * @param directory Directory of the log files.
+     * @return The path of the log file if there is only one log file in the directory. Otherwise, null.
+     */
+    public static String getSingleFilePath(File directory) {
+        List<File> logFiles = listLogFiles(directory);
+        if (logFiles.size() == 1) {
+            return logFiles.get(0).getPath();
+        }
+        return null;
+    }
+
+    // A growable byte array for an output line. It is reused for all the lines of a query.
+    private static class OutputLine {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        void reset(byte[] prefix) {
+            length = 0;
+            append(prefix, prefix.length);
+        }
+
+        void append(byte value) {
+            ensureCapacity(length + 1);
+            bytes[length++] = value;
+        }
+
+        void append(byte[] values, int valuesLength) {
+            ensureCapacity(length + valuesLength);
+            System.arraycopy(values, 0, bytes, length, valuesLength);
+            length += valuesLength;
+        }
+
+        void append(ByteBuffer buffer, int start, int end) {
+            ensureCapacity(length + end - start);
+            for (int i = start; i < end; i++) {
+                bytes[length++] = buffer.get(i);
+            }
+        }
+
+        void appendNumber(long number) {
+            String digits = Long.toString(number);
+            for (int i = 0; i < digits.length(); i++) {
+                append((byte) digits.charAt(i));
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
     }
 }
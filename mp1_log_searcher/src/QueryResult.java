@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merged result of a query sent to all the servers. Responses are added in the order they arrive, and the total count
+ * is updated as each response is added. If the query has a limit, the total count is at most the limit.
+ *
+ * For a batch query, the lines or the counts are also added up for each pattern by the tag at the start of the lines.
+ * For a group-by query, the counts of the same group from all the servers are added up.
+ *
+ * The result is partial if a server failed or missed its deadline. The lines and counts that arrived are still in it.
+ */
+public class QueryResult {
+    private final boolean isCountQuery;
+    private final long limit;
+    private final List<ServerResponse> responses = new ArrayList<>();
+    private long totalCount = 0;
+    private long totalTimeMillis = 0;
+    // Null if the query is not a batch query.
+    private final List<String> batchPatterns;
+    private final long[] patternCounts;
+    // Null if the query is not a group-by query.
+    private final Map<String, Long> groupCounts;
+
+    public QueryResult(boolean isCountQuery) {
+        this(isCountQuery, -1);
+    }
+
+    /**
+     * @param isCountQuery Whether the query is like "grep -c".
+     * @param limit Limit of the lines of the query, or -1 if there is none.
+     */
+    public QueryResult(boolean isCountQuery, long limit) {
+        this(isCountQuery, limit, null);
+    }
+
+    /**
+     * @param isCountQuery Whether the query is like "grep -c".
+     * @param limit Limit of the lines of the query, or -1 if there is none.
+     * @param batchPatterns Patterns of a batch query in the order of their tags, or null if it is not a batch query.
+     */
+    public QueryResult(boolean isCountQuery, long limit, List<String> batchPatterns) {
+        this(isCountQuery, limit, batchPatterns, false);
+    }
+
+    /**
+     * @param isCountQuery Whether the query is like "grep -c".
+     * @param limit Limit of the lines of the query, or -1 if there is none.
+     * @param batchPatterns Patterns of a batch query in the order of their tags, or null if it is not a batch query.
+     * @param isGroupQuery Whether the query is like "grep --group-by level".
+     */
+    public QueryResult(boolean isCountQuery, long limit, List<String> batchPatterns, boolean isGroupQuery) {
+        this.isCountQuery = isCountQuery;
+        this.limit = limit;
+        this.batchPatterns = batchPatterns;
+        this.patternCounts = batchPatterns == null ? null : new long[batchPatterns.size()];
+        this.groupCounts = isGroupQuery ? new TreeMap<>() : null;
+    }
+
+    synchronized void addResponse(ServerResponse response) {
+        responses.add(response);
+        totalCount += response.getCount();
+    }
+
+    synchronized void addPatternCount(int patternIndex, long count) {
+        if (patternCounts != null && patternIndex >= 0 && patternIndex < patternCounts.length) {
+            patternCounts[patternIndex] += count;
+        }
+    }
+
+    synchronized void addGroupCount(String group, long count) {
+        if (groupCounts != null) {
+            groupCounts.merge(group, count, Long::sum);
+        }
+    }
+
+    synchronized void setTotalTimeMillis(long totalTimeMillis) {
+        this.totalTimeMillis = totalTimeMillis;
+    }
+
+    public boolean isCountQuery() {
+        return isCountQuery;
+    }
+
+    public synchronized List<ServerResponse> getResponses() {
+        return Collections.unmodifiableList(new ArrayList<>(responses));
+    }
+
+    public synchronized long getTotalCount() {
+        return limit >= 0 ? Math.min(totalCount, limit) : totalCount;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public boolean isBatchQuery() {
+        return batchPatterns != null;
+    }
+
+    // Patterns of a batch query, where the index is the tag of the lines. Null if it is not a batch query.
+    public List<String> getBatchPatterns() {
+        return batchPatterns;
+    }
+
+    /**
+     * @param patternIndex Index of a pattern of the batch query.
+     * @return The number of lines that match the pattern on all the servers.
+     */
+    public synchronized long getPatternCount(int patternIndex) {
+        return patternCounts[patternIndex];
+    }
+
+    public boolean isGroupQuery() {
+        return groupCounts != null;
+    }
+
+    /**
+     * @return The count of each group on all the servers, sorted by the group. Null if it is not a group-by query.
+     */
+    public synchronized Map<String, Long> getGroupCounts() {
+        return groupCounts == null ? null : Collections.unmodifiableMap(new TreeMap<>(groupCounts));
+    }
+
+    public synchronized long getTotalTimeMillis() {
+        return totalTimeMillis;
+    }
+
+    /**
+     * @return Whether some servers failed or missed their deadline, so the lines and counts are only from the others.
+     */
+    public synchronized boolean isPartial() {
+        for (ServerResponse response : responses) {
+            if (response.isFailed() || response.isTimedOut()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The servers that were stopped because they missed their deadline, in the order they were stopped.
+     */
+    public synchronized List<String> getMissedDeadlineServers() {
+        List<String> servers = new ArrayList<>();
+        for (ServerResponse response : responses) {
+            if (response.isTimedOut()) {
+                servers.add(response.getServerIp());
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * @return The servers that failed, could not be reached or missed their deadline, so the result is partial.
+     */
+    public synchronized List<String> getMissingServers() {
+        List<String> servers = new ArrayList<>();
+        for (ServerResponse response : responses) {
+            if (response.isFailed() || response.isTimedOut()) {
+                servers.add(response.getServerIp());
+            }
+        }
+        return servers;
+    }
+}
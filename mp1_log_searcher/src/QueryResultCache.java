@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the selected lines of a query in each log file. The key is the normalized query and the path of the file,
+ * and an entry is only used if the size, the modification time and the checksum of the beginning of the file are the
+ * same. When lines are appended
+ * to the file, only the new part is scanned and the lines are added to the cached ones.
+ *
+ * The least recently used entries are removed when the cached lines use more than the byte budget.
+ */
+public class QueryResultCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxBytes Budget for the cached lines of all the entries. A single result larger than 1/8 of it is not
+     *                 cached.
+     */
+    public QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    /**
+     * Get the selected lines of a query in a log file from the cache, or scan the file if they are not cached.
+     *
+     * @param query Normalized query from GrepCommand.
+     * @param logFile The log file.
+     * @param scanner Scanner for the query.
+     * @param planSupplier Plan to scan the whole file when there is nothing in the cache to reuse.
+     * @param maxSelectedLines The scan stops after this number of lines are selected. Such a scan may not reach the end
+     *                         of the file, so it is not cached unless this is Long.MAX_VALUE.
+     * @param listener Called for each selected line in order. It can be null when only the count is needed.
+     * @return Number of selected lines.
+     */
+    public long scan(String query, File logFile, LogScanner scanner, Supplier<ScanPlan> planSupplier,
+                     long maxSelectedLines, LineListener listener) throws IOException {
+        if (maxSelectedLines != Long.MAX_VALUE) {
+            return scanner.scan(logFile, planSupplier.get(), listener, null, maxSelectedLines);
+        }
+        String key = query + "\n" + logFile.getPath();
+        long lastModified = logFile.lastModified();
+        long length = logFile.length();
+        Entry entry = get(key);
+        // The modification time may only have a precision of seconds, so the beginning of the file is also compared to
+        // detect a file that was replaced.
+        if (entry != null
+                && (length < entry.length || TrigramIndex.checksum(logFile, entry.length) != entry.checksum)) {
+            entry = null;
+        }
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            hits.increment();
+            entry.replay(listener);
+            return entry.selectedLineCount;
+        }
+
+        EntryBuilder builder;
+        ScanPlan plan;
+        if (entry != null && entry.isContinuable && length > entry.length) {
+            // Lines were appended. The cached lines are given first, then the new part is scanned.
+            appends.increment();
+            entry.replay(listener);
+            builder = new EntryBuilder(entry);
+            plan = ScanPlan.fromOffset(entry.length, entry.linesAtEnd, entry.timestampAtEnd);
+        } else {
+            misses.increment();
+            builder = new EntryBuilder(null);
+            plan = planSupplier.get();
+        }
+        long[] endState = new long[3];
+        // Only the count is cached when the lines are not needed.
+        LineListener collector = listener == null ? null : (lineNumber, buffer, start, end) -> {
+            builder.add(lineNumber, buffer, start, end);
+            listener.onLine(lineNumber, buffer, start, end);
+        };
+        long selectedLineCount = scanner.scan(logFile, plan, collector, endState);
+        if (builder.previous != null) {
+            selectedLineCount += builder.previous.selectedLineCount;
+        }
+        if (builder.isTooLarge) {
+            remove(key);
+        } else {
+            long scannedLength = endState[0];
+            boolean isContinuable = endState[1] >= 0 && endsWithLineSeparator(logFile, scannedLength);
+            put(key, builder.build(scannedLength, lastModified, TrigramIndex.checksum(logFile, scannedLength),
+                    isContinuable, endState[1], endState[2], selectedLineCount));
+        }
+        return selectedLineCount;
+    }
+
+    /**
+     * @return Number of scans answered by the cache alone. The scans with a limit don't use the cache and are not
+     *         counted.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of scans that reused the cached lines and only scanned what was appended to the file.
+     */
+    public long getAppendCount() {
+        return appends.sum();
+    }
+
+    /**
+     * @return Number of scans of the whole file because nothing could be reused.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.getSize();
+        }
+        totalBytes += entry.getSize();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().getSize();
+            iterator.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous.getSize();
+        }
+    }
+
+    // A line may still be being written if the file doesn't end with a line separator, so the scan cannot continue
+    // from there.
+    private static boolean endsWithLineSeparator(File logFile, long length) throws IOException {
+        if (length == 0) {
+            return true;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "r")) {
+            randomAccessFile.seek(length - 1);
+            return randomAccessFile.read() == '\n';
+        }
+    }
+
+    /**
+     * Selected lines of a query in the first bytes of a file. An entry is not changed after it is created, so it can
+     * be replayed by several queries at the same time.
+     */
+    private static class Entry {
+        private final long length;
+        private final long lastModified;
+        private final long checksum;
+        private final boolean isContinuable;
+        private final long linesAtEnd;
+        private final long timestampAtEnd;
+        private final long selectedLineCount;
+        // The lines are stored one after another, and lineEnds has the end of each line.
+        private final byte[] lines;
+        private final int[] lineEnds;
+        private final long[] lineNumbers;
+        private final int lineCount;
+
+        Entry(long length, long lastModified, long checksum, boolean isContinuable, long linesAtEnd,
+              long timestampAtEnd, long selectedLineCount, byte[] lines, int[] lineEnds, long[] lineNumbers,
+              int lineCount) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.isContinuable = isContinuable;
+            this.linesAtEnd = linesAtEnd;
+            this.timestampAtEnd = timestampAtEnd;
+            this.selectedLineCount = selectedLineCount;
+            this.lines = lines;
+            this.lineEnds = lineEnds;
+            this.lineNumbers = lineNumbers;
+            this.lineCount = lineCount;
+        }
+
+        void replay(LineListener listener) {
+            if (listener == null) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines);
+            int start = 0;
+            for (int i = 0; i < lineCount; i++) {
+                listener.onLine(lineNumbers[i], buffer, start, lineEnds[i]);
+                start = lineEnds[i];
+            }
+        }
+
+        // Approximate memory used by the entry, including the key and the fields.
+        long getSize() {
+            return 256 + lines.length + 12L * lineEnds.length;
+        }
+    }
+
+    // Collect the selected lines for a new entry, starting from the lines of a previous entry.
+    private class EntryBuilder {
+        private final Entry previous;
+        private byte[] lines;
+        private int length;
+        private int[] lineEnds;
+        private long[] lineNumbers;
+        private int lineCount;
+        private boolean isTooLarge = false;
+
+        EntryBuilder(Entry previous) {
+            this.previous = previous;
+            if (previous == null) {
+                lines = new byte[1024];
+                lineEnds = new int[64];
+                lineNumbers = new long[64];
+            } else {
+                lines = Arrays.copyOf(previous.lines, Math.max(previous.lines.length, 1024));
+                length = previous.lineCount == 0 ? 0 : previous.lineEnds[previous.lineCount - 1];
+                lineEnds = Arrays.copyOf(previous.lineEnds, Math.max(previous.lineCount, 64));
+                lineNumbers = Arrays.copyOf(previous.lineNumbers, Math.max(previous.lineCount, 64));
+                lineCount = previous.lineCount;
+            }
+        }
+
+        void add(long lineNumber, ByteBuffer buffer, int start, int end) {
+            if (isTooLarge) {
+                return;
+            }
+            int lineLength = end - start;
+            if ((long) length + lineLength + 12L * (lineCount + 1) > maxEntryBytes) {
+                // Stop collecting. The result will not be cached.
+                isTooLarge = true;
+                lines = null;
+                lineEnds = null;
+                lineNumbers = null;
+                return;
+            }
+            if (length + lineLength > lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(lines.length * 2, length + lineLength));
+            }
+            for (int i = 0; i < lineLength; i++) {
+                lines[length + i] = buffer.get(start + i);
+            }
+            length += lineLength;
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+                lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+            }
+            lineEnds[lineCount] = length;
+            lineNumbers[lineCount] = lineNumber;
+            lineCount++;
+        }
+
+        Entry build(long scannedLength, long lastModified, long checksum, boolean isContinuable, long linesAtEnd,
+                    long timestampAtEnd, long selectedLineCount) {
+            return new Entry(scannedLength, lastModified, checksum, isContinuable, linesAtEnd, timestampAtEnd,
+                    selectedLineCount, Arrays.copyOf(lines, length), Arrays.copyOf(lineEnds, lineCount),
+                    Arrays.copyOf(lineNumbers, lineCount), lineCount);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matcher for a regex. The line is given to the regex as a CharSequence view of the bytes, so no String is created.
+ */
+public class RegexLineMatcher extends LineMatcher {
+    private final Pattern pattern;
+    // Matcher is not thread safe, so each thread keeps its own one and resets it for every line.
+    private final ThreadLocal<ByteCharSequence> threadLine = new ThreadLocal<>();
+    private final ThreadLocal<Matcher> threadMatcher = new ThreadLocal<>();
+
+    public RegexLineMatcher(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    @Override
+    public boolean matches(ByteBuffer buffer, int start, int end) {
+        ByteCharSequence line = threadLine.get();
+        Matcher matcher = threadMatcher.get();
+        if (line == null) {
+            line = new ByteCharSequence();
+            matcher = pattern.matcher(line);
+            threadLine.set(line);
+            threadMatcher.set(matcher);
+        }
+        line.reset(buffer, start, end);
+        return matcher.reset(line).find();
+    }
+}
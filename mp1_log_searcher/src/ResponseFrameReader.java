@@ -0,0 +1,163 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read the frames of a response written by ResponseFrameWriter. COMPRESSED_LINES frames are inflated, so the consumer
+ * gets the same lines whether the connection is compressed or not. The bytes read from the stream and the bytes of
+ * the lines are counted to see how much the compression saves.
+ */
+public class ResponseFrameReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    // Reused for the payload of each frame, and for the inflated lines. A buffer that grew for a long line is replaced
+    // by a small one after the frame.
+    private byte[] payload = new byte[BUFFER_SIZE];
+    private byte[] lines = new byte[BUFFER_SIZE];
+    private long receivedBytes = 0;
+    private long lineBytes = 0;
+
+    public ResponseFrameReader(DataInputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the frames of one response until its END frame.
+     *
+     * @param batchConsumer Called for each batch of lines.
+     * @return Number of lines in the response, as sent in the END frame.
+     * @throws IOException If the connection fails or a frame is invalid.
+     * @throws RuntimeException With the message of the server if it fails to run the query.
+     */
+    public long read(Consumer<List<String>> batchConsumer) throws IOException {
+        while (true) {
+            byte frameType = in.readByte();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (length > ResponseFrameWriter.MAX_FRAME_LENGTH) {
+                throw new IOException("Frame too large");
+            }
+            if (length > payload.length) {
+                payload = new byte[length];
+            }
+            in.readFully(payload, 0, length);
+            receivedBytes += 5 + length;
+            if (frameType == ResponseFrameWriter.FRAME_LINES) {
+                lineBytes += length;
+                batchConsumer.accept(splitLines(payload, length));
+                shrinkBuffers();
+            } else if (frameType == ResponseFrameWriter.FRAME_COMPRESSED_LINES) {
+                int linesLength = inflate(length);
+                lineBytes += linesLength;
+                batchConsumer.accept(splitLines(lines, linesLength));
+                shrinkBuffers();
+            } else if (frameType == ResponseFrameWriter.FRAME_END) {
+                if (length != 8) {
+                    throw new IOException("Invalid end frame length " + length);
+                }
+                return toLong(payload);
+            } else if (frameType == ResponseFrameWriter.FRAME_ERROR) {
+                throw new RuntimeException(new String(payload, 0, length, StandardCharsets.UTF_8));
+            } else {
+                throw new IOException("Unexpected frame type " + frameType);
+            }
+        }
+    }
+
+    // Inflate the payload of a COMPRESSED_LINES frame into the lines buffer and return the length of the lines.
+    private int inflate(int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("Invalid compressed frame");
+        }
+        int linesLength = (int) toLong(payload, 0, 4);
+        if (linesLength < 0) {
+            throw new IOException("Invalid compressed frame");
+        }
+        if (linesLength > ResponseFrameWriter.MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large");
+        }
+        if (linesLength > lines.length) {
+            lines = new byte[linesLength];
+        }
+        inflater.reset();
+        inflater.setInput(payload, 4, length - 4);
+        try {
+            int inflatedLength = 0;
+            while (inflatedLength < linesLength && !inflater.finished()) {
+                int count = inflater.inflate(lines, inflatedLength, linesLength - inflatedLength);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflatedLength += count;
+            }
+            if (inflatedLength != linesLength) {
+                throw new IOException("Invalid compressed frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return linesLength;
+    }
+
+    private void shrinkBuffers() {
+        if (payload.length > BUFFER_SIZE) {
+            payload = new byte[BUFFER_SIZE];
+        }
+        if (lines.length > BUFFER_SIZE) {
+            lines = new byte[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * @return Number of bytes of all the frames read so far.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * @return Number of bytes of the lines read so far, before they were compressed.
+     */
+    public long getLineBytes() {
+        return lineBytes;
+    }
+
+    // Release the memory of the inflater. The reader cannot be used after this.
+    public void close() {
+        inflater.end();
+    }
+
+    // Each line in the payload ends with '\n'.
+    private static List<String> splitLines(byte[] bytes, int length) {
+        List<String> lines = new ArrayList<>();
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                lines.add(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    private static long toLong(byte[] bytes) {
+        return toLong(bytes, 0, 8);
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
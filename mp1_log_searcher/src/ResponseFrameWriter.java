@@ -0,0 +1,164 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Write the response of a query as length-prefixed frames. Each frame is a type byte, a 4-byte length and the payload.
+ * Output lines are collected into a LINES frame that is sent when it is full or has waited too long, so the client gets
+ * the first lines while the server is still scanning and neither side holds the whole result.
+ *
+ * If the connection has negotiated compression (see FrameCompression), a batch is sent as a COMPRESSED_LINES frame
+ * when that makes it smaller.
+ */
+public class ResponseFrameWriter implements OutputLineConsumer {
+    // Payload: output lines, each followed by '\n'.
+    public static final byte FRAME_LINES = 1;
+    // Payload: 8-byte number of output lines. This is the last frame of a successful query.
+    public static final byte FRAME_END = 2;
+    // Payload: UTF-8 error message. This is the last frame of a failed query.
+    public static final byte FRAME_ERROR = 3;
+    // Payload: 4-byte length of the output lines, then the lines of a LINES frame compressed by deflate.
+    public static final byte FRAME_COMPRESSED_LINES = 4;
+
+    private static final int BATCH_SIZE = 64 * 1024;
+    // Largest payload of a frame, and of the lines of a COMPRESSED_LINES frame. A reader rejects a longer frame, so a
+    // corrupted length cannot make it allocate gigabytes.
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    // A longer line is cut, so its frame still fits in MAX_FRAME_LENGTH with the 4-byte length of a compressed frame.
+    private static final int MAX_LINE_LENGTH = MAX_FRAME_LENGTH - 5;
+    private static final long MAX_BATCH_DELAY_MS = 20;
+    // A smaller batch is not worth compressing.
+    private static final int MIN_COMPRESSED_LENGTH = 512;
+
+    private final DataOutputStream out;
+    // Null if the connection is not compressed.
+    private final Deflater deflater;
+    private byte[] compressed;
+    private byte[] batch = new byte[BATCH_SIZE];
+    private int batchLength = 0;
+    private long lastFlushTime;
+
+    public ResponseFrameWriter(DataOutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * @param out Stream of the connection.
+     * @param deflater Deflater of the connection to compress the batches, or null to send them as they are. It is
+     *                 reset for each batch and not ended by the writer.
+     */
+    public ResponseFrameWriter(DataOutputStream out, Deflater deflater) {
+        this.out = out;
+        this.deflater = deflater;
+        this.lastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Add an output line to the current batch. Socket errors are thrown as UncheckedIOException, since the line comes
+     * from a scanner callback.
+     */
+    @Override
+    public void accept(byte[] line, int length) {
+        try {
+            length = Math.min(length, MAX_LINE_LENGTH);
+            if (batchLength + length + 1 > batch.length) {
+                flushBatch();
+                if (length + 1 > batch.length) {
+                    // A very long line gets its own frame.
+                    batch = new byte[length + 1];
+                }
+            }
+            System.arraycopy(line, 0, batch, batchLength, length);
+            batchLength += length;
+            batch[batchLength++] = '\n';
+            if (System.currentTimeMillis() - lastFlushTime >= MAX_BATCH_DELAY_MS) {
+                flushBatch();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Send the remaining lines and the END frame.
+     *
+     * @param lineCount Total number of output lines of the query.
+     */
+    public void finish(long lineCount) throws IOException {
+        flushBatch();
+        out.writeByte(FRAME_END);
+        out.writeInt(8);
+        out.writeLong(lineCount);
+        out.flush();
+    }
+
+    /**
+     * Send the lines in the current batch now, like the new lines of a followed file.
+     */
+    public void flush() throws IOException {
+        flushBatch();
+    }
+
+    /**
+     * Send an empty LINES frame. It is sent while waiting for new lines to follow, so a closed connection is found even
+     * if no line is selected.
+     */
+    public void keepAlive() throws IOException {
+        flushBatch();
+        out.writeByte(FRAME_LINES);
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /**
+     * Send the remaining lines and an ERROR frame. The client will stop reading this response.
+     */
+    public void error(String message) throws IOException {
+        flushBatch();
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(FRAME_ERROR);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    private void flushBatch() throws IOException {
+        if (batchLength > 0) {
+            int compressedLength = deflater != null && batchLength >= MIN_COMPRESSED_LENGTH ? compressBatch() : -1;
+            if (compressedLength >= 0) {
+                out.writeByte(FRAME_COMPRESSED_LINES);
+                out.writeInt(4 + compressedLength);
+                out.writeInt(batchLength);
+                out.write(compressed, 0, compressedLength);
+            } else {
+                out.writeByte(FRAME_LINES);
+                out.writeInt(batchLength);
+                out.write(batch, 0, batchLength);
+            }
+            out.flush();
+            batchLength = 0;
+            if (batch.length > BATCH_SIZE) {
+                batch = new byte[BATCH_SIZE];
+            }
+        }
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    // Compress the batch into the compressed buffer. Return the compressed length, or -1 if it is not smaller.
+    private int compressBatch() {
+        if (compressed == null || compressed.length < batchLength) {
+            compressed = new byte[batchLength];
+        }
+        deflater.reset();
+        deflater.setInput(batch, 0, batchLength);
+        deflater.finish();
+        int compressedLength = 0;
+        // Stop when the output is as large as the input, since the lines would be sent as they are.
+        while (!deflater.finished() && compressedLength < batchLength - 4) {
+            compressedLength += deflater.deflate(compressed, compressedLength, batchLength - 4 - compressedLength);
+        }
+        return deflater.finished() ? compressedLength : -1;
+    }
+}
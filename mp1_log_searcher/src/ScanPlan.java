@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The byte ranges of a log file that LogScanner should scan. An index can leave out the ranges that cannot contain a
+ * match. Each range starts at the beginning of a line and ends after a line separator or at the end of the file.
+ */
+public class ScanPlan {
+    private final List<Range> ranges = new ArrayList<>();
+
+    /**
+     * @return A plan that scans the whole file.
+     */
+    public static ScanPlan wholeFile() {
+        ScanPlan plan = new ScanPlan();
+        plan.addRange(0, -1, 0);
+        return plan;
+    }
+
+    /**
+     * @param start Offset of the beginning of a line.
+     * @param linesBefore Number of lines in the file before the start.
+     * @param timestampBefore Timestamp of the last line with one before the start, or -1.
+     * @return A plan that scans from the start to the end of the file, like the part appended after a previous scan.
+     */
+    public static ScanPlan fromOffset(long start, long linesBefore, long timestampBefore) {
+        ScanPlan plan = new ScanPlan();
+        plan.ranges.add(new Range(start, -1, linesBefore, timestampBefore));
+        return plan;
+    }
+
+    /**
+     * Add a range after the existing ranges.
+     *
+     * @param start Offset of the first byte.
+     * @param end Offset after the last byte, or -1 for the end of the file.
+     * @param linesBefore Number of lines in the file before the start, used for the line numbers.
+     */
+    public void addRange(long start, long end, long linesBefore) {
+        ranges.add(new Range(start, end, linesBefore));
+    }
+
+    /**
+     * Keep only the parts of the ranges that are in [start, end).
+     *
+     * @param start Offset of the beginning of a line.
+     * @param end Offset of the beginning of a line, or -1 for the end of the file.
+     * @param linesBeforeStart Number of lines in the file before the start.
+     * @return A new plan.
+     */
+    public ScanPlan intersect(long start, long end, long linesBeforeStart) {
+        ScanPlan plan = new ScanPlan();
+        for (Range range : ranges) {
+            boolean isStartedBefore = range.start < start;
+            long newStart = isStartedBefore ? start : range.start;
+            long newEnd = range.end < 0 ? end : (end < 0 ? range.end : Math.min(range.end, end));
+            if (newEnd < 0 || newStart < newEnd) {
+                plan.addRange(newStart, newEnd, isStartedBefore ? linesBeforeStart : range.linesBefore);
+            }
+        }
+        return plan;
+    }
+
+    public List<Range> getRanges() {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * A range of bytes in the file.
+     */
+    public static class Range {
+        private final long start;
+        private final long end;
+        private final long linesBefore;
+        private final long timestampBefore;
+
+        public Range(long start, long end, long linesBefore) {
+            this(start, end, linesBefore, -1);
+        }
+
+        public Range(long start, long end, long linesBefore, long timestampBefore) {
+            this.start = start;
+            this.end = end;
+            this.linesBefore = linesBefore;
+            this.timestampBefore = timestampBefore;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getLinesBefore() {
+            return linesBefore;
+        }
+
+        // Timestamp for the lines at the start of the range that have none, or -1 if it is unknown.
+        public long getTimestampBefore() {
+            return timestampBefore;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Non-blocking server. One thread handles all the connections with a Selector, and the queries are run by a small pool
+ * of workers. An idle connection only costs a small read buffer instead of a thread, so thousands of clients can stay
+ * connected. The protocol is the same as SocketServer, except that "follow" is answered with an ERROR frame, since a
+ * followed file would keep a worker busy for as long as the client stays. The connections are counted in the same
+ * ServerMetrics.
+ *
+ * Each connection has a queue of frames to write. When a client reads slower than the server scans, the worker waits
+ * until the queue is drained below a limit, so a slow client cannot use up the memory. A connection is not read while
+ * its query runs, so a client that sends queries without reading the results is held back by TCP instead of having
+ * its queries queued in memory.
+ */
+public class SelectorLogServer {
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final int MAX_QUERY_LENGTH = 64 * 1024;
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+    // A connection is not read while this many queries are waiting, even if no query is running.
+    private static final int MAX_PENDING_QUERIES = 16;
+
+    private final int port;
+    private final QueryHandler queryHandler;
+    private final ExecutorService workers;
+    // Tasks from the workers that need to run on the selector thread, like changing the interest of a key.
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    public SelectorLogServer(int port) {
+        this(port, new QueryHandler(new File(QueryHandler.LOG_DIRECTORY), true, false));
+    }
+
+    /**
+     * @param port Port to listen on.
+     * @param queryHandler Runs the queries on the log files of the server.
+     */
+    public SelectorLogServer(int port, QueryHandler queryHandler) {
+        this.port = port;
+        this.queryHandler = queryHandler;
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "query-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        try {
+            selector = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Listening for a connection");
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        queryHandler.getMetrics().connectionOpened();
+        System.out.println("Received a connection ");
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * State of a client connection. The read side and the query queue are only used by the selector thread. The write
+     * queue is shared with the worker running the query, so it is guarded by the connection.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        private final Queue<String> pendingQueries = new ArrayDeque<>();
+        private boolean isQueryRunning = false;
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private boolean isClosed = false;
+        // Set by the compression command, and only used by the worker running the query of the connection.
+        private Deflater deflater;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Read the queries. Each query is a line, and the queries of a connection are run one by one.
+        void read() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    System.out.println("Connection closed");
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            int lineStart = 0;
+            for (int i = 0; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int lineEnd = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[lineEnd - lineStart];
+                    for (int j = 0; j < line.length; j++) {
+                        line[j] = readBuffer.get(lineStart + j);
+                    }
+                    pendingQueries.add(new String(line, StandardCharsets.UTF_8));
+                    lineStart = i + 1;
+                }
+            }
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_QUERY_LENGTH) {
+                    System.out.println("Query is too long, closing the connection");
+                    close();
+                    return;
+                }
+                ByteBuffer largerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                largerBuffer.put(readBuffer);
+                readBuffer = largerBuffer;
+            }
+            startNextQuery();
+            updateReadInterest();
+        }
+
+        // Run on the selector thread. Stop reading while a query runs or enough queries are waiting, and read again
+        // when the query is finished.
+        private void updateReadInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (isQueryRunning || pendingQueries.size() >= MAX_PENDING_QUERIES) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void startNextQuery() {
+            if (isQueryRunning || pendingQueries.isEmpty()) {
+                return;
+            }
+            isQueryRunning = true;
+            String query = pendingQueries.poll();
+            workers.submit(() -> runQuery(query));
+        }
+
+        // Run on a worker thread.
+        private void runQuery(String query) {
+            long start = System.currentTimeMillis();
+            DataOutputStream out = new DataOutputStream(new ConnectionOutputStream());
+            if (FrameCompression.isCommand(query)) {
+                negotiateCompression(query, out);
+                return;
+            }
+            ResponseFrameWriter frameWriter = new ResponseFrameWriter(out, deflater);
+            // A ping, a client asking whether the commands can be sent in the binary form, or the stats of the server.
+            if (query.equals(SocketClient.PING_COMMAND) || query.equals(GrepCommand.WIRE_COMMAND)
+                    || query.equals(ServerMetrics.COMMAND)) {
+                try {
+                    frameWriter.finish(query.equals(ServerMetrics.COMMAND) ? queryHandler.writeStats(frameWriter) : 0);
+                } catch (UncheckedIOException | IOException e) {
+                    // The connection is closed.
+                } finally {
+                    finishQuery();
+                }
+                return;
+            }
+            if (LogTailer.isCommand(query)) {
+                try {
+                    frameWriter.error("follow is not supported by the NIO server");
+                } catch (IOException e) {
+                    // The connection is closed.
+                } finally {
+                    finishQuery();
+                }
+                return;
+            }
+            try {
+                long lineCount = queryHandler.executeQuery(query,
+                        QueryHandler.getSingleFilePath(queryHandler.getLogDirectory()), frameWriter);
+                frameWriter.finish(lineCount);
+            } catch (UncheckedIOException | IOException e) {
+                // The connection is closed.
+            } catch (RuntimeException e) {
+                System.out.println("Failed to process the command " + query + ": " + e.getMessage());
+                try {
+                    frameWriter.error(String.valueOf(e.getMessage()));
+                } catch (IOException ignored) {
+                    // The connection is closed.
+                }
+            } finally {
+                System.out.println("Server takes " + (System.currentTimeMillis() - start)
+                        + " milliseconds to process the command");
+                finishQuery();
+            }
+        }
+
+        // Run on a worker thread. Answer with an END frame, or an ERROR frame if the compression is not supported.
+        private void negotiateCompression(String command, DataOutputStream out) {
+            ResponseFrameWriter frameWriter = new ResponseFrameWriter(out);
+            try {
+                try {
+                    int level = FrameCompression.parseCommand(command);
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                    deflater = FrameCompression.createDeflater(level);
+                    frameWriter.finish(0);
+                } catch (IllegalArgumentException e) {
+                    frameWriter.error(e.getMessage());
+                }
+            } catch (IOException e) {
+                // The connection is closed.
+            } finally {
+                finishQuery();
+            }
+        }
+
+        private void finishQuery() {
+            runOnSelector(() -> {
+                isQueryRunning = false;
+                if (isClosed) {
+                    endDeflater();
+                } else {
+                    startNextQuery();
+                    updateReadInterest();
+                }
+            });
+        }
+
+        // Run on the selector thread when no query is running, so the deflater is not in use.
+        private void endDeflater() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        // Called by the worker. Wait while too much is queued.
+        synchronized void enqueue(ByteBuffer data) throws IOException {
+            while (queuedBytes >= MAX_QUEUED_BYTES && !isClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (isClosed) {
+                throw new IOException("Connection closed");
+            }
+            writeQueue.add(data);
+            queuedBytes += data.remaining();
+            runOnSelector(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        synchronized void write() {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer data = writeQueue.peek();
+                    queuedBytes -= channel.write(data);
+                    if (data.hasRemaining()) {
+                        // The socket buffer is full. Continue when the channel is writable again.
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (writeQueue.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            notifyAll();
+        }
+
+        synchronized void close() {
+            if (!isClosed) {
+                queryHandler.getMetrics().connectionClosed();
+            }
+            isClosed = true;
+            writeQueue.clear();
+            notifyAll();
+            if (!isQueryRunning) {
+                endDeflater();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing else to do.
+            }
+        }
+
+        // Collect the bytes written by the frame writer and queue them when the frame is flushed.
+        private class ConnectionOutputStream extends OutputStream {
+            private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b) {
+                pendingBytes.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                pendingBytes.write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (pendingBytes.size() > 0) {
+                    enqueue(ByteBuffer.wrap(pendingBytes.toByteArray()));
+                    pendingBytes.reset();
+                }
+            }
+        }
+    }
+}
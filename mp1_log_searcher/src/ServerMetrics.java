@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a log server for capacity planning: the latency of the queries in a histogram, the bytes scanned, the
+ * lines returned and the connections. They are updated by the query threads without a lock.
+ *
+ * The report has one "name value" line for each counter, in the text format of Prometheus, so the same lines can be
+ * read by a person from the "stats" query or scraped from the HTTP endpoint. The rates over time are left to whoever
+ * reads the counters twice, except the scan speed, which is over the time spent in the queries.
+ */
+public class ServerMetrics {
+    public static final String COMMAND = "stats";
+    // Prefix of the name of every counter in the report.
+    public static final String PREFIX = "logsearch_";
+    // Upper bounds of the latency buckets in milliseconds. The last bucket has no bound.
+    static final long[] LATENCY_BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+    private static final double[] REPORTED_QUANTILES = {0.5, 0.9, 0.99};
+
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLongArray latencyCounts = new AtomicLongArray(LATENCY_BUCKET_MILLIS.length + 1);
+    private final LongAdder latencyNanosSum = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final LongAdder failedQueryCount = new LongAdder();
+    private final LongAdder cancelledQueryCount = new LongAdder();
+    private final LongAdder scannedBytes = new LongAdder();
+    private final LongAdder returnedLines = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder connectionCount = new LongAdder();
+
+    /**
+     * Record a query that has finished, failed or not.
+     *
+     * @param latencyNanos Time to run the query.
+     * @param scannedBytes Bytes of the log files that were scanned, after the index skipped what it could.
+     * @param returnedLines Number of output lines sent to the client.
+     */
+    public void recordQuery(long latencyNanos, long scannedBytes, long returnedLines) {
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKET_MILLIS.length && latencyMillis >= LATENCY_BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        latencyCounts.incrementAndGet(bucket);
+        latencyNanosSum.add(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        this.scannedBytes.add(scannedBytes);
+        this.returnedLines.add(returnedLines);
+    }
+
+    /**
+     * Count a query that failed, like one with an invalid pattern. Its latency is recorded by recordQuery.
+     */
+    public void recordFailure() {
+        failedQueryCount.increment();
+    }
+
+    /**
+     * Count a query that was stopped because the client closed the connection, like when its limit is reached.
+     */
+    public void recordCancellation() {
+        cancelledQueryCount.increment();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        connectionCount.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getQueryCount() {
+        long count = 0;
+        for (int i = 0; i < latencyCounts.length(); i++) {
+            count += latencyCounts.get(i);
+        }
+        return count;
+    }
+
+    public long getScannedBytes() {
+        return scannedBytes.sum();
+    }
+
+    public long getReturnedLines() {
+        return returnedLines.sum();
+    }
+
+    /**
+     * Estimate a quantile of the query latency from the histogram. Like the quantiles of Prometheus, the latencies in
+     * a bucket are taken as evenly spread between its bounds, but no further than the largest latency.
+     *
+     * @param quantile Between 0 and 1, like 0.99 for the 99th percentile.
+     * @return The latency in milliseconds, or 0 if there is no query.
+     */
+    public double getLatencyQuantileMillis(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile " + quantile + " is not between 0 and 1");
+        }
+        long[] counts = new long[latencyCounts.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double rank = quantile * total;
+        long countBefore = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && countBefore + counts[i] >= rank) {
+                double lower = i == 0 ? 0 : LATENCY_BUCKET_MILLIS[i - 1];
+                double maxMillis = maxLatencyNanos.get() / 1e6;
+                double upper = i < LATENCY_BUCKET_MILLIS.length
+                        ? Math.min(LATENCY_BUCKET_MILLIS[i], maxMillis) : maxMillis;
+                upper = Math.max(lower, upper);
+                return lower + (upper - lower) * (rank - countBefore) / counts[i];
+            }
+            countBefore += counts[i];
+        }
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    /**
+     * @return The counters of the server, one "name value" line for each.
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        add(lines, "uptime_seconds", (System.currentTimeMillis() - startMillis) / 1000);
+        add(lines, "active_connections", activeConnections.get());
+        add(lines, "connections_total", connectionCount.sum());
+        long queryCount = 0;
+        for (int i = 0; i < latencyCounts.length(); i++) {
+            queryCount += latencyCounts.get(i);
+            String bound = i < LATENCY_BUCKET_MILLIS.length ? String.valueOf(LATENCY_BUCKET_MILLIS[i]) : "+Inf";
+            // The buckets are cumulative like in Prometheus.
+            add(lines, "query_latency_milliseconds_bucket{le=\"" + bound + "\"}", queryCount);
+        }
+        long latencyNanos = latencyNanosSum.sum();
+        add(lines, "query_latency_milliseconds_sum", latencyNanos / 1e6);
+        add(lines, "query_latency_milliseconds_count", queryCount);
+        for (double quantile : REPORTED_QUANTILES) {
+            add(lines, "query_latency_milliseconds{quantile=\"" + quantile + "\"}",
+                    getLatencyQuantileMillis(quantile));
+        }
+        add(lines, "query_latency_milliseconds_max", maxLatencyNanos.get() / 1e6);
+        add(lines, "queries_total", queryCount);
+        add(lines, "queries_failed_total", failedQueryCount.sum());
+        add(lines, "queries_cancelled_total", cancelledQueryCount.sum());
+        long bytes = scannedBytes.sum();
+        add(lines, "scanned_bytes_total", bytes);
+        add(lines, "scanned_bytes_per_query_second", latencyNanos == 0 ? 0 : bytes * 1e9 / latencyNanos);
+        add(lines, "returned_lines_total", returnedLines.sum());
+        return lines;
+    }
+
+    /**
+     * Add the counters of a cache to a report.
+     *
+     * @param lines The report.
+     * @param name Name of the cache in the names of the counters.
+     * @param hits Lookups that found the entry.
+     * @param misses Lookups that did not.
+     */
+    public static void addCache(List<String> lines, String name, long hits, long misses) {
+        add(lines, name + "_hits_total", hits);
+        add(lines, name + "_misses_total", misses);
+        add(lines, name + "_hit_ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+    }
+
+    static void add(List<String> lines, String name, long value) {
+        lines.add(PREFIX + name + " " + value);
+    }
+
+    static void add(List<String> lines, String name, double value) {
+        lines.add(PREFIX + name + " " + String.format(Locale.ROOT, "%.3f", value));
+    }
+}
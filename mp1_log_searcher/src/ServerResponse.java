@@ -0,0 +1,83 @@
+import java.util.List;
+
+/**
+ * Data class for the response of a single server to a query.
+ */
+public class ServerResponse {
+    private final String serverIp;
+    private final List<String> lines;
+    private final long lineCount;
+    private final long count;
+    private final long latencyMillis;
+    private final String errorMessage;
+    private final boolean cancelled;
+    private final boolean timedOut;
+
+    public ServerResponse(String serverIp, List<String> lines, long lineCount, long count, long latencyMillis,
+                          String errorMessage) {
+        this(serverIp, lines, lineCount, count, latencyMillis, errorMessage, false);
+    }
+
+    public ServerResponse(String serverIp, List<String> lines, long lineCount, long count, long latencyMillis,
+                          String errorMessage, boolean cancelled) {
+        this(serverIp, lines, lineCount, count, latencyMillis, errorMessage, cancelled, false);
+    }
+
+    /**
+     * @param timedOut Whether the server was stopped because it missed its deadline. The lines and the count received
+     *                 before are kept.
+     */
+    public ServerResponse(String serverIp, List<String> lines, long lineCount, long count, long latencyMillis,
+                          String errorMessage, boolean cancelled, boolean timedOut) {
+        this.serverIp = serverIp;
+        this.lines = lines;
+        this.lineCount = lineCount;
+        this.count = count;
+        this.latencyMillis = latencyMillis;
+        this.errorMessage = errorMessage;
+        this.cancelled = cancelled;
+        this.timedOut = timedOut;
+    }
+
+    public String getServerIp() {
+        return serverIp;
+    }
+
+    // Lines returned by the server. Empty if the query failed on this server or the lines are streamed.
+    public List<String> getLines() {
+        return lines;
+    }
+
+    // Number of lines returned by the server, including the streamed lines. Lines over the limit of the query are not
+    // counted.
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    // Sum of the counts in the lines. Only set for a count query like "grep -c".
+    public long getCount() {
+        return count;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public boolean isFailed() {
+        return errorMessage != null;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    // Whether the server was stopped because the limit of the query was reached with the lines of other servers.
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Whether the server was stopped because it missed its deadline. Only the lines received before are returned.
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -1,57 +1,302 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 
 /**
- * Client class. It will connect to a server using port 8001, send the message,
- * and print out the responses received from server.
+ * Client class. It will connect to a server, using port 8001 by default, send the message,
+ * and read the response frames sent by the server. The compression of the responses
+ * is negotiated when the client connects, see FrameCompression.
  */
 public class SocketClient {
-    private PrintStream out;
-    private BufferedReader in;
-    Socket socket;
+    // Answered by the server with an empty response, to check that it is alive.
+    public static final String PING_COMMAND = "ping";
+    public static final int DEFAULT_PORT = 8001;
+    // A server that is off may not refuse the connection, so the connection is given up after this.
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    // Also used by stopFollowing from another thread.
+    private volatile PrintStream out;
+    private ResponseFrameReader reader;
+    volatile Socket socket;
     private final String serverIp;
+    private final int port;
+    private final int compressionLevel;
+    // Whether the server has accepted the compression of this connection.
+    private volatile boolean isCompressed = false;
+    // Whether the server reads the commands in the binary form of GrepCommand.
+    private volatile boolean isWireFormatSupported = false;
+    // Set by cancel() from another thread.
+    private volatile boolean isCancelled = false;
 
     public SocketClient(String serverIp) {
+        this(serverIp, FrameCompression.DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param serverIp Host of the server.
+     * @param compressionLevel Deflate level from 1 to 9 to ask the server for, or FrameCompression.NO_COMPRESSION.
+     */
+    public SocketClient(String serverIp, int compressionLevel) {
+        this(serverIp, DEFAULT_PORT, compressionLevel);
+    }
+
+    /**
+     * @param serverIp Host of the server.
+     * @param port Port of the server.
+     * @param compressionLevel Deflate level from 1 to 9 to ask the server for, or FrameCompression.NO_COMPRESSION.
+     */
+    public SocketClient(String serverIp, int port, int compressionLevel) {
         this.serverIp = serverIp;
+        this.port = port;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param address The server like "fa22-cs425-0501.cs.illinois.edu" or "127.0.0.1:8002". The port is 8001 if it
+     *                is not given.
+     * @param compressionLevel Deflate level from 1 to 9 to ask the server for, or FrameCompression.NO_COMPRESSION.
+     * @return A client that is not connected yet.
+     * @throws IllegalArgumentException If the port is not a valid number.
+     */
+    public static SocketClient forAddress(String address, int compressionLevel) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            return new SocketClient(address, compressionLevel);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in " + address);
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port in " + address);
+        }
+        return new SocketClient(address.substring(0, separator), port, compressionLevel);
     }
 
     public boolean start() {
-        System.out.println("Connecting to: " + serverIp);
+        System.out.println("Connecting to: " + getServerIp());
         try {
-            socket = new Socket(serverIp, 8001);
-            out = new PrintStream(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            connect();
             return true;
         } catch (Exception e) {
             // We don't print stack trace to keep the console clean.
             // It is expected to get an Exception when the server is off.
-            System.out.println("Failed to connect to " + serverIp);
+            System.out.println("Failed to connect to " + getServerIp());
+            return false;
+        }
+    }
+
+    private void connect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(serverIp, port), CONNECT_TIMEOUT_MILLIS);
+        out = new PrintStream(socket.getOutputStream(), true);
+        if (reader != null) {
+            reader.close();
+        }
+        reader = new ResponseFrameReader(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+        // A server that accepts the connection but never answers should not block the client.
+        socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        isCompressed = negotiateCompression();
+        isWireFormatSupported = negotiateWireFormat();
+        socket.setSoTimeout(0);
+    }
+
+    /**
+     * Check that the server answers within the timeout. The client connects again first if the connection is closed,
+     * like after the server missed the deadline of a query. Nothing is printed, so it can be called in the background.
+     *
+     * @param timeoutMillis How long to wait for the connection and for the answer.
+     * @return true if the server answered. The connection is closed otherwise.
+     */
+    public synchronized boolean ping(int timeoutMillis) {
+        try {
+            if (!isConnected()) {
+                connect();
+            }
+            socket.setSoTimeout(timeoutMillis);
+            out.println(PING_COMMAND);
+            try {
+                reader.read(batch -> { });
+            } catch (RuntimeException e) {
+                // An older server answers with an error, which still shows that it is alive.
+            }
+            socket.setSoTimeout(0);
+            return true;
+        } catch (IOException e) {
+            cancel();
+            return false;
+        }
+    }
+
+    // Whether the connection is open. It can still be broken if the server is off.
+    public boolean isConnected() {
+        Socket currentSocket = socket;
+        return currentSocket != null && currentSocket.isConnected() && !currentSocket.isClosed();
+    }
+
+    // Ask the server to compress the responses. A server that doesn't support it answers with an error.
+    private boolean negotiateCompression() throws IOException {
+        if (compressionLevel == FrameCompression.NO_COMPRESSION) {
+            return false;
+        }
+        out.println(FrameCompression.toCommand(compressionLevel));
+        try {
+            reader.read(batch -> { });
+            return true;
+        } catch (RuntimeException e) {
+            System.out.println(getServerIp() + " doesn't support compression: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Ask whether the server reads the commands in the binary form. A server that doesn't answers with an error, and
+    // gets the commands as grep commands instead.
+    private boolean negotiateWireFormat() throws IOException {
+        out.println(GrepCommand.WIRE_COMMAND);
+        try {
+            reader.read(batch -> { });
+            return true;
+        } catch (RuntimeException e) {
             return false;
         }
     }
 
+    /**
+     * @return The host of the server, followed by the port if it is not 8001, so the servers on one host can be told
+     * apart.
+     */
+    public String getServerIp() {
+        return port == DEFAULT_PORT ? serverIp : serverIp + ":" + port;
+    }
+
+    // Whether the responses on the current connection are compressed.
+    public boolean isCompressed() {
+        return isCompressed;
+    }
+
+    /**
+     * Should be called when no query is running.
+     *
+     * @return Number of bytes received on the current connection, and the number of bytes of the lines before they
+     * were compressed.
+     */
+    public long[] getTransferredBytes() {
+        return reader == null ? new long[2] : new long[]{reader.getReceivedBytes(), reader.getLineBytes()};
+    }
+
+    /**
+     * Stop the query that is running in sendMessage from another thread. The connection is closed, so the server stops
+     * when it sends the next lines, and a new connection is made for the next query.
+     */
+    public void cancel() {
+        isCancelled = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // The socket is closed anyway.
+        }
+    }
+
+    /**
+     * Send the message and collect all the response lines in a list.
+     */
     public List<String> sendMessage(String message) {
-        out.println(message);
         List<String> responses = new ArrayList<>();
-        try {
-            String singleLineResponse = in.readLine();
-            // singleLineResponse will be null if the server is disconnected.
-            if (singleLineResponse != null) {
-                // We will know how many lines to read based on this information.
-                int outputLineCount = Integer.parseInt(singleLineResponse);
-                for (int i = 0; i < outputLineCount; i++) {
-                    singleLineResponse = in.readLine();
-                    responses.add(singleLineResponse);
-                }
+        sendMessage(message, responses::addAll);
+        return responses;
+    }
+
+    /**
+     * Send the message and give the response lines to the consumer batch by batch as the server sends them. Only one
+     * batch is in memory at a time. Synchronized so that a query sent from another thread will not read the response
+     * of this query.
+     *
+     * @param message The grep command.
+     * @param batchConsumer Called for each batch of lines.
+     * @return Number of lines in the response.
+     * @throws RuntimeException If the server is disconnected or fails to run the command.
+     * @throws CancellationException If the query is stopped by cancel().
+     */
+    public synchronized long sendMessage(String message, Consumer<List<String>> batchConsumer) {
+        return send(message, null, batchConsumer);
+    }
+
+    /**
+     * Send a parsed command, in the binary form if the server supports it, and give the response lines to the
+     * consumer batch by batch like sendMessage.
+     *
+     * @param command The grep command.
+     * @param batchConsumer Called for each batch of lines.
+     * @return Number of lines in the response.
+     * @throws RuntimeException If the server is disconnected or fails to run the command.
+     * @throws CancellationException If the query is stopped by cancel().
+     */
+    public synchronized long sendQuery(GrepCommand command, Consumer<List<String>> batchConsumer) {
+        return send(null, command, batchConsumer);
+    }
+
+    /**
+     * Follow the new lines of the log files on the server until stopFollowing is called from another thread, like
+     * "tail -f | grep". The server sends the lines as they are appended, and an empty batch from time to time to check
+     * the connection.
+     *
+     * @param query The grep command, like "grep -i error".
+     * @param batchConsumer Called for each batch of new lines.
+     * @return Number of new lines sent by the server.
+     * @throws RuntimeException If the server is disconnected or cannot follow the command.
+     * @throws CancellationException If the connection is closed by cancel().
+     */
+    public synchronized long follow(String query, Consumer<List<String>> batchConsumer) {
+        return send(LogTailer.COMMAND + " " + query, null, batchConsumer);
+    }
+
+    /**
+     * Ask the server to stop following. follow returns once the server has sent the remaining lines.
+     */
+    public void stopFollowing() {
+        PrintStream currentOut = out;
+        if (currentOut != null) {
+            currentOut.println(LogTailer.STOP_COMMAND);
+        }
+    }
+
+    // Send the message, or the command in the form that the server reads once connected.
+    private long send(String message, GrepCommand command, Consumer<List<String>> batchConsumer) {
+        isCancelled = false;
+        if (!isConnected() && !start()) {
+            // cancel() closes the new connection if it is called while the client connects again.
+            if (isCancelled) {
+                throw new CancellationException("Cancelled by the client");
             }
+            throw new RuntimeException("Failed to connect to " + getServerIp());
+        }
+        if (command != null) {
+            message = isWireFormatSupported ? command.toWireLine() : command.toCommandLine();
+        }
+        out.println(message);
+        try {
+            return reader.read(batchConsumer);
         } catch (IOException e) {
+            if (isCancelled) {
+                throw new CancellationException("Cancelled by the client");
+            }
+            // The server is disconnected. The connection is closed, so the next query connects again.
+            cancel();
             throw new RuntimeException(e);
         }
-        return responses;
     }
 }
@@ -1,28 +1,87 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 
 /**
  * Main class as a server. This class will be able to handle multiple client
- * connections.
+ * connections. By default, each connection has its own thread. Run with "--nio"
+ * to use SelectorLogServer, which handles all the connections in one thread.
+ * The closed log files are compacted in the background, unless it is run with
+ * "--no-compaction". "--port <port>" and "--log-dir <directory>" change the
+ * port 8001 and the directory ./logFiles, so several servers can run on one host.
+ * "--stats-port <port>" also serves the stats of the server on http://localhost:<port>/stats.
+ * A large file is scanned on all the cores unless it is run with "--no-parallel-scan". It is
+ * always off with "--nio", since the queries already run on a worker for each core.
  */
 public class SocketMultipleServer {
+    private final int port;
+    private final QueryHandler queryHandler;
 
-    public static void main(String[] args) {
-        SocketMultipleServer server = new SocketMultipleServer();
+    public SocketMultipleServer() {
+        this(SocketClient.DEFAULT_PORT, new QueryHandler());
+    }
+
+    /**
+     * @param port Port to listen on.
+     * @param queryHandler Runs the queries on the log files of the server. It is shared by all the connections.
+     */
+    public SocketMultipleServer(int port, QueryHandler queryHandler) {
+        this.port = port;
+        this.queryHandler = queryHandler;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean isNio = false;
+        boolean isCompactionEnabled = true;
+        boolean isParallelScanEnabled = true;
+        int port = SocketClient.DEFAULT_PORT;
+        int statsPort = -1;
+        File logDirectory = new File(QueryHandler.LOG_DIRECTORY);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--nio")) {
+                isNio = true;
+            } else if (args[i].equals("--no-compaction")) {
+                isCompactionEnabled = false;
+            } else if (args[i].equals("--no-parallel-scan")) {
+                isParallelScanEnabled = false;
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--stats-port") && i + 1 < args.length) {
+                statsPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--log-dir") && i + 1 < args.length) {
+                logDirectory = new File(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!logDirectory.getPath().equals(QueryHandler.LOG_DIRECTORY) && !logDirectory.isDirectory()) {
+            throw new IllegalArgumentException(logDirectory + " is not a directory");
+        }
+        QueryHandler queryHandler = new QueryHandler(logDirectory, true, isParallelScanEnabled && !isNio);
+        if (isCompactionEnabled) {
+            queryHandler.startCompactor();
+        }
+        if (statsPort >= 0) {
+            new StatsHttpServer(statsPort, queryHandler).start();
+        }
+        if (isNio) {
+            new SelectorLogServer(port, queryHandler).start();
+            return;
+        }
+        SocketMultipleServer server = new SocketMultipleServer(port, queryHandler);
         server.start();
     }
 
     public void start() {
         try {
-            // Port hardcoded to 8001.
-            ServerSocket serverSocket = new ServerSocket(8001);
-            System.out.println("Listening for a connection");
+            ServerSocket serverSocket = new ServerSocket(port);
+            System.out.println("Listening for a connection on port " + port);
             while (true) {
-                new SocketServer(serverSocket.accept()).start();
+                new SocketServer(serverSocket.accept(), queryHandler).start();
                 System.out.println("Received a connection ");
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+}
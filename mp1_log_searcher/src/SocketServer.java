@@ -1,44 +1,81 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.zip.Deflater;
 
 /**
  * Server class. It will receive the message from client and handle the command.
- * The command will be run as a shell command directly.
+ * The response is streamed back to the client in frames written by ResponseFrameWriter.
+ * A "follow grep ..." command streams the new lines of the log files until the client
+ * sends "unfollow", see LogTailer. A "stats" command returns the counters of
+ * ServerMetrics, one line for each.
  */
 public class SocketServer extends Thread {
-    // Assume the log file is always in that location and has the same extension
-    private static final String LOG_DIRECTORY = "./logFiles/";
-    private static final String LOG_FILE_EXTENSION = ".log";
+    // How long the tailer waits for a change before the connection is checked with an empty frame.
+    private static final long FOLLOW_POLL_MILLIS = 1000;
 
     private final Socket clientSocket;
+    private final QueryHandler queryHandler;
 
     public SocketServer(Socket clientSocket) {
+        this(clientSocket, new QueryHandler());
+    }
+
+    /**
+     * @param clientSocket Connection of the client.
+     * @param queryHandler Runs the queries on the log files of the server.
+     */
+    public SocketServer(Socket clientSocket, QueryHandler queryHandler) {
         this.clientSocket = clientSocket;
+        this.queryHandler = queryHandler;
     }
 
     public void run() {
+        // Null until the client asks for compression.
+        Deflater deflater = null;
+        ServerMetrics metrics = queryHandler.getMetrics();
+        metrics.connectionOpened();
         try {
             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
 
             // Check log file in the folder. Add the path text to the beginning of each line
             // if there is only one file. File names will be added when there are multiple files.
-            String singleFilePath = getSingleFilePath();
-            QueryHandler queryHandler = new QueryHandler();
+            String singleFilePath = QueryHandler.getSingleFilePath(queryHandler.getLogDirectory());
 
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
+                if (FrameCompression.isCommand(inputLine)) {
+                    deflater = negotiateCompression(inputLine, out, deflater);
+                    continue;
+                }
+                // A ping, or a client asking whether the commands can be sent in the binary form.
+                if (inputLine.equals(SocketClient.PING_COMMAND) || inputLine.equals(GrepCommand.WIRE_COMMAND)) {
+                    new ResponseFrameWriter(out).finish(0);
+                    continue;
+                }
+                if (inputLine.equals(ServerMetrics.COMMAND)) {
+                    ResponseFrameWriter frameWriter = new ResponseFrameWriter(out, deflater);
+                    frameWriter.finish(queryHandler.writeStats(frameWriter));
+                    continue;
+                }
+                if (LogTailer.isCommand(inputLine)) {
+                    follow(inputLine, queryHandler.getLogDirectory(), in, out, deflater);
+                    continue;
+                }
                 long start = System.currentTimeMillis();
 
-                List<String> commandResults = queryHandler.getQueryResults(inputLine, singleFilePath);
-                // First, tell the client the number of lines will be printed.
-                out.println(commandResults.size());
-                for (String commandResult : commandResults) {
-                    out.println(commandResult);
+                // Lines are sent in frames while the files are being scanned.
+                ResponseFrameWriter frameWriter = new ResponseFrameWriter(out, deflater);
+                try {
+                    long lineCount = queryHandler.executeQuery(inputLine, singleFilePath, frameWriter);
+                    frameWriter.finish(lineCount);
+                } catch (UncheckedIOException e) {
+                    // The client is disconnected.
+                    throw e.getCause();
+                } catch (RuntimeException e) {
+                    System.out.println("Failed to process the command " + inputLine + ": " + e.getMessage());
+                    frameWriter.error(String.valueOf(e.getMessage()));
                 }
-                out.flush();
 
                 long finish = System.currentTimeMillis();
                 long timeElapsed = finish - start;
@@ -46,25 +83,75 @@ public class SocketServer extends Thread {
             }
             System.out.println("Connection closed");
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // The client closes the connection to cancel a query, like when the limit of the lines is reached.
+            System.out.println("Connection closed: " + e.getMessage());
+        } finally {
+            metrics.connectionClosed();
+            if (deflater != null) {
+                deflater.end();
+            }
         }
     }
 
-    // Return the file path if there is only one file with expected format under
-    // the directory. Otherwise, return null.
-    private String getSingleFilePath() {
-        File[] allFiles = new File(LOG_DIRECTORY).listFiles();
-        List<String> output = new ArrayList<>();
-        if (allFiles != null) {
-            for (File file : allFiles) {
-                if (file.getName().endsWith(LOG_FILE_EXTENSION)) {
-                    output.add(file.getPath());
+    // Stream the new selected lines until the client sends the stop command, then send the END frame with the number
+    // of lines. The connection is checked with an empty frame when there is no new line.
+    private static void follow(String command, File logDirectory, BufferedReader in, DataOutputStream out,
+                               Deflater deflater) throws IOException {
+        ResponseFrameWriter frameWriter = new ResponseFrameWriter(out, deflater);
+        LogTailer tailer;
+        try {
+            tailer = new LogTailer(logDirectory, LogTailer.parseCommand(command));
+            tailer.start();
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println("Failed to follow " + command + ": " + e.getMessage());
+            frameWriter.error(String.valueOf(e.getMessage()));
+            return;
+        }
+        System.out.println("Following " + command);
+        long lineCount = 0;
+        try {
+            // The client only sends the stop command while following.
+            while (!in.ready()) {
+                long newLineCount = tailer.poll(FOLLOW_POLL_MILLIS, frameWriter);
+                if (newLineCount > 0) {
+                    frameWriter.flush();
+                } else {
+                    frameWriter.keepAlive();
                 }
+                lineCount += newLineCount;
             }
+            String stopCommand = in.readLine();
+            if (!LogTailer.STOP_COMMAND.equals(stopCommand)) {
+                frameWriter.error("Expected " + LogTailer.STOP_COMMAND + " instead of " + stopCommand);
+                return;
+            }
+            frameWriter.finish(lineCount);
+            System.out.println("Stopped following after " + lineCount + " lines");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frameWriter.error("The server is stopped");
+        } finally {
+            tailer.close();
         }
-        if (output.size() == 1) {
-            return output.get(0);
+    }
+
+    // Answer the compression command with an END frame, or an ERROR frame if it is not supported. Return the deflater
+    // for the next responses.
+    private static Deflater negotiateCompression(String command, DataOutputStream out, Deflater deflater)
+            throws IOException {
+        ResponseFrameWriter frameWriter = new ResponseFrameWriter(out);
+        try {
+            int level = FrameCompression.parseCommand(command);
+            if (deflater != null) {
+                deflater.end();
+            }
+            deflater = FrameCompression.createDeflater(level);
+            frameWriter.finish(0);
+        } catch (IllegalArgumentException e) {
+            frameWriter.error(e.getMessage());
         }
-        return null;
+        return deflater;
     }
 }
\ No newline at end of file
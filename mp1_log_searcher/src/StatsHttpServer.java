@@ -0,0 +1,67 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local HTTP endpoint with the stats of a log server, so they can be read with curl or scraped by a monitoring system
+ * while the server is running. "GET /stats" returns the same lines as the "stats" query as plain text. It only listens
+ * on the loopback address, since there is no authentication.
+ */
+public class StatsHttpServer {
+    public static final String PATH = "/stats";
+
+    private final HttpServer server;
+    private final QueryHandler queryHandler;
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     * @param queryHandler Handler whose stats are returned.
+     */
+    public StatsHttpServer(int port, QueryHandler queryHandler) throws IOException {
+        this.queryHandler = queryHandler;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+    }
+
+    /**
+     * Start answering the requests on a background thread.
+     */
+    public void start() {
+        server.start();
+        System.out.println("Stats are served on http://localhost:" + getPort() + PATH);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder body = new StringBuilder();
+            for (String line : queryHandler.getStats()) {
+                body.append(line).append('\n');
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
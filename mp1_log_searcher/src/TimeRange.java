@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Time range of a query given by --since and --until. Log lines start with a timestamp like "[2022-09-24 17:46:19]",
+ * which is the format of the loggers in the cluster. Timestamps are compared as numbers like 20220924174619.
+ */
+public class TimeRange {
+    private static final int TIMESTAMP_LENGTH = "[yyyy-MM-dd HH:mm:ss]".length();
+    private static final int TIMESTAMP_DIGITS = 14;
+
+    private final long since;
+    private final long until;
+
+    /**
+     * @param since The earliest timestamp as a number, inclusive.
+     * @param until The latest timestamp as a number, inclusive.
+     */
+    public TimeRange(long since, long until) {
+        this.since = since;
+        this.until = until;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    public boolean contains(long timestamp) {
+        return timestamp >= since && timestamp <= until;
+    }
+
+    /**
+     * Parse a timestamp given by the user, like "2022-09-24 17:46:19" or "2022-09-24T17:46". The missing parts at the
+     * end are filled with the smallest value for --since, and with the largest value for --until, so that
+     * "--until 2022-09-24 17:46" includes the whole minute.
+     *
+     * @throws IllegalArgumentException If it is not a valid timestamp.
+     */
+    public static long parseTimestamp(String value, boolean isUpperBound) {
+        StringBuilder digits = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c != '-' && c != ' ' && c != 'T' && c != ':') {
+                throw new IllegalArgumentException("Invalid timestamp " + value);
+            }
+        }
+        if (digits.length() < 4 || digits.length() > TIMESTAMP_DIGITS) {
+            throw new IllegalArgumentException("Invalid timestamp " + value);
+        }
+        while (digits.length() < TIMESTAMP_DIGITS) {
+            digits.append(isUpperBound ? '9' : '0');
+        }
+        return Long.parseLong(digits.toString());
+    }
+
+    /**
+     * Read the timestamp at the beginning of a line.
+     *
+     * @return The timestamp as a number, or -1 if the line does not start with a timestamp.
+     */
+    public static long parseLineTimestamp(ByteBuffer buffer, int start, int end) {
+        if (end - start < TIMESTAMP_LENGTH || buffer.get(start) != '['
+                || buffer.get(start + TIMESTAMP_LENGTH - 1) != ']') {
+            return -1;
+        }
+        long timestamp = 0;
+        // Positions of the separators in "yyyy-MM-dd HH:mm:ss" are 4, 7, 10, 13 and 16.
+        for (int i = 0; i < TIMESTAMP_LENGTH - 2; i++) {
+            byte b = buffer.get(start + 1 + i);
+            if (i == 4 || i == 7 || i == 10 || i == 13 || i == 16) {
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        return timestamp;
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Sparse index from the timestamps of a log file to byte offsets. About every 64 KB, the first line that starts with
+ * a timestamp is recorded with its offset and the number of lines before it. A query with a time range only scans the
+ * part of the file between the entries around the range.
+ *
+ * We assume the timestamps in a log file never go backwards, which is true for the files written by a FileHandler.
+ */
+public class TimestampIndex {
+    private static final int INTERVAL = 64 * 1024;
+    private static final int MAGIC = 0x54535831; // "TSX1"
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    private final long indexedLength;
+    private final long checksum;
+    private final long totalLines;
+    private final long[] timestamps;
+    private final long[] offsets;
+    private final long[] linesBefore;
+
+    private TimestampIndex(long indexedLength, long checksum, long totalLines, long[] timestamps, long[] offsets,
+                           long[] linesBefore) {
+        this.indexedLength = indexedLength;
+        this.checksum = checksum;
+        this.totalLines = totalLines;
+        this.timestamps = timestamps;
+        this.offsets = offsets;
+        this.linesBefore = linesBefore;
+    }
+
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    /**
+     * Check that the index still describes the beginning of the log file, in the same way as TrigramIndex.
+     */
+    public boolean isValidFor(File logFile) throws IOException {
+        return logFile.length() >= indexedLength && TrigramIndex.checksum(logFile, indexedLength) == checksum;
+    }
+
+    /**
+     * Limit the plan to the part of the file that can have lines in the time range.
+     */
+    public ScanPlan restrict(ScanPlan plan, TimeRange timeRange) {
+        // Lines before the last entry that is earlier than the range are all earlier than the range.
+        long start = 0;
+        long startLinesBefore = 0;
+        int lastEarlierEntry = firstEntryAfter(timeRange.getSince() - 1) - 1;
+        if (lastEarlierEntry >= 0) {
+            start = offsets[lastEarlierEntry];
+            startLinesBefore = linesBefore[lastEarlierEntry];
+        }
+        // Lines from the first entry that is later than the range are all later than the range.
+        long end = -1;
+        int firstLaterEntry = firstEntryAfter(timeRange.getUntil());
+        if (firstLaterEntry < timestamps.length) {
+            end = offsets[firstLaterEntry];
+        }
+        return plan.intersect(start, end, startLinesBefore);
+    }
+
+    // Index of the first entry with a timestamp larger than the value.
+    private int firstEntryAfter(long value) {
+        int low = 0;
+        int high = timestamps.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Load an index file.
+     */
+    public static TimestampIndex load(File indexFile) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a timestamp index " + indexFile);
+            }
+            long indexedLength = buffer.getLong();
+            long checksum = buffer.getLong();
+            long totalLines = buffer.getLong();
+            int entryCount = buffer.getInt();
+            long[] timestamps = new long[entryCount];
+            long[] offsets = new long[entryCount];
+            long[] linesBefore = new long[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                timestamps[i] = buffer.getLong();
+                offsets[i] = buffer.getLong();
+                linesBefore[i] = buffer.getLong();
+            }
+            return new TimestampIndex(indexedLength, checksum, totalLines, timestamps, offsets, linesBefore);
+        }
+    }
+
+    /**
+     * Build the index of a log file and write it to the index file. Only complete lines are indexed.
+     *
+     * @param logFile The log file.
+     * @param indexFile Where to write the index. It is replaced atomically.
+     * @param previous A valid index of the same file. Only the part after it will be read. It can be null.
+     */
+    public static void build(File logFile, File indexFile, TimestampIndex previous) throws IOException {
+        int entryCount = 0;
+        long[] timestamps = new long[64];
+        long[] offsets = new long[64];
+        long[] linesBefore = new long[64];
+        long lineCount = 0;
+        long start = 0;
+        long lastEntryOffset = -INTERVAL;
+        if (previous != null) {
+            entryCount = previous.timestamps.length;
+            timestamps = Arrays.copyOf(previous.timestamps, Math.max(64, entryCount * 2));
+            offsets = Arrays.copyOf(previous.offsets, timestamps.length);
+            linesBefore = Arrays.copyOf(previous.linesBefore, timestamps.length);
+            lineCount = previous.totalLines;
+            start = previous.indexedLength;
+            if (entryCount > 0) {
+                lastEntryOffset = offsets[entryCount - 1];
+            }
+        }
+
+        long indexedLength = start;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            long size = channel.size();
+            long position = start;
+            while (position < size) {
+                long length = Math.min(REGION_SIZE, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) != '\n') {
+                        continue;
+                    }
+                    long lineOffset = position + lineStart;
+                    if (lineOffset - lastEntryOffset >= INTERVAL) {
+                        long timestamp = TimeRange.parseLineTimestamp(buffer, lineStart, i);
+                        if (timestamp >= 0) {
+                            if (entryCount == timestamps.length) {
+                                timestamps = Arrays.copyOf(timestamps, entryCount * 2);
+                                offsets = Arrays.copyOf(offsets, entryCount * 2);
+                                linesBefore = Arrays.copyOf(linesBefore, entryCount * 2);
+                            }
+                            timestamps[entryCount] = timestamp;
+                            offsets[entryCount] = lineOffset;
+                            linesBefore[entryCount] = lineCount;
+                            entryCount++;
+                            lastEntryOffset = lineOffset;
+                        }
+                    }
+                    lineCount++;
+                    lineStart = i + 1;
+                }
+                boolean isLastRegion = position + length >= size;
+                if (lineStart == 0 && !isLastRegion) {
+                    // No complete line in the region. Such a long line is not expected in a log file.
+                    throw new IOException("Line is too long at offset " + position);
+                }
+                position += lineStart;
+                indexedLength = position;
+                if (isLastRegion) {
+                    // The rest of the file is an incomplete line.
+                    break;
+                }
+            }
+        }
+
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(indexedLength);
+            out.writeLong(TrigramIndex.checksum(logFile, indexedLength));
+            out.writeLong(lineCount);
+            out.writeInt(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                out.writeLong(timestamps[i]);
+                out.writeLong(offsets[i]);
+                out.writeLong(linesBefore[i]);
+            }
+        }
+        Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
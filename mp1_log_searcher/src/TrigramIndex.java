@@ -0,0 +1,410 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Trigram index of a log file. The file is split into blocks of complete lines, and each trigram (3 consecutive bytes
+ * in a line, with ASCII letters in lower case) has a posting list of the blocks that contain it. A query only needs to
+ * scan the blocks that contain all the trigrams of its pattern.
+ *
+ * The index file has a header with the indexed length and a checksum of the beginning of the log file, the block
+ * table, the sorted trigram table, and the posting lists as delta-encoded varints. The posting lists are read from the
+ * memory-mapped index file, so only the tables are loaded into memory.
+ */
+public class TrigramIndex {
+    public static final int BLOCK_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x54524931; // "TRI1"
+    private static final int CHECKSUM_LENGTH = 4096;
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    private final long indexedLength;
+    private final long checksum;
+    private final long[] blockStarts;
+    // Number of lines before each block. The last element is the number of lines in the indexed part.
+    private final long[] linesBeforeBlock;
+    private final int[] trigrams;
+    private final int[] postingCounts;
+    private final int[] postingOffsets;
+    private final ByteBuffer postings;
+
+    private TrigramIndex(long indexedLength, long checksum, long[] blockStarts, long[] linesBeforeBlock,
+                         int[] trigrams, int[] postingCounts, int[] postingOffsets, ByteBuffer postings) {
+        this.indexedLength = indexedLength;
+        this.checksum = checksum;
+        this.blockStarts = blockStarts;
+        this.linesBeforeBlock = linesBeforeBlock;
+        this.trigrams = trigrams;
+        this.postingCounts = postingCounts;
+        this.postingOffsets = postingOffsets;
+        this.postings = postings;
+    }
+
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    public int getBlockCount() {
+        return blockStarts.length;
+    }
+
+    /**
+     * Check that the index still describes the beginning of the log file. Log files are only appended, so the index
+     * is valid as long as the file is not shorter and its first bytes are the same.
+     */
+    public boolean isValidFor(File logFile) throws IOException {
+        return logFile.length() >= indexedLength && checksum(logFile, indexedLength) == checksum;
+    }
+
+    /**
+     * Plan the ranges to scan for a query. The part of the file after the indexed length is always scanned.
+     *
+     * @param anyOfTrigramSets A line can only match if it contains all the trigrams of at least one of the sets.
+     * @return Ranges of the candidate blocks and the part that is not indexed.
+     */
+    public ScanPlan plan(List<int[]> anyOfTrigramSets) {
+        BitSet candidateBlocks = new BitSet(blockStarts.length);
+        for (int[] trigramSet : anyOfTrigramSets) {
+            int[] blocks = null;
+            for (int trigram : trigramSet) {
+                int[] postingList = getPostingList(trigram);
+                blocks = blocks == null ? postingList : intersect(blocks, postingList);
+                if (blocks.length == 0) {
+                    break;
+                }
+            }
+            if (blocks == null) {
+                // No trigram in the set, so every block is a candidate.
+                candidateBlocks.set(0, blockStarts.length);
+            } else {
+                for (int block : blocks) {
+                    candidateBlocks.set(block);
+                }
+            }
+        }
+
+        ScanPlan plan = new ScanPlan();
+        int block = candidateBlocks.nextSetBit(0);
+        while (block >= 0) {
+            // Merge the consecutive blocks into one range.
+            int endBlock = candidateBlocks.nextClearBit(block);
+            long end = endBlock < blockStarts.length ? blockStarts[endBlock] : indexedLength;
+            plan.addRange(blockStarts[block], end, linesBeforeBlock[block]);
+            block = endBlock < blockStarts.length ? candidateBlocks.nextSetBit(endBlock) : -1;
+        }
+        plan.addRange(indexedLength, -1, linesBeforeBlock[blockStarts.length]);
+        return plan;
+    }
+
+    private int[] getPostingList(int trigram) {
+        int index = Arrays.binarySearch(trigrams, trigram);
+        if (index < 0) {
+            return new int[0];
+        }
+        int[] postingList = new int[postingCounts[index]];
+        int[] position = {postingOffsets[index]};
+        int block = 0;
+        for (int i = 0; i < postingList.length; i++) {
+            block += readVarint(postings, position);
+            postingList[i] = block;
+        }
+        return postingList;
+    }
+
+    private static int[] intersect(int[] first, int[] second) {
+        int[] result = new int[Math.min(first.length, second.length)];
+        int length = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[length++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Load an index file. The posting lists stay in the mapped file.
+     */
+    public static TrigramIndex load(File indexFile) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a trigram index " + indexFile);
+            }
+            long indexedLength = buffer.getLong();
+            long checksum = buffer.getLong();
+            int blockCount = buffer.getInt();
+            long[] blockStarts = new long[blockCount];
+            long[] linesBeforeBlock = new long[blockCount + 1];
+            for (int i = 0; i < blockCount; i++) {
+                blockStarts[i] = buffer.getLong();
+                linesBeforeBlock[i + 1] = linesBeforeBlock[i] + buffer.getInt();
+            }
+            int trigramCount = buffer.getInt();
+            int[] trigrams = new int[trigramCount];
+            int[] postingCounts = new int[trigramCount];
+            int[] postingOffsets = new int[trigramCount];
+            for (int i = 0; i < trigramCount; i++) {
+                trigrams[i] = buffer.getInt();
+                postingCounts[i] = buffer.getInt();
+                postingOffsets[i] = buffer.getInt();
+            }
+            ByteBuffer postings = buffer.slice();
+            return new TrigramIndex(indexedLength, checksum, blockStarts, linesBeforeBlock, trigrams, postingCounts,
+                    postingOffsets, postings);
+        }
+    }
+
+    /**
+     * Build the index of a log file and write it to the index file. Only complete lines are indexed.
+     *
+     * @param logFile The log file.
+     * @param indexFile Where to write the index. It is replaced atomically.
+     * @param previous A valid index of the same file. Only the part after it will be read. It can be null.
+     */
+    public static void build(File logFile, File indexFile, TrigramIndex previous) throws IOException {
+        Map<Integer, PostingListBuilder> postingLists = new HashMap<>();
+        LongList blockStarts = new LongList();
+        LongList blockLineCounts = new LongList();
+        long start = 0;
+        if (previous != null) {
+            for (int i = 0; i < previous.blockStarts.length; i++) {
+                blockStarts.add(previous.blockStarts[i]);
+                blockLineCounts.add(previous.linesBeforeBlock[i + 1] - previous.linesBeforeBlock[i]);
+            }
+            for (int trigram : previous.trigrams) {
+                PostingListBuilder builder = new PostingListBuilder();
+                for (int block : previous.getPostingList(trigram)) {
+                    builder.add(block);
+                }
+                postingLists.put(trigram, builder);
+            }
+            start = previous.indexedLength;
+        }
+
+        long indexedLength;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            indexedLength = lastLineEnd(channel, start);
+            BitSet blockTrigramSet = new BitSet(1 << 24);
+            IntList blockTrigrams = new IntList();
+            long blockStart = start;
+            long blockLineCount = 0;
+            int trigram = 0;
+            int lineLength = 0;
+            long position = start;
+            while (position < indexedLength) {
+                long length = Math.min(REGION_SIZE, indexedLength - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        lineLength = 0;
+                        blockLineCount++;
+                        long blockEnd = position + i + 1;
+                        if (blockEnd - blockStart >= BLOCK_SIZE || blockEnd == indexedLength) {
+                            int block = blockStarts.size();
+                            for (int j = 0; j < blockTrigrams.size(); j++) {
+                                int blockTrigram = blockTrigrams.get(j);
+                                PostingListBuilder builder = postingLists.get(blockTrigram);
+                                if (builder == null) {
+                                    builder = new PostingListBuilder();
+                                    postingLists.put(blockTrigram, builder);
+                                }
+                                builder.add(block);
+                                blockTrigramSet.clear(blockTrigram);
+                            }
+                            blockTrigrams.clear();
+                            blockStarts.add(blockStart);
+                            blockLineCounts.add(blockLineCount);
+                            blockStart = blockEnd;
+                            blockLineCount = 0;
+                        }
+                        continue;
+                    }
+                    trigram = ((trigram << 8) | toLowerCase(b)) & 0xffffff;
+                    lineLength++;
+                    if (lineLength >= 3 && !blockTrigramSet.get(trigram)) {
+                        blockTrigramSet.set(trigram);
+                        blockTrigrams.add(trigram);
+                    }
+                }
+                position += length;
+            }
+        }
+        write(indexFile, indexedLength, checksum(logFile, indexedLength), blockStarts, blockLineCounts, postingLists);
+    }
+
+    private static void write(File indexFile, long indexedLength, long checksum, LongList blockStarts,
+                              LongList blockLineCounts, Map<Integer, PostingListBuilder> postingLists)
+            throws IOException {
+        int[] sortedTrigrams = new int[postingLists.size()];
+        int index = 0;
+        for (int trigram : postingLists.keySet()) {
+            sortedTrigrams[index++] = trigram;
+        }
+        Arrays.sort(sortedTrigrams);
+
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(indexedLength);
+            out.writeLong(checksum);
+            out.writeInt(blockStarts.size());
+            for (int i = 0; i < blockStarts.size(); i++) {
+                out.writeLong(blockStarts.get(i));
+                out.writeInt((int) blockLineCounts.get(i));
+            }
+            out.writeInt(sortedTrigrams.length);
+            int offset = 0;
+            for (int trigram : sortedTrigrams) {
+                PostingListBuilder builder = postingLists.get(trigram);
+                out.writeInt(trigram);
+                out.writeInt(builder.count);
+                out.writeInt(offset);
+                offset += builder.length;
+            }
+            for (int trigram : sortedTrigrams) {
+                PostingListBuilder builder = postingLists.get(trigram);
+                out.write(builder.bytes, 0, builder.length);
+            }
+        }
+        Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Offset after the last line separator of the file, or the start if there is no complete line after it.
+    private static long lastLineEnd(FileChannel channel, long start) throws IOException {
+        long end = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (end > start) {
+            long readStart = Math.max(start, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - readStart));
+            channel.read(buffer, readStart);
+            for (int i = (int) (end - readStart) - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return readStart + i + 1;
+                }
+            }
+            end = readStart;
+        }
+        return start;
+    }
+
+    // CRC32 of the first bytes of the file, so that a new file with the same name is not searched with an old index.
+    static long checksum(File logFile, long indexedLength) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "r")) {
+            byte[] bytes = new byte[(int) Math.min(CHECKSUM_LENGTH, indexedLength)];
+            randomAccessFile.readFully(bytes);
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes);
+            return crc32.getValue();
+        }
+    }
+
+    static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    private static int readVarint(ByteBuffer buffer, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get(position[0]++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    // Posting list of one trigram while building, kept as delta-encoded varints.
+    private static class PostingListBuilder {
+        private byte[] bytes = new byte[4];
+        private int length = 0;
+        private int count = 0;
+        private int lastBlock = 0;
+
+        void add(int block) {
+            int delta = block - lastBlock;
+            lastBlock = block;
+            count++;
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((delta & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private static class LongList {
+        private long[] values = new long[64];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Find the trigrams that a line must contain to match a grep pattern. Only the literal parts of the pattern are used,
+ * and anything we are not sure about (groups, character classes, optional characters) just ends a literal part, so the
+ * result never rules out a line that can match.
+ */
+public class TrigramQueryPlanner {
+    // Tokens of a pattern. Literal bytes are stored as their value, which is never negative.
+    private static final int ANY = -1; // Matches one unknown character, like "." or "[a-z]".
+    private static final int ANCHOR = -2; // Matches no character, like "^", "$" or "\b".
+    private static final int OPTIONAL = -3; // "*", "?" or a "{0,n}" interval after a token.
+    private static final int REPEAT = -4; // "+" or a "{m,n}" interval with m > 0 after a token.
+    private static final int GROUP_START = -5;
+    private static final int GROUP_END = -6;
+    private static final int ALTERNATION = -7;
+
+    /**
+     * @param pattern Pattern in the grep syntax.
+     * @param extendedRegex Whether the pattern is an extended regex (-E).
+     * @return A line can only match if it contains all the trigrams of at least one of the sets. Null if the pattern
+     * has no trigram that can be used.
+     */
+    public static List<int[]> requiredTrigrams(String pattern, boolean extendedRegex) {
+        List<Integer> tokens = tokenize(pattern.getBytes(StandardCharsets.UTF_8), extendedRegex);
+        if (tokens == null) {
+            return null;
+        }
+        List<int[]> trigramSets = new ArrayList<>();
+        // Split by the alternations that are not in a group. A line needs to match only one of the branches.
+        int depth = 0;
+        int branchStart = 0;
+        for (int i = 0; i <= tokens.size(); i++) {
+            int token = i < tokens.size() ? tokens.get(i) : ALTERNATION;
+            if (token == GROUP_START) {
+                depth++;
+            } else if (token == GROUP_END) {
+                depth--;
+            } else if (token == ALTERNATION && depth == 0) {
+                int[] trigrams = branchTrigrams(tokens.subList(branchStart, i));
+                if (trigrams.length == 0) {
+                    // This branch can match without any trigram.
+                    return null;
+                }
+                trigramSets.add(trigrams);
+                branchStart = i + 1;
+            }
+        }
+        return trigramSets;
+    }
+
+    /**
+     * @param patterns Patterns in the grep syntax. A line matches if it matches any of them.
+     * @param extendedRegex Whether the patterns are extended regexes (-E).
+     * @return A line can only match if it contains all the trigrams of at least one of the sets. Null if a pattern
+     * has no trigram that can be used.
+     */
+    public static List<int[]> requiredTrigrams(List<String> patterns, boolean extendedRegex) {
+        List<int[]> trigramSets = new ArrayList<>();
+        for (String pattern : patterns) {
+            List<int[]> patternTrigramSets = requiredTrigrams(pattern, extendedRegex);
+            if (patternTrigramSets == null) {
+                return null;
+            }
+            trigramSets.addAll(patternTrigramSets);
+        }
+        return trigramSets;
+    }
+
+    // Collect the trigrams of the literal parts in a branch without alternation at the top level.
+    private static int[] branchTrigrams(List<Integer> tokens) {
+        Set<Integer> trigrams = new LinkedHashSet<>();
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < tokens.size()) {
+            int token = tokens.get(i);
+            int next = i + 1 < tokens.size() ? tokens.get(i + 1) : ANCHOR;
+            if (token == GROUP_START) {
+                // Skip the whole group. It may contain alternations.
+                addTrigrams(literal, trigrams);
+                int depth = 0;
+                do {
+                    if (tokens.get(i) == GROUP_START) {
+                        depth++;
+                    } else if (tokens.get(i) == GROUP_END) {
+                        depth--;
+                    }
+                    i++;
+                } while (depth > 0 && i < tokens.size());
+                if (i < tokens.size() && (tokens.get(i) == OPTIONAL || tokens.get(i) == REPEAT)) {
+                    i++;
+                }
+                continue;
+            }
+            if (token >= 0 && next != OPTIONAL) {
+                literal.write(token);
+                if (next == REPEAT) {
+                    // The character is there at least once, but the next one may be a repetition.
+                    addTrigrams(literal, trigrams);
+                    i++;
+                }
+            } else {
+                addTrigrams(literal, trigrams);
+                if (next == OPTIONAL || next == REPEAT) {
+                    i++;
+                }
+            }
+            i++;
+        }
+        addTrigrams(literal, trigrams);
+        int[] result = new int[trigrams.size()];
+        int index = 0;
+        for (int trigram : trigrams) {
+            result[index++] = trigram;
+        }
+        return result;
+    }
+
+    // Add the trigrams of the literal and clear it.
+    private static void addTrigrams(ByteArrayOutputStream literal, Set<Integer> trigrams) {
+        byte[] bytes = literal.toByteArray();
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            trigrams.add((TrigramIndex.toLowerCase(bytes[i]) << 16) | (TrigramIndex.toLowerCase(bytes[i + 1]) << 8)
+                    | TrigramIndex.toLowerCase(bytes[i + 2]));
+        }
+        literal.reset();
+    }
+
+    // Split the pattern into tokens. Return null if the pattern has a syntax we don't handle.
+    private static List<Integer> tokenize(byte[] pattern, boolean extendedRegex) {
+        List<Integer> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < pattern.length) {
+            int c = pattern[i] & 0xff;
+            boolean isEscaped = false;
+            if (c == '\\') {
+                if (i + 1 >= pattern.length) {
+                    return null;
+                }
+                isEscaped = true;
+                c = pattern[++i] & 0xff;
+            }
+            i++;
+            // In a basic regex, these characters are operators only when escaped. In an extended regex, only when
+            // they are not escaped.
+            boolean isOperator = isEscaped != extendedRegex;
+            if (!isEscaped && c == '[') {
+                i = skipBracketExpression(pattern, i);
+                if (i < 0) {
+                    return null;
+                }
+                tokens.add(ANY);
+            } else if (!isEscaped && c == '.') {
+                tokens.add(ANY);
+            } else if (!isEscaped && (c == '^' || c == '$')) {
+                tokens.add(ANCHOR);
+            } else if (!isEscaped && c == '*') {
+                tokens.add(tokens.isEmpty() ? (int) '*' : OPTIONAL);
+            } else if (isOperator && c == '?') {
+                tokens.add(OPTIONAL);
+            } else if (isOperator && c == '+') {
+                tokens.add(REPEAT);
+            } else if (isOperator && c == '{') {
+                int intervalEnd = indexOf(pattern, extendedRegex ? "}" : "\\}", i);
+                if (intervalEnd < 0) {
+                    return null;
+                }
+                String interval = new String(pattern, i, intervalEnd - i, StandardCharsets.UTF_8);
+                tokens.add(interval.startsWith("0") || interval.startsWith(",") ? OPTIONAL : REPEAT);
+                i = intervalEnd + (extendedRegex ? 1 : 2);
+            } else if (isOperator && c == '(') {
+                tokens.add(GROUP_START);
+            } else if (isOperator && c == ')') {
+                tokens.add(GROUP_END);
+            } else if (isOperator && c == '|') {
+                tokens.add(ALTERNATION);
+            } else if (isEscaped && Character.isLetterOrDigit(c)) {
+                // Classes like \w and \s, and back references.
+                tokens.add(c == 'b' || c == 'B' ? ANCHOR : ANY);
+            } else if (isEscaped && (c == '<' || c == '>' || c == '`' || c == '\'')) {
+                tokens.add(ANCHOR);
+            } else {
+                tokens.add(c);
+            }
+        }
+        return tokens;
+    }
+
+    // Return the index after the bracket expression that starts before the index, or -1 if it is not closed.
+    private static int skipBracketExpression(byte[] pattern, int i) {
+        if (i < pattern.length && pattern[i] == '^') {
+            i++;
+        }
+        if (i < pattern.length && pattern[i] == ']') {
+            i++;
+        }
+        while (i < pattern.length) {
+            if (pattern[i] == '[' && i + 1 < pattern.length && pattern[i + 1] == ':') {
+                int classEnd = indexOf(pattern, ":]", i + 2);
+                if (classEnd < 0) {
+                    return -1;
+                }
+                i = classEnd + 2;
+            } else if (pattern[i] == ']') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, String target, int from) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.US_ASCII);
+        for (int i = from; i + targetBytes.length <= bytes.length; i++) {
+            boolean isFound = true;
+            for (int j = 0; j < targetBytes.length; j++) {
+                if (bytes[i + j] != targetBytes[j]) {
+                    isFound = false;
+                    break;
+                }
+            }
+            if (isFound) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -6,4 +6,4 @@ mkdir ./compile
 # Compile the project, need to add "-target 8" for the VMs for compatibility.
 javac -target 8 -source 8 -d ./compile -classpath ./compile/mp1.jar @sources.txt
 # Start the server
-java -classpath ./compile:./compile/mp1.jar SocketMultipleServer
\ No newline at end of file
+java -classpath ./compile:./compile/mp1.jar SocketMultipleServer "$@"
\ No newline at end of file
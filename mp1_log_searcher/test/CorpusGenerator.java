@@ -0,0 +1,408 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generate large log files for the benchmarks on all the cores. The file is made of chunks of a fixed number of lines.
+ * Each chunk is generated by a worker into a direct ByteBuffer with its own SplittableRandom, and the chunks are
+ * written to the file in order, so the same seed gives the same file with any number of threads. The time of each
+ * chunk only depends on its index, so the timestamps never go back.
+ *
+ * The lines look like the logs of the membership service, like
+ * "[2022-09-24 17:00:00] [INFO   ] Ping is sent to fa22-cs425-0501.cs.illinois.edu:8002 with id 42". The fractions of
+ * the lines with each pattern, the mix of the levels, the lines per second and the length of the lines can be changed.
+ *
+ * Usage: CorpusGenerator file size [--threads 8] [--seed 425] [--ping 0.3] [--timeout 0.05] [--rare 0.0001]
+ * [--join 0.25] [--levels 50,50,0] [--rate 100] [--burstiness 0] [--payload 1-9] [--long-lines 0:400]
+ * [--members 10]
+ */
+public class CorpusGenerator {
+    // Lines of a chunk. A chunk is a few MB, so the workers don't wait for each other and the writes are large.
+    static final int CHUNK_LINES = 32768;
+    private static final long START_SECOND = LocalDateTime.of(2022, 9, 24, 17, 0, 0).toEpochSecond(ZoneOffset.UTC);
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final byte[][] LEVELS = {bytes("] [INFO   ] "), bytes("] [WARNING] "), bytes("] [SEVERE ] ")};
+    private static final byte[] PING = bytes("Ping is sent to fa22-cs425-05");
+    private static final byte[] PING_HOST = bytes(".cs.illinois.edu:8002 with id ");
+    private static final byte[] TIMEOUT = bytes("Timeout after ");
+    private static final byte[] TIMEOUT_HOST = bytes(" ms waiting for fa22-cs425-05");
+    private static final byte[] RARE = bytes("RareErrorCode ");
+    private static final byte[] RARE_END = bytes(" in the membership list");
+    private static final byte[] JOIN = bytes("Member fa22-cs425-05");
+    private static final byte[] JOIN_TIMESTAMP = bytes(" joined with timestamp ");
+    private static final byte[] MEMBERSHIP = bytes("Membership list has ");
+    private static final byte[] MEMBERSHIP_MEMBERS = bytes(" members ");
+    // Longest line without the payload: the timestamp, the level and the longest message with the largest numbers.
+    private static final int MAX_LINE_WITHOUT_PAYLOAD = 128;
+    // The payload has the characters from '!' to '~'.
+    private static final int PAYLOAD_CHARACTERS = '~' - '!' + 1;
+    // Array of each worker to make the lines of a chunk in.
+    private static final ThreadLocal<byte[]> LINES = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private final Profile profile;
+    private final int threadCount;
+
+    /**
+     * @param profile The distributions of the lines.
+     * @param threadCount Number of workers that generate the chunks.
+     */
+    public CorpusGenerator(Profile profile, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        this.profile = profile;
+        this.threadCount = threadCount;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CorpusGenerator file size [--threads 8] [--seed 425] [--ping 0.3] "
+                    + "[--timeout 0.05] [--rare 0.0001] [--join 0.25] [--levels 50,50,0] [--rate 100] "
+                    + "[--burstiness 0] [--payload 1-9] [--long-lines 0:400] [--members 10]");
+            return;
+        }
+        Profile profile = new Profile();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        long seed = LogGenerator.CORPUS_SEED;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--threads")) {
+                threadCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            } else {
+                profile.set(args[i], args[i + 1]);
+            }
+        }
+        long start = System.currentTimeMillis();
+        long targetBytes = LogGenerator.parseSize(args[1]);
+        new CorpusGenerator(profile, threadCount).generate(Paths.get(args[0]), targetBytes, seed);
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Generated " + args[0] + " in " + millis + " milliseconds, "
+                + targetBytes / 1048576 * 1000 / millis + " MB/s");
+    }
+
+    /**
+     * Generate a log file of about the target size. The file ends after the line that reaches this size.
+     *
+     * @param file Path of the file. It is replaced if it exists.
+     * @param targetBytes Size of the file.
+     * @param seed The same seed always generates the same file.
+     */
+    public void generate(Path file, long targetBytes, long seed) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "corpus-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The buffers of the chunks that were written are reused.
+        Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+        Queue<Future<ByteBuffer>> chunks = new ArrayDeque<>();
+        // Each chunk gets the next split in order, so it does not depend on the thread that generates it.
+        SplittableRandom random = new SplittableRandom(seed);
+        long chunkIndex = 0;
+        long writtenBytes = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (writtenBytes < targetBytes) {
+                // Enough chunks are generated ahead to keep all the workers busy while the writes wait for the disk.
+                while (chunks.size() < 2 * threadCount) {
+                    long index = chunkIndex++;
+                    SplittableRandom chunkRandom = random.split();
+                    chunks.add(workers.submit(() -> generateChunk(index, chunkRandom, freeBuffers.poll())));
+                }
+                ByteBuffer buffer = chunks.remove().get();
+                long remainingBytes = targetBytes - writtenBytes;
+                if (buffer.remaining() > remainingBytes) {
+                    // End after the line that reaches the target size.
+                    int end = buffer.position() + (int) remainingBytes - 1;
+                    while (buffer.get(end) != '\n') {
+                        end++;
+                    }
+                    buffer.limit(end + 1);
+                }
+                while (buffer.hasRemaining()) {
+                    writtenBytes += channel.write(buffer);
+                }
+                freeBuffers.add(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating " + file);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to generate " + file, e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // Generate the lines of a chunk into the buffer, or into a new buffer if it is null. The lines are made in an
+    // array of the worker, and copied to the direct buffer at once, which is faster than a put for each byte.
+    private ByteBuffer generateChunk(long chunkIndex, SplittableRandom random, ByteBuffer buffer) {
+        int maxPayloadLength = Math.max(profile.maxPayloadLength, profile.longLineFraction > 0
+                ? profile.longLineLength : 0);
+        int capacity = CHUNK_LINES * (MAX_LINE_WITHOUT_PAYLOAD + maxPayloadLength);
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        byte[] line = LINES.get();
+        if (line.length < capacity) {
+            line = new byte[capacity];
+            LINES.set(line);
+        }
+        int position = 0;
+        // The chunk covers the seconds from its first line to the first line of the next chunk at the average rate.
+        long second = START_SECOND + chunkIndex * CHUNK_LINES / profile.linesPerSecond;
+        long endSecond = START_SECOND + (chunkIndex + 1) * CHUNK_LINES / profile.linesPerSecond;
+        byte[] timestamp = formatTimestamp(second);
+        int linesLeftInSecond = drawLinesInSecond(random);
+        for (int i = 0; i < CHUNK_LINES; i++) {
+            if (linesLeftInSecond-- <= 0) {
+                linesLeftInSecond = drawLinesInSecond(random) - 1;
+                if (second < endSecond) {
+                    second++;
+                    timestamp = formatTimestamp(second);
+                }
+            }
+            line[position++] = '[';
+            position = put(line, position, timestamp);
+            int member = random.nextInt(profile.memberCount) + 1;
+            double kind = random.nextDouble();
+            if (kind < profile.pingFraction) {
+                position = put(line, position, LEVELS[0]);
+                position = put(line, position, PING);
+                position = putMember(line, position, member);
+                position = put(line, position, PING_HOST);
+                position = putNumber(line, position, random.nextInt(1000000));
+            } else if ((kind -= profile.pingFraction) < profile.timeoutFraction) {
+                position = put(line, position, LEVELS[1]);
+                position = put(line, position, TIMEOUT);
+                position = putNumber(line, position, random.nextInt(3000) + 1);
+                position = put(line, position, TIMEOUT_HOST);
+                position = putMember(line, position, member);
+            } else if ((kind -= profile.timeoutFraction) < profile.rareFraction) {
+                position = put(line, position, LEVELS[2]);
+                position = put(line, position, RARE);
+                position = putNumber(line, position, random.nextInt(100));
+                position = put(line, position, RARE_END);
+            } else if ((kind -= profile.rareFraction) < profile.joinFraction) {
+                position = put(line, position, LEVELS[0]);
+                position = put(line, position, JOIN);
+                position = putMember(line, position, member);
+                position = put(line, position, JOIN_TIMESTAMP);
+                position = putNumber(line, position, second * 1000 + random.nextInt(1000));
+            } else {
+                position = put(line, position, LEVELS[drawLevel(random)]);
+                position = put(line, position, MEMBERSHIP);
+                position = putNumber(line, position, member);
+                position = put(line, position, MEMBERSHIP_MEMBERS);
+                position = putPayload(line, position, random);
+            }
+            line[position++] = '\n';
+        }
+        buffer.put(line, 0, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Steady at the average rate, or around it by up to the burstiness.
+    private int drawLinesInSecond(SplittableRandom random) {
+        if (profile.burstiness == 0) {
+            return profile.linesPerSecond;
+        }
+        double factor = 1 + profile.burstiness * (2 * random.nextDouble() - 1);
+        return Math.max(1, (int) Math.round(profile.linesPerSecond * factor));
+    }
+
+    private int drawLevel(SplittableRandom random) {
+        double value = random.nextDouble() * (profile.levelWeights[0] + profile.levelWeights[1]
+                + profile.levelWeights[2]);
+        if (value < profile.levelWeights[0]) {
+            return 0;
+        }
+        return value < profile.levelWeights[0] + profile.levelWeights[1] ? 1 : 2;
+    }
+
+    // Random printable characters, so each line has different trigrams. A random long gives 9 characters.
+    private int putPayload(byte[] line, int position, SplittableRandom random) {
+        int length = profile.longLineFraction > 0 && random.nextDouble() < profile.longLineFraction
+                ? profile.longLineLength
+                : random.nextInt(profile.minPayloadLength, profile.maxPayloadLength + 1);
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            if (i % 9 == 0) {
+                bits = random.nextLong() >>> 1;
+            }
+            line[position++] = (byte) ('!' + bits % PAYLOAD_CHARACTERS);
+            bits /= PAYLOAD_CHARACTERS;
+        }
+        return position;
+    }
+
+    private static int put(byte[] line, int position, byte[] bytes) {
+        System.arraycopy(bytes, 0, line, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private static int putMember(byte[] line, int position, int member) {
+        if (member < 10) {
+            line[position++] = '0';
+        }
+        return putNumber(line, position, member);
+    }
+
+    // Write the digits without making a String.
+    private static int putNumber(byte[] line, int position, long value) {
+        int end = position + 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            end++;
+        }
+        for (int i = end - 1; i >= position; i--) {
+            line[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    private static byte[] formatTimestamp(long second) {
+        return bytes(LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC).format(TIMESTAMP_FORMATTER));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The distributions of the generated lines. The default is the corpus of the benchmark: "Ping" is in about 30% of
+     * the lines, "Timeout after N ms" in about 5%, "RareErrorCode" in about 0.01%, and the lines have about 100 lines
+     * in each second.
+     */
+    public static class Profile {
+        // Fractions of the lines with each pattern. The other lines are "Membership list has N members ...".
+        private double pingFraction = 0.30;
+        private double timeoutFraction = 0.05;
+        private double rareFraction = 0.0001;
+        private double joinFraction = 0.25;
+        // Weights of INFO, WARNING and SEVERE for the membership lines. The other lines have a fixed level.
+        private double[] levelWeights = {1, 1, 0};
+        // Average number of lines with the same timestamp, and how much it changes from one second to the next. With
+        // bursts, the last second of a chunk also gets the lines that did not fit in the time of the chunk.
+        private int linesPerSecond = 100;
+        private double burstiness = 0;
+        // Length of the random text at the end of the membership lines, and the fraction of much longer lines, like
+        // a stack trace on one line.
+        private int minPayloadLength = 1;
+        private int maxPayloadLength = 9;
+        private double longLineFraction = 0;
+        private int longLineLength = 400;
+        private int memberCount = 10;
+
+        /**
+         * Change a distribution by its command line option.
+         *
+         * @param option Like "--ping", "--levels" or "--payload".
+         * @param value Like "0.3", "80,15,5" or "1-9".
+         * @return This profile.
+         * @throws IllegalArgumentException If the option is unknown or the value is out of range.
+         */
+        public Profile set(String option, String value) {
+            try {
+                switch (option) {
+                    case "--ping":
+                        pingFraction = parseFraction(value);
+                        break;
+                    case "--timeout":
+                        timeoutFraction = parseFraction(value);
+                        break;
+                    case "--rare":
+                        rareFraction = parseFraction(value);
+                        break;
+                    case "--join":
+                        joinFraction = parseFraction(value);
+                        break;
+                    case "--levels":
+                        String[] weights = value.split(",");
+                        if (weights.length != 3) {
+                            throw new IllegalArgumentException("--levels needs the weights of INFO,WARNING,SEVERE");
+                        }
+                        double[] newWeights = new double[3];
+                        for (int i = 0; i < 3; i++) {
+                            newWeights[i] = Double.parseDouble(weights[i]);
+                            if (newWeights[i] < 0) {
+                                throw new IllegalArgumentException("Negative weight in --levels " + value);
+                            }
+                        }
+                        if (newWeights[0] + newWeights[1] + newWeights[2] <= 0) {
+                            throw new IllegalArgumentException("--levels needs a positive weight");
+                        }
+                        levelWeights = newWeights;
+                        break;
+                    case "--rate":
+                        linesPerSecond = Integer.parseInt(value);
+                        if (linesPerSecond <= 0) {
+                            throw new IllegalArgumentException("--rate must be positive");
+                        }
+                        break;
+                    case "--burstiness":
+                        burstiness = parseFraction(value);
+                        break;
+                    case "--payload":
+                        String[] range = value.split("-");
+                        minPayloadLength = Integer.parseInt(range[0]);
+                        maxPayloadLength = Integer.parseInt(range[range.length - 1]);
+                        if (minPayloadLength < 0 || maxPayloadLength < minPayloadLength) {
+                            throw new IllegalArgumentException("Invalid --payload " + value);
+                        }
+                        break;
+                    case "--long-lines":
+                        String[] fractionAndLength = value.split(":");
+                        longLineFraction = parseFraction(fractionAndLength[0]);
+                        if (fractionAndLength.length > 1) {
+                            longLineLength = Integer.parseInt(fractionAndLength[1]);
+                        }
+                        if (longLineLength < 0) {
+                            throw new IllegalArgumentException("Invalid --long-lines " + value);
+                        }
+                        break;
+                    case "--members":
+                        memberCount = Integer.parseInt(value);
+                        if (memberCount <= 0 || memberCount > 99) {
+                            throw new IllegalArgumentException("--members must be from 1 to 99");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+            }
+            if (pingFraction + timeoutFraction + rareFraction + joinFraction > 1) {
+                throw new IllegalArgumentException("The fractions of the patterns add up to more than 1");
+            }
+            return this;
+        }
+
+        private static double parseFraction(String value) {
+            double fraction = Double.parseDouble(value);
+            if (fraction < 0 || fraction > 1) {
+                throw new IllegalArgumentException("A fraction must be from 0 to 1: " + value);
+            }
+            return fraction;
+        }
+    }
+}
@@ -1,15 +1,23 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class generate a log file. We will use the file for testing.
  */
 public class LogGenerator {
+    public static final long CORPUS_SEED = 425;
 
     public static void main(String[] args) {
+        if (args.length >= 2) {
+            // Generate a corpus for the benchmark, like "LogGenerator corpus.log 1GB".
+            generateCorpus(args[0], parseSize(args[1]), CORPUS_SEED);
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         System.out.println("fileName expectedWord expectedWordCount TotalLines");
         String query = scanner.nextLine();
@@ -25,13 +33,15 @@ public class LogGenerator {
     }
 
     public static void generate(String fileName, String expectedWord, int expectedWordCount, int totalLines) {
+        // One generator for all the lines, instead of two new ones for each line.
+        Random random = ThreadLocalRandom.current();
         try {
             BufferedWriter writer = new BufferedWriter(new FileWriter(fileName + ".log"));
             for (int i = 0; i < expectedWordCount; i++) {
-                writer.write(expectedWord + generateRandomString() + "\n");
+                writer.write(expectedWord + generateRandomString(random) + "\n");
             }
             for (int i = expectedWordCount; i < totalLines; i++) {
-                writer.write(generateRandomString() + "\n");
+                writer.write(generateRandomString(random) + "\n");
             }
             writer.close();
         } catch (IOException e) {
@@ -39,16 +49,47 @@ public class LogGenerator {
         }
     }
 
-    private static String generateRandomString() {
-        int leftLimit = 33; // '!'
-        int rightLimit = 126; // '~'
-        int targetStringLength = new Random().nextInt(9) + 1;
-        Random random = new Random();
+    /**
+     * Generate a log file of about the target size for the benchmark on all the cores with CorpusGenerator. The lines
+     * look like the logs of the membership service, and the words have fixed frequencies so that each query selects a
+     * known part of the lines: "Ping" is in about 30% of the lines, "Timeout after N ms" in about 5%, and
+     * "RareErrorCode" in about 0.01%.
+     *
+     * @param fileName Path of the file.
+     * @param targetBytes Size of the file. The file ends after the line that reaches this size.
+     * @param seed The same seed always generates the same file.
+     */
+    public static void generateCorpus(String fileName, long targetBytes, long seed) {
+        try {
+            new CorpusGenerator(new CorpusGenerator.Profile(), Runtime.getRuntime().availableProcessors())
+                    .generate(Paths.get(fileName), targetBytes, seed);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param size Size like "100MB", "1GB" or "512KB".
+     * @return Number of bytes.
+     */
+    public static long parseSize(String size) {
+        String upperCaseSize = size.trim().toUpperCase();
+        String[] units = {"KB", "MB", "GB", "B"};
+        long[] multipliers = {1L << 10, 1L << 20, 1L << 30, 1};
+        for (int i = 0; i < units.length; i++) {
+            if (upperCaseSize.endsWith(units[i])) {
+                String number = upperCaseSize.substring(0, upperCaseSize.length() - units[i].length());
+                return (long) (Double.parseDouble(number) * multipliers[i]);
+            }
+        }
+        return Long.parseLong(upperCaseSize);
+    }
+
+    private static String generateRandomString(Random random) {
+        int targetStringLength = random.nextInt(9) + 1;
         StringBuilder buffer = new StringBuilder(targetStringLength);
         for (int i = 0; i < targetStringLength; i++) {
-            int randomLimitedInt = leftLimit + (int)
-                    (random.nextFloat() * (rightLimit - leftLimit + 1));
-            buffer.append((char) randomLimitedInt);
+            buffer.append((char) ('!' + random.nextInt('~' - '!' + 1)));
         }
         return buffer.toString();
     }
@@ -1,7 +1,19 @@
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 
 /**
  * Unit tests for querying with grep search on local files. Need to make sure that the logFiles folder is empty before
@@ -283,4 +295,391 @@ public class UnitTests {
             Assertions.assertEquals(100, Integer.parseInt(resultSplit[1]));
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests for the options -i, -v and -n
+     */
+    @Test
+    public void test_singleFile_ignoreCase_rowCount() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "TEST", 20, 100);
+        List<String> queryResults = queryHandler.getQueryResults("grep -ic test", "__test_test1.log");
+        Assertions.assertEquals(1, queryResults.size());
+
+        String[] resultSplit = queryResults.get(0).split(":");
+        Assertions.assertEquals(20, Integer.parseInt(resultSplit[1]));
+    }
+
+    @Test
+    public void test_singleFile_invertMatch_rowCount() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "test", 30, 100);
+        List<String> queryResults = queryHandler.getQueryResults("grep -vc ^test", "__test_test1.log");
+        Assertions.assertEquals(1, queryResults.size());
+
+        String[] resultSplit = queryResults.get(0).split(":");
+        Assertions.assertEquals(70, Integer.parseInt(resultSplit[1]));
+    }
+
+    @Test
+    public void test_singleFile_lineNumber_eachLine() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 3, 10);
+        List<String> queryResults = queryHandler.getQueryResults("grep -n ^keyword", "__test_test1.log");
+        Assertions.assertEquals(3, queryResults.size());
+
+        for (int i = 0; i < queryResults.size(); i++) {
+            String[] resultSplit = queryResults.get(i).split(":");
+            Assertions.assertEquals("__test_test1.log", resultSplit[0]);
+            Assertions.assertEquals(i + 1, Integer.parseInt(resultSplit[1]));
+        }
+    }
+
+    @Test
+    public void test_multipleFile_limit_eachLine() {
+        for (int i = 0; i < 3; i++) {
+            LogGenerator.generate(getLogsGeneratePath("test" + i), "keyword", 10, 20);
+        }
+        List<String> queryResults = queryHandler.getQueryResults("grep -m 15 ^keyword", null);
+        // The limit is for all the files on the server.
+        Assertions.assertEquals(15, queryResults.size());
+        Assertions.assertTrue(queryResults.get(14).contains("__test_test1.log"));
+    }
+
+    /**
+     * Tests for the batch query with several patterns
+     */
+    @Test
+    public void test_singleFile_batch_rowCount() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 5, 20);
+        List<String> queryResults = queryHandler.getQueryResults(
+                "grep -c --batch -e keyword -e '^k.yw' -e missingword", "__test_test1.log");
+        Assertions.assertEquals(3, queryResults.size());
+        Assertions.assertEquals("0:__test_test1.log:5", queryResults.get(0));
+        Assertions.assertEquals("1:__test_test1.log:5", queryResults.get(1));
+        Assertions.assertEquals("2:__test_test1.log:0", queryResults.get(2));
+    }
+
+    @Test
+    public void test_singleFile_batch_eachLine() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 5, 20);
+        List<String> queryResults = queryHandler.getQueryResults("grep --batch -e ^keyword -e WORD -e w.rd -i",
+                "__test_test1.log");
+        // Each line matches all the patterns, and it is given once for each of them.
+        Assertions.assertEquals(15, queryResults.size());
+        for (int i = 0; i < queryResults.size(); i++) {
+            Assertions.assertTrue(queryResults.get(i).startsWith(i % 3 + ":__test_test1.log:keyword"));
+        }
+    }
+
+    /**
+     * Tests for the group-by query
+     */
+    @Test
+    public void test_multipleFile_groupBy_regex() {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 3, 10);
+        LogGenerator.generate(getLogsGeneratePath("test2"), "keynote", 4, 10);
+        List<String> queryResults = queryHandler.getQueryResults("grep -E --group-by 'key(word|note)' ^key", null);
+        // One count for each group in all the files, sorted by the group.
+        Assertions.assertEquals(2, queryResults.size());
+        Assertions.assertEquals("4:note", queryResults.get(0));
+        Assertions.assertEquals("3:word", queryResults.get(1));
+    }
+
+    @Test
+    public void test_singleFile_appendedLines_cachedResult() throws IOException {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 3, 10);
+        Assertions.assertEquals(3, queryHandler.getQueryResults("grep -n ^keyword", "__test_test1.log").size());
+
+        try (FileWriter writer = new FileWriter(getLogsGeneratePath("test1") + ".log", true)) {
+            writer.write("keyword appended\n");
+        }
+        List<String> queryResults = queryHandler.getQueryResults("grep -n ^keyword", "__test_test1.log");
+        Assertions.assertEquals(4, queryResults.size());
+        Assertions.assertEquals("__test_test1.log:11:keyword appended", queryResults.get(3));
+    }
+
+    /**
+     * Tests for the log files compacted into segments
+     */
+    @Test
+    public void test_singleFile_compactedSegment() throws IOException {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 3, 10);
+        List<String> expectedResults = queryHandler.getQueryResults("grep -n ^keyword", "__test_test1.log");
+        File logFile = new File(getLogsGeneratePath("test1") + ".log");
+        new LogCompactor(logFile.getParentFile(), null).compact(logFile);
+        Assertions.assertFalse(logFile.exists());
+        Assertions.assertTrue(LogSegment.getSegmentFile(logFile).exists());
+
+        // The same lines with the same name and line numbers as before.
+        Assertions.assertEquals(expectedResults, queryHandler.getQueryResults("grep -n ^keyword", "__test_test1.log"));
+        // The bloom filter of the block rules out the pattern.
+        Assertions.assertEquals("__test_test1.log:0", queryHandler.getQueryResults("grep -c zzz", "__test_test1.log")
+                .get(0));
+    }
+
+    /**
+     * Tests for following the new lines of the log files
+     */
+    @Test
+    public void test_multipleFile_followNewLines() throws IOException, InterruptedException {
+        LogGenerator.generate(getLogsGeneratePath("test1"), "keyword", 3, 10);
+        LogTailer tailer = new LogTailer(new File(getLogsGeneratePath("")), GrepCommand.parse("grep ^keyword"));
+        tailer.start();
+        try (FileWriter writer = new FileWriter(getLogsGeneratePath("test1") + ".log", true)) {
+            writer.write("keyword appended\nkeyword still being written");
+        }
+        LogGenerator.generate(getLogsGeneratePath("test2"), "keyword", 1, 1);
+
+        List<String> lines = new ArrayList<>();
+        OutputLineConsumer consumer = (line, length) -> lines.add(new String(line, 0, length, StandardCharsets.UTF_8));
+        // The old lines and the line without a line separator are not given.
+        Assertions.assertEquals(2, tailer.poll(0, consumer));
+        Assertions.assertEquals("./logFiles/__test_test1.log:keyword appended", lines.get(0));
+        Assertions.assertTrue(lines.get(1).startsWith("./logFiles/__test_test2.log:keyword"));
+        Assertions.assertEquals(0, tailer.poll(0, consumer));
+        tailer.close();
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new LogTailer(new File(getLogsGeneratePath("")), GrepCommand.parse("grep -c keyword")));
+    }
+
+    /**
+     * Tests for the partial results when a server misses its deadline
+     */
+    @Test
+    public void test_queryResult_missedDeadline() {
+        QueryResult result = new QueryResult(true);
+        result.addResponse(new ServerResponse("vm1", new ArrayList<>(), 1, 5, 20, null));
+        Assertions.assertFalse(result.isPartial());
+        // The count received before the deadline is kept.
+        result.addResponse(new ServerResponse("vm2", new ArrayList<>(), 1, 3, 1000, null, false, true));
+        Assertions.assertTrue(result.isPartial());
+        Assertions.assertEquals(8, result.getTotalCount());
+        Assertions.assertEquals(1, result.getMissedDeadlineServers().size());
+        Assertions.assertEquals("vm2", result.getMissedDeadlineServers().get(0));
+        // A server that could not be reached is also missing, but it did not miss a deadline.
+        result.addResponse(new ServerResponse("vm3", new ArrayList<>(), 0, 0, 0, "Connection refused"));
+        Assertions.assertEquals(1, result.getMissedDeadlineServers().size());
+        Assertions.assertEquals(Arrays.asList("vm2", "vm3"), result.getMissingServers());
+    }
+
+    /**
+     * Tests for the compression of the response frames
+     */
+    @Test
+    public void test_responseFrames_compressed() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(FrameCompression.parseCommand("compress deflate"));
+        ResponseFrameWriter frameWriter = new ResponseFrameWriter(new DataOutputStream(frames), deflater);
+        byte[] line = "[2022-09-24 17:46:19] [SEVERE ] Timeout is found for 172.22.242.33"
+                .getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 5000; i++) {
+            frameWriter.accept(line, line.length);
+        }
+        frameWriter.finish(5000);
+        deflater.end();
+        // The same line repeated is much smaller after the compression.
+        Assertions.assertTrue(frames.size() < line.length * 500);
+
+        List<String> lines = new ArrayList<>();
+        ResponseFrameReader frameReader = new ResponseFrameReader(
+                new DataInputStream(new ByteArrayInputStream(frames.toByteArray())));
+        Assertions.assertEquals(5000, frameReader.read(lines::addAll));
+        Assertions.assertEquals(5000, lines.size());
+        Assertions.assertEquals(new String(line, StandardCharsets.UTF_8), lines.get(4999));
+        Assertions.assertEquals(FrameCompression.NO_COMPRESSION, FrameCompression.parseCommand("compress none"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FrameCompression.parseCommand("compress lz4"));
+    }
+
+    /**
+     * Tests for the frames that a reader rejects instead of allocating their length
+     */
+    @Test
+    public void test_responseFrames_invalidLength() throws IOException {
+        ByteArrayOutputStream tooLarge = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(tooLarge);
+        out.writeByte(ResponseFrameWriter.FRAME_LINES);
+        out.writeInt(Integer.MAX_VALUE);
+        IOException e = Assertions.assertThrows(IOException.class, () -> new ResponseFrameReader(
+                new DataInputStream(new ByteArrayInputStream(tooLarge.toByteArray()))).read(lines -> {
+        }));
+        Assertions.assertEquals("Frame too large", e.getMessage());
+
+        ByteArrayOutputStream shortEnd = new ByteArrayOutputStream();
+        out = new DataOutputStream(shortEnd);
+        out.writeByte(ResponseFrameWriter.FRAME_END);
+        out.writeInt(4);
+        out.writeInt(5);
+        Assertions.assertThrows(IOException.class, () -> new ResponseFrameReader(
+                new DataInputStream(new ByteArrayInputStream(shortEnd.toByteArray()))).read(lines -> {
+        }));
+    }
+
+    /**
+     * Tests for the search of a range with several lines by a matcher that is not a literal
+     */
+    @Test
+    public void test_lineMatcher_findRegex() {
+        ByteBuffer buffer = ByteBuffer.wrap("first line\nerror 42 here\nlast".getBytes(StandardCharsets.UTF_8));
+        LineMatcher regexMatcher = LineMatcher.compile("[0-9]+ here$", true, false);
+        Assertions.assertFalse(regexMatcher.isLiteral());
+        Assertions.assertEquals(11, regexMatcher.find(buffer, 0, buffer.limit()));
+        Assertions.assertEquals(-1, regexMatcher.find(buffer, 25, buffer.limit()));
+
+        PatternSetMatcher patternSetMatcher = LineMatcher.compile(Arrays.asList("last", "^e.*r"), true, false);
+        Assertions.assertFalse(patternSetMatcher.isLiteral());
+        Assertions.assertEquals(11, patternSetMatcher.find(buffer, 0, buffer.limit()));
+        Assertions.assertEquals(25, patternSetMatcher.find(buffer, 12, buffer.limit()));
+    }
+
+    /**
+     * Tests for the trigrams used to skip blocks with the index
+     */
+    @Test
+    public void test_requiredTrigrams_literal() {
+        List<int[]> trigramSets = TrigramQueryPlanner.requiredTrigrams("Test", false);
+        Assertions.assertEquals(1, trigramSets.size());
+        // "tes" and "est" in lower case.
+        Assertions.assertEquals(2, trigramSets.get(0).length);
+        Assertions.assertEquals(('t' << 16) | ('e' << 8) | 's', trigramSets.get(0)[0]);
+    }
+
+    @Test
+    public void test_requiredTrigrams_regex() {
+        Assertions.assertEquals(1, TrigramQueryPlanner.requiredTrigrams("error(1|2) found", true).size());
+        Assertions.assertEquals(2, TrigramQueryPlanner.requiredTrigrams("timeout|leave", true).size());
+        Assertions.assertNull(TrigramQueryPlanner.requiredTrigrams("timeout|a", true));
+        Assertions.assertNull(TrigramQueryPlanner.requiredTrigrams("^te.t", false));
+    }
+
+    /**
+     * Tests for the time range given by --since and --until
+     */
+    @Test
+    public void test_parseCommand_timeRange() {
+        GrepCommand command = GrepCommand.parse("grep -c --since '2022-09-24 17:46' --until=2022-09-24T17:47:30 test");
+        Assertions.assertEquals("test", command.getPattern());
+        Assertions.assertEquals(20220924174600L, command.getTimeRange().getSince());
+        Assertions.assertEquals(20220924174730L, command.getTimeRange().getUntil());
+        Assertions.assertNull(GrepCommand.parse("grep -c test").getTimeRange());
+    }
+
+    @Test
+    public void test_parseCommand_limit() {
+        Assertions.assertEquals(5, GrepCommand.parse("grep -cm 5 test").getLimit());
+        Assertions.assertEquals(5, GrepCommand.parse("grep -m5 test").getLimit());
+        Assertions.assertEquals(100, GrepCommand.parse("grep --limit=100 test").getLimit());
+        Assertions.assertEquals(-1, GrepCommand.parse("grep -c test").getLimit());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> GrepCommand.parse("grep -m -1 test"));
+    }
+
+    @Test
+    public void test_parseCommand_multiplePatterns() {
+        GrepCommand command = GrepCommand.parse("grep -c -e test --regexp=error -efail");
+        Assertions.assertEquals(3, command.getPatterns().size());
+        Assertions.assertEquals("fail", command.getPatterns().get(2));
+        Assertions.assertFalse(command.isBatch());
+        Assertions.assertTrue(GrepCommand.parse("grep --batch -e test").isBatch());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> GrepCommand.parse("grep -e test error"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> GrepCommand.parse("grep --batch -v -e test"));
+    }
+
+    @Test
+    public void test_socketClient_address() {
+        Assertions.assertEquals("fa22-cs425-0501.cs.illinois.edu",
+                SocketClient.forAddress("fa22-cs425-0501.cs.illinois.edu", FrameCompression.DEFAULT_LEVEL)
+                        .getServerIp());
+        Assertions.assertEquals("127.0.0.1:8002",
+                SocketClient.forAddress("127.0.0.1:8002", FrameCompression.DEFAULT_LEVEL).getServerIp());
+        Assertions.assertEquals("localhost",
+                SocketClient.forAddress("localhost:8001", FrameCompression.DEFAULT_LEVEL).getServerIp());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> SocketClient.forAddress("localhost:port", FrameCompression.DEFAULT_LEVEL));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> SocketClient.forAddress("localhost:70000", FrameCompression.DEFAULT_LEVEL));
+    }
+
+    @Test
+    public void test_corpusGenerator_sameWithAnyThreads() throws IOException {
+        File oneThread = new File(QueryHandler.LOG_DIRECTORY, "__test_corpus1.txt");
+        File threeThreads = new File(QueryHandler.LOG_DIRECTORY, "__test_corpus3.txt");
+        CorpusGenerator.Profile profile = new CorpusGenerator.Profile().set("--burstiness", "0.5")
+                .set("--levels", "80,15,5").set("--long-lines", "0.01:200");
+        long targetBytes = 3L * CorpusGenerator.CHUNK_LINES * 60 + 12345;
+        try {
+            new CorpusGenerator(profile, 1).generate(oneThread.toPath(), targetBytes, 7);
+            new CorpusGenerator(profile, 3).generate(threeThreads.toPath(), targetBytes, 7);
+            byte[] bytes = Files.readAllBytes(oneThread.toPath());
+            Assertions.assertArrayEquals(bytes, Files.readAllBytes(threeThreads.toPath()));
+            // The file ends after the line that reaches the size.
+            Assertions.assertTrue(bytes.length >= targetBytes && bytes.length < targetBytes + 400);
+            Assertions.assertEquals('\n', bytes[bytes.length - 1]);
+            String previousTimestamp = "";
+            long pingCount = 0;
+            List<String> lines = Files.readAllLines(oneThread.toPath());
+            for (String line : lines) {
+                String timestamp = line.substring(1, 20);
+                Assertions.assertTrue(timestamp.compareTo(previousTimestamp) >= 0);
+                previousTimestamp = timestamp;
+                pingCount += line.contains("] Ping is sent to ") ? 1 : 0;
+            }
+            Assertions.assertEquals(0.3, (double) pingCount / lines.size(), 0.02);
+        } finally {
+            oneThread.delete();
+            threeThreads.delete();
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new CorpusGenerator.Profile().set("--ping", "0.8").set("--join", "0.5"));
+    }
+
+    @Test
+    public void test_grepCommand_wireFormat() {
+        String[] queries = {
+                "grep -c Ping",
+                "grep -Ein --since '2022-09-24 17:46' --until 2022-09-24T17:50 -m 10 'it'\\''s -e \\d+'",
+                "grep --batch -c -e Ping -e 'Timeout after [0-9]+ ms' -e \u00fcn\u00efcode",
+                "grep -E --group-by '\\[(\\w+) *\\]' --until 2022-09-25 -v -- -x",
+        };
+        for (String query : queries) {
+            GrepCommand command = GrepCommand.parse(query);
+            GrepCommand fromWire = GrepCommand.fromLine(command.toWireLine());
+            GrepCommand fromText = GrepCommand.fromLine(command.toCommandLine());
+            Assertions.assertEquals(command.getNormalizedQuery(), fromWire.getNormalizedQuery());
+            Assertions.assertEquals(command.getNormalizedQuery(), fromText.getNormalizedQuery());
+        }
+        Assertions.assertEquals("it's -e \\d+", GrepCommand.parse(queries[1]).getPattern());
+        Assertions.assertTrue(GrepCommand.isWireLine(GrepCommand.parse(queries[0]).toWireLine()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> GrepCommand.fromLine("query AQ"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> GrepCommand.fromLine("query not*base64"));
+    }
+
+    @Test
+    public void test_serverMetrics_latencyAndStats() {
+        ServerMetrics metrics = new ServerMetrics();
+        Assertions.assertEquals(0, metrics.getLatencyQuantileMillis(0.99), 0);
+        // 90 queries between 10 and 20 milliseconds, and 10 between 200 and 500.
+        for (int i = 0; i < 90; i++) {
+            metrics.recordQuery(15_000_000L, 1000, 2);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.recordQuery(300_000_000L, 1000, 2);
+        }
+        Assertions.assertEquals(100, metrics.getQueryCount());
+        Assertions.assertEquals(100_000, metrics.getScannedBytes());
+        Assertions.assertEquals(200, metrics.getReturnedLines());
+        Assertions.assertEquals(10 + 10 * 50 / 90.0, metrics.getLatencyQuantileMillis(0.5), 0.001);
+        Assertions.assertEquals(200 + 100 * 0.9, metrics.getLatencyQuantileMillis(0.99), 0.001);
+        Assertions.assertTrue(metrics.report().contains("logsearch_query_latency_milliseconds_bucket{le=\"20\"} 90"));
+
+        // A pattern of no other test, so the lines are not in the result cache.
+        LogGenerator.generate(getLogsGeneratePath("test1"), "metrics", 3, 1);
+        QueryHandler handler = new QueryHandler();
+        handler.getMetrics().connectionOpened();
+        Assertions.assertEquals(3, handler.getQueryResults("grep metrics", null).size());
+        handler.getQueryResults("grep -E (", null);
+        List<String> stats = handler.getStats();
+        Assertions.assertTrue(stats.contains("logsearch_active_connections 1"));
+        Assertions.assertTrue(stats.contains("logsearch_queries_total 2"));
+        Assertions.assertTrue(stats.contains("logsearch_queries_failed_total 1"));
+        Assertions.assertTrue(stats.contains("logsearch_returned_lines_total 3"));
+        Assertions.assertTrue(stats.contains("logsearch_scanned_bytes_total "
+                + new File(getLogsGeneratePath("test1.log")).length()));
+    }
+}
@@ -0,0 +1,178 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+/**
+ * Benchmark of the failure detector against the message drop rate on one host. N servents are started in this JVM on
+ * 127.0.0.2, 127.0.0.3 and so on, and join the group through the first one without drops. Then every message is dropped
+ * at the drop rate for the duration, and every member that is removed is a false positive, since no node has failed.
+ * At last one node is stopped without a LEAVE, and the detection time is the time until the first and the last of the
+ * other nodes remove it.
+ *
+ * Each drop rate is measured with the fixed timeout and the phi accrual failure detector, each with a member removed at
+ * its first failure, and with the indirect probes and the suspicions.
+ *
+ * Usage: FailureDetectorBenchmark [--nodes 8] [--duration 20] [--drop-rates 0,5,10,20,30] [--phi-threshold 8]
+ * It is run from a directory with a logFiles directory, like the servents.
+ */
+public class FailureDetectorBenchmark {
+    private static final String FIRST_IP = "127.0.0.2";
+    // The nodes join one after another like on the VMs. A member that joins through a node that has not learned a
+    // concurrent join yet only learns it from the gossip.
+    private static final long JOIN_INTERVAL_MILLIS = 500;
+    private static final long JOIN_TIMEOUT_MILLIS = 10000;
+    private static final long DETECTION_TIMEOUT_MILLIS = 30000;
+    private static final long POLL_MILLIS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = 8;
+        int durationSeconds = 20;
+        String dropRates = "0,5,10,20,30";
+        String phiThreshold = String.valueOf(PhiAccrualFailureDetector.DEFAULT_THRESHOLD);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--nodes")) {
+                nodeCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--duration")) {
+                durationSeconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--drop-rates")) {
+                dropRates = args[i + 1];
+            } else if (args[i].equals("--phi-threshold")) {
+                phiThreshold = args[i + 1];
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        MemberGroupMain.LOGGER.setLevel(Level.WARNING);
+
+        System.out.println("detector\tsuspicion\tdrop%\tfalse removals\tsuspicions\tper node-minute\tfirst detection ms"
+                + "\tlast detection ms\tthreads");
+        for (String dropRate : dropRates.split(",")) {
+            for (boolean isSuspicionEnabled : new boolean[]{false, true}) {
+                for (String detector : new String[]{"timeout", "phi"}) {
+                    String[] detectorArgs = {"--failure-detector", detector, "--phi-threshold", phiThreshold};
+                    run(nodeCount, durationSeconds, Integer.parseInt(dropRate.trim()), isSuspicionEnabled, detector,
+                            detectorArgs);
+                }
+            }
+        }
+    }
+
+    private static void run(int nodeCount, int durationSeconds, int dropRate, boolean isSuspicionEnabled,
+                            String detector, String[] detectorArgs) throws Exception {
+        List<UdpServent> servents = new ArrayList<>();
+        byte[] firstAddress = InetAddress.getByName(FIRST_IP).getAddress();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                byte[] address = firstAddress.clone();
+                address[3] += i;
+                UdpServent servent = new UdpServent(InetAddress.getByAddress(address), 0);
+                servent.setSuspicionEnabled(isSuspicionEnabled);
+                servent.setFailureDetector(FailureDetector.fromArguments(detectorArgs, UdpServent.PING_FREQUENCY_MS,
+                        UdpServent.PING_TIMEOUT_MS));
+                servents.add(servent);
+            }
+            UdpServent introducer = servents.get(0);
+            introducer.isJoined = true;
+            introducer.getLocalMember().setTimestamp(String.valueOf(System.currentTimeMillis()));
+            for (UdpServent servent : servents.subList(1, nodeCount)) {
+                servent.join(introducer.getLocalMember().getIp());
+                Thread.sleep(JOIN_INTERVAL_MILLIS);
+            }
+            long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+            while (!isConverged(servents, nodeCount)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("The group did not converge in " + JOIN_TIMEOUT_MILLIS + " ms");
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+
+            int failuresBefore = 0;
+            int suspicionsBefore = 0;
+            for (UdpServent servent : servents) {
+                failuresBefore += servent.getFailureCount();
+                suspicionsBefore += servent.getSuspicionCount();
+                servent.setDropRate(dropRate);
+            }
+            Thread.sleep(durationSeconds * 1000L);
+            // Each servent only has its server thread and its scheduler, whatever the churn was.
+            int threadCount = Thread.activeCount();
+            int falseRemovals = -failuresBefore;
+            int suspicions = -suspicionsBefore;
+            for (UdpServent servent : servents) {
+                falseRemovals += servent.getFailureCount();
+                suspicions += servent.getSuspicionCount();
+            }
+
+            // Stop a node that every other node still has, and wait until they all remove it.
+            UdpServent crashed = null;
+            for (int i = nodeCount - 1; i > 0 && crashed == null; i--) {
+                if (isInAllMemberLists(servents, servents.get(i))) {
+                    crashed = servents.get(i);
+                }
+            }
+            String firstDetection = "-";
+            String lastDetection = "-";
+            if (crashed != null) {
+                List<UdpServent> others = new ArrayList<>(servents);
+                others.remove(crashed);
+                crashed.shutdown();
+                long start = System.nanoTime();
+                deadline = System.currentTimeMillis() + DETECTION_TIMEOUT_MILLIS;
+                while (System.currentTimeMillis() < deadline) {
+                    int remaining = 0;
+                    for (UdpServent servent : others) {
+                        if (hasMember(servent, crashed)) {
+                            remaining++;
+                        }
+                    }
+                    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+                    if (remaining < others.size() && firstDetection.equals("-")) {
+                        firstDetection = String.valueOf(elapsedMillis);
+                    }
+                    if (remaining == 0) {
+                        lastDetection = String.valueOf(elapsedMillis);
+                        break;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+
+            System.out.println(String.format(Locale.ROOT, "%s\t%s\t%d\t%d\t%d\t%.3f\t%s\t%s\t%d",
+                    detector, isSuspicionEnabled ? "yes" : "no", dropRate, falseRemovals, suspicions,
+                    falseRemovals * 60.0 / nodeCount / durationSeconds, firstDetection, lastDetection, threadCount));
+        } finally {
+            for (UdpServent servent : servents) {
+                servent.shutdown();
+            }
+        }
+    }
+
+    private static boolean isConverged(List<UdpServent> servents, int nodeCount) {
+        for (UdpServent servent : servents) {
+            if (!servent.isJoined || servent.getMembers().size() != nodeCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInAllMemberLists(List<UdpServent> servents, UdpServent target) {
+        for (UdpServent servent : servents) {
+            if (servent != target && !hasMember(servent, target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasMember(UdpServent servent, UdpServent target) {
+        for (GroupMember groupMember : servent.getMembers()) {
+            if (groupMember.getIp().equals(target.getLocalMember().getIp())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,75 @@
+import java.net.InetAddress;
+
+/**
+ * Decides from the pings and the pongs whether a monitored member has failed. The servent tells it when a ping is sent
+ * and when the member answers, and checks the members it pings every FAILURE_CHECK_PERIOD_MS. The detectors keep the
+ * history of each member themselves, so they can be swapped without changing the servent.
+ *
+ * The methods are called by the server thread and the scheduler at the same time.
+ */
+public interface FailureDetector {
+    /**
+     * @param member Ip of the member that is pinged.
+     * @param nowMillis Current time from System.currentTimeMillis.
+     */
+    void pingSent(InetAddress member, long nowMillis);
+
+    /**
+     * Record an answer of the member, directly or through another member.
+     *
+     * @param member Ip of the member that answered.
+     * @param nowMillis Current time from System.currentTimeMillis.
+     */
+    void pongReceived(InetAddress member, long nowMillis);
+
+    /**
+     * @return How strongly the member is suspected, 0 for a member that has just answered. It is only comparable
+     *         between the members of the same detector.
+     */
+    double getSuspicionLevel(InetAddress member, long nowMillis);
+
+    /**
+     * @return true if the member is considered failed. It stays true until the member answers again.
+     */
+    boolean isFailed(InetAddress member, long nowMillis);
+
+    /**
+     * Forget the history of a member that is no longer pinged.
+     */
+    void remove(InetAddress member);
+
+    /**
+     * Create the failure detector from the arguments of the main class, "--failure-detector timeout|phi" and
+     * "--phi-threshold 8". The fixed timeout is used if there is none.
+     *
+     * @param args Arguments of the main class.
+     * @param pingPeriodMillis Period of the pings.
+     * @param timeoutMillis Timeout of the fixed timeout detector.
+     * @return The failure detector.
+     * @throws IllegalArgumentException If an option is unknown or has no value.
+     */
+    static FailureDetector fromArguments(String[] args, long pingPeriodMillis, long timeoutMillis) {
+        String name = "timeout";
+        double threshold = PhiAccrualFailureDetector.DEFAULT_THRESHOLD;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            if (args[i].equals("--failure-detector")) {
+                name = args[i + 1];
+            } else if (args[i].equals("--phi-threshold")) {
+                threshold = Double.parseDouble(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (name.equals("timeout")) {
+            return new TimeoutFailureDetector(timeoutMillis);
+        } else if (name.equals("phi")) {
+            // One lost pong is accepted.
+            return new PhiAccrualFailureDetector(threshold, PhiAccrualFailureDetector.DEFAULT_WINDOW_SIZE,
+                    PhiAccrualFailureDetector.DEFAULT_MIN_STD_DEVIATION_MILLIS, pingPeriodMillis, pingPeriodMillis);
+        }
+        throw new IllegalArgumentException("Unknown failure detector " + name);
+    }
+}
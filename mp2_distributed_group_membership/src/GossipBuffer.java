@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent membership updates that are piggybacked on the PING and PONG messages, like the infection-style dissemination
+ * of SWIM. Each update is sent a limited number of times that grows with the log of the group size, and the updates
+ * that were sent the least are sent first. A message only carries as many updates as fit in its size limit, so the
+ * bandwidth of a node stays the same as the group grows, and an update still reaches everyone in O(log n) periods.
+ */
+public class GossipBuffer {
+    // Each update is sent RETRANSMIT_MULTIPLIER * ceil(log2(n + 1)) times in a group of n members.
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+    // The ids of the members that left are kept for a while, so a JOIN that is still gossiped does not add them back.
+    private static final int MAX_REMOVED_IDS = 1024;
+
+    private final List<PendingUpdate> pendingUpdates = new ArrayList<>();
+    private final Map<String, Boolean> removedIds = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REMOVED_IDS;
+        }
+    };
+
+    /**
+     * Start gossiping an update. It replaces the pending update of the same member, which is older. An update that is
+     * already pending is not added again.
+     *
+     * @param update The update.
+     * @param groupSize Number of members including this node, which decides how many times the update is sent.
+     */
+    public synchronized void add(MembershipUpdate update, int groupSize) {
+        if (update.getType() == MembershipUpdate.Type.LEAVE) {
+            removedIds.put(update.getMemberId(), true);
+        }
+        Iterator<PendingUpdate> iterator = pendingUpdates.iterator();
+        while (iterator.hasNext()) {
+            MembershipUpdate pendingUpdate = iterator.next().update;
+            if (pendingUpdate.getMemberId().equals(update.getMemberId())) {
+                if (pendingUpdate.getType() == update.getType()
+                        && pendingUpdate.getIncarnation() == update.getIncarnation()) {
+                    return;
+                }
+                iterator.remove();
+            }
+        }
+        pendingUpdates.add(new PendingUpdate(update, getRetransmitLimit(groupSize)));
+    }
+
+    /**
+     * @return true if the member has left or failed, so its JOIN should be ignored. A member that joins again has a
+     *         new timestamp, so its id is different.
+     */
+    public synchronized boolean isRemoved(String memberId) {
+        return removedIds.containsKey(memberId);
+    }
+
+    /**
+     * Remember that a member has left without gossiping it, like when this node learns it from a LEAVE message.
+     */
+    public synchronized void markRemoved(String memberId) {
+        removedIds.put(memberId, true);
+    }
+
+    /**
+     * Take the updates to piggyback on the next message. Each update that is taken is counted as sent once, and it is
+     * dropped once it has been sent enough times.
+     *
+     * @param maxBytes Maximum number of bytes of the encoded updates (see MessageCodec).
+     * @return The updates, which is empty if there is none.
+     */
+    public synchronized List<MembershipUpdate> takePiggyback(int maxBytes) {
+        List<MembershipUpdate> piggyback = new ArrayList<>();
+        if (pendingUpdates.isEmpty()) {
+            return piggyback;
+        }
+        pendingUpdates.sort(Comparator.comparingInt(pendingUpdate -> pendingUpdate.transmitCount));
+        int length = 0;
+        List<PendingUpdate> sentUpdates = new ArrayList<>();
+        for (PendingUpdate pendingUpdate : pendingUpdates) {
+            length += MessageCodec.getEncodedLength(pendingUpdate.update);
+            if (length > maxBytes) {
+                break;
+            }
+            piggyback.add(pendingUpdate.update);
+            sentUpdates.add(pendingUpdate);
+        }
+        for (PendingUpdate sentUpdate : sentUpdates) {
+            sentUpdate.transmitCount++;
+            if (sentUpdate.transmitCount >= sentUpdate.transmitLimit) {
+                pendingUpdates.remove(sentUpdate);
+            }
+        }
+        return piggyback;
+    }
+
+    // Used when the node leaves the group.
+    public synchronized void clear() {
+        pendingUpdates.clear();
+        removedIds.clear();
+    }
+
+    static int getRetransmitLimit(int groupSize) {
+        int log2 = 32 - Integer.numberOfLeadingZeros(Math.max(groupSize, 1));
+        return RETRANSMIT_MULTIPLIER * log2;
+    }
+
+    private static class PendingUpdate {
+        private final MembershipUpdate update;
+        private final int transmitLimit;
+        private int transmitCount = 0;
+
+        PendingUpdate(MembershipUpdate update, int transmitLimit) {
+            this.update = update;
+            this.transmitLimit = transmitLimit;
+        }
+    }
+}
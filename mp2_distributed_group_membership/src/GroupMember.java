@@ -1,12 +1,20 @@
 import java.net.InetAddress;
 
 /**
- * Data class for a node.
+ * Data class for a node. The incarnation is only increased by the node itself to refute a suspicion, so a newer
+ * incarnation overrides what the others suspected before.
  */
 public class GroupMember {
     public static String MEMBER_ID_SEPARATOR = "@";
     private InetAddress ip;
     private String joinTimestamp;
+    private int incarnation = 0;
+    private State state = State.ALIVE;
+
+    public enum State {
+        ALIVE, // The member answers the pings.
+        SUSPECT // The member did not answer the direct and the indirect pings, and is removed unless it refutes it.
+    }
 
     public GroupMember(InetAddress ip) {
         this.ip = ip;
@@ -29,6 +37,22 @@ public class GroupMember {
         this.joinTimestamp = joinTimestamp;
     }
 
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    public void setIncarnation(int incarnation) {
+        this.incarnation = incarnation;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
     // Id is the combination of ip address and join timestamp
     public String getId() {
         return ip.getHostAddress() + MEMBER_ID_SEPARATOR + joinTimestamp;
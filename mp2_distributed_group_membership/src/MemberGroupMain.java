@@ -10,15 +10,7 @@ import java.util.logging.*;
  * We also handle the user input here.
  */
 public class MemberGroupMain {
-    private static InetAddress INTRODUCER_IP;
-
-    static {
-        try {
-            INTRODUCER_IP = InetAddress.getByName("fa22-cs425-0501.cs.illinois.edu");
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private static final String INTRODUCER_HOST = "fa22-cs425-0501.cs.illinois.edu";
 
     public static final Logger LOGGER;
 
@@ -41,7 +33,19 @@ public class MemberGroupMain {
         }
     }
 
+    /**
+     * @param args Optional "--failure-detector phi" for the phi accrual failure detector, and "--phi-threshold 8".
+     */
     public static void main(String[] args) {
+        FailureDetector failureDetector =
+                FailureDetector.fromArguments(args, UdpServent.PING_FREQUENCY_MS, UdpServent.PING_TIMEOUT_MS);
+        // Only resolved here, so the servents can be started without the VMs, like by the benchmark.
+        InetAddress introducerIp;
+        try {
+            introducerIp = InetAddress.getByName(INTRODUCER_HOST);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
         /*
          * When It is the first member. Then we will create a group. We will always start VM01 as the first member and
          * treat it as the introducer. We will need "01" as the argument.
@@ -59,6 +63,7 @@ public class MemberGroupMain {
         }
 
         UdpServent udpServent = new UdpServent(dropRate);
+        udpServent.setFailureDetector(failureDetector);
         if (vmId.equals("01")) {
             udpServent.isJoined = true;
             udpServent.getLocalMember().setTimestamp(String.valueOf(System.currentTimeMillis()));
@@ -82,11 +87,11 @@ public class MemberGroupMain {
                         System.out.println("The client is already in the group");
                     } else {
                         // VM01 works as the introducer.
-                        udpServent.getLocalMember().setTimestamp(String.valueOf(System.currentTimeMillis()));
-                        udpServent.sendMessage(new Message(SystemCommandType.CLIENT_JOIN, udpServent.getLocalMember().getId()), INTRODUCER_IP);
+                        udpServent.join(introducerIp);
                     }
                 } else if (parsedCommand.userInputCommandType == UserInputCommandType.LEAVE) {
-                    udpServent.sendMessageToAllTargetMembers(new Message(SystemCommandType.LEAVE, udpServent.getLocalMember().getIp().getHostAddress()));
+                    udpServent.sendMessageToAllTargetMembers(
+                            Message.withIp(SystemCommandType.LEAVE, udpServent.getLocalMember().getIp()));
                     udpServent.reset();
                 } else if (parsedCommand.userInputCommandType == UserInputCommandType.GREP) {
                     udpServent.sendMessageToAllMembers(new Message(SystemCommandType.GREP, command));
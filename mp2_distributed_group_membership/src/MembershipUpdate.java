@@ -0,0 +1,61 @@
+/**
+ * Data class for a change of the member list that is gossiped among the nodes. It is encoded by MessageCodec, and it is
+ * logged as a prefix for the type, the id of the member and the incarnation, like "?ip@timestamp#2" for a suspicion.
+ */
+public class MembershipUpdate {
+    private static final String INCARNATION_SEPARATOR = "#";
+
+    // A type is encoded by its ordinal, so a new type is only added at the end.
+    public enum Type {
+        JOIN("+"), // The member joined the group.
+        ALIVE("!"), // The member refuted a suspicion with a new incarnation.
+        SUSPECT("?"), // The member did not answer the direct and the indirect pings.
+        LEAVE("-"); // The member left, or it was suspected for too long and is removed.
+
+        private final String prefix;
+
+        Type(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+    }
+
+    private final Type type;
+    private final String memberId;
+    private final int incarnation;
+
+    public MembershipUpdate(Type type, String memberId) {
+        this(type, memberId, 0);
+    }
+
+    /**
+     * @param type Type of the update.
+     * @param memberId Id of the member like "ip@timestamp".
+     * @param incarnation Incarnation of the member. It only matters for ALIVE and SUSPECT.
+     */
+    public MembershipUpdate(Type type, String memberId, int incarnation) {
+        this.type = type;
+        this.memberId = memberId;
+        this.incarnation = incarnation;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    @Override
+    public String toString() {
+        return type.getPrefix() + memberId + INCARNATION_SEPARATOR + incarnation;
+    }
+}
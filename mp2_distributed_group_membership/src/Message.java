@@ -1,18 +1,50 @@
-/**
- * Data class for the message that we send among the nodes.
- */
-public class Message {
-    private String systemCommand;
-
-    public String getSystemCommand() {
-        return systemCommand;
-    }
-
-    public Message(SystemCommandType systemCommandType, String content) {
-        if (content == null) {
-            this.systemCommand = systemCommandType.toEncryptedString();
-        } else {
-            this.systemCommand = systemCommandType.toEncryptedString() + CommandParserUtil.COMMAND_SEPARATOR + content;
-        }
-    }
-}
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Data class for the message that we send among the nodes. It is encoded by MessageCodec when it is sent.
+ */
+public class Message {
+    private final SystemCommand systemCommand;
+
+    public SystemCommand getSystemCommand() {
+        return systemCommand;
+    }
+
+    // Used by GREP and GREP_RESP, which carry a text.
+    public Message(SystemCommandType systemCommandType, String content) {
+        this.systemCommand = new SystemCommand(systemCommandType, content);
+    }
+
+    private Message(SystemCommandType systemCommandType) {
+        this.systemCommand = new SystemCommand(systemCommandType, null);
+    }
+
+    // Used by CLIENT_JOIN and JOIN.
+    public static Message withMember(SystemCommandType systemCommandType, GroupMember member) {
+        Message message = new Message(systemCommandType);
+        message.systemCommand.member = member;
+        return message;
+    }
+
+    // Used by ROUTE_JOIN and SUCCESS_JOIN.
+    public static Message withMembers(SystemCommandType systemCommandType, List<GroupMember> members) {
+        Message message = new Message(systemCommandType);
+        message.systemCommand.members.addAll(members);
+        return message;
+    }
+
+    // Used by LEAVE, PING_REQ and PING_REQ_ACK.
+    public static Message withIp(SystemCommandType systemCommandType, InetAddress ip) {
+        Message message = new Message(systemCommandType);
+        message.systemCommand.ip = ip;
+        return message;
+    }
+
+    // Used by PING and PONG with the membership updates that are piggybacked.
+    public static Message withUpdates(SystemCommandType systemCommandType, List<MembershipUpdate> updates) {
+        Message message = new Message(systemCommandType);
+        message.systemCommand.updates.addAll(updates);
+        return message;
+    }
+}
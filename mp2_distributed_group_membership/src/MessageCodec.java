@@ -0,0 +1,256 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary encoding of the commands that we send among the nodes. A message is the VERSION byte and the ordinal of its
+ * SystemCommandType, followed by the content of the type:
+ * - GREP and GREP_RESP: the text as a varint length and its UTF-8 bytes.
+ * - CLIENT_JOIN and JOIN: the member.
+ * - ROUTE_JOIN and SUCCESS_JOIN: a varint count and the members.
+ * - LEAVE, PING_REQ and PING_REQ_ACK: the 4 bytes of the IPv4 address.
+ * - PING and PONG: a varint count and the membership updates, each as the ordinal of its type, the member and the
+ *   incarnation as a varint.
+ * A member is the 4 bytes of its IPv4 address and its join timestamp as a varint, which is 10 bytes instead of the
+ * about 30 characters of "ip@timestamp,", so the member list of hundreds of nodes fits in one datagram. A varint is
+ * unsigned LEB128, 7 bits in each byte with the high bit set on every byte but the last.
+ */
+public class MessageCodec {
+    // Changed with any change of the encoding, so a node ignores the messages of another version.
+    public static final byte VERSION = 1;
+    // Largest payload of a UDP datagram over IPv4.
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int IPV4_LENGTH = 4;
+    // Copied once, since values() returns a new array on each call.
+    private static final SystemCommandType[] COMMAND_TYPES = SystemCommandType.values();
+    private static final MembershipUpdate.Type[] UPDATE_TYPES = MembershipUpdate.Type.values();
+
+    /**
+     * Encode a command at the position of the buffer.
+     *
+     * @param command The command to encode.
+     * @param buffer Buffer to write to. Its position is moved past the message.
+     * @throws java.nio.BufferOverflowException if the message does not fit in the buffer.
+     * @throws IllegalArgumentException if an address is not IPv4.
+     */
+    public static void encode(SystemCommand command, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put((byte) command.systemCommandType.ordinal());
+        switch (command.systemCommandType) {
+            case GREP:
+            case GREP_RESP:
+                byte[] text = command.content.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(buffer, text.length);
+                buffer.put(text);
+                break;
+            case CLIENT_JOIN:
+            case JOIN:
+                writeMember(buffer, command.member.getIp(), command.member.getTimestamp());
+                break;
+            case ROUTE_JOIN:
+            case SUCCESS_JOIN:
+                writeVarLong(buffer, command.members.size());
+                for (GroupMember groupMember : command.members) {
+                    writeMember(buffer, groupMember.getIp(), groupMember.getTimestamp());
+                }
+                break;
+            case LEAVE:
+            case PING_REQ:
+            case PING_REQ_ACK:
+                writeIp(buffer, command.ip);
+                break;
+            case PING:
+            case PONG:
+                writeVarLong(buffer, command.updates.size());
+                for (MembershipUpdate update : command.updates) {
+                    writeUpdate(buffer, update);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported command type " + command.systemCommandType);
+        }
+    }
+
+    /**
+     * Decode a message from the position to the limit of the buffer into a command. The command is reused for every
+     * message, so a PING or PONG without updates is decoded without allocating anything, and the addresses are taken
+     * from their bytes without resolving a host name.
+     *
+     * @param buffer Buffer with the message.
+     * @param command Command to decode into. All of its fields are reset.
+     * @return false if the message is of another version or it is malformed.
+     */
+    public static boolean decode(ByteBuffer buffer, SystemCommand command) {
+        command.content = null;
+        command.member = null;
+        command.ip = null;
+        command.members.clear();
+        command.updates.clear();
+        try {
+            if (buffer.get() != VERSION) {
+                return false;
+            }
+            int typeOrdinal = buffer.get();
+            if (typeOrdinal < 0 || typeOrdinal >= COMMAND_TYPES.length) {
+                return false;
+            }
+            command.systemCommandType = COMMAND_TYPES[typeOrdinal];
+            switch (command.systemCommandType) {
+                case GREP:
+                case GREP_RESP:
+                    byte[] text = new byte[readLength(buffer)];
+                    buffer.get(text);
+                    command.content = new String(text, StandardCharsets.UTF_8);
+                    break;
+                case CLIENT_JOIN:
+                case JOIN:
+                    command.member = new GroupMember(readIp(buffer), readTimestamp(buffer));
+                    break;
+                case ROUTE_JOIN:
+                case SUCCESS_JOIN:
+                    for (int memberCount = readLength(buffer); memberCount > 0; memberCount--) {
+                        command.members.add(new GroupMember(readIp(buffer), readTimestamp(buffer)));
+                    }
+                    break;
+                case LEAVE:
+                case PING_REQ:
+                case PING_REQ_ACK:
+                    command.ip = readIp(buffer);
+                    break;
+                case PING:
+                case PONG:
+                    readUpdates(buffer, command.updates);
+                    break;
+                default:
+                    return false;
+            }
+            return !buffer.hasRemaining();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Number of bytes of the update in a PING or PONG, not counting the number of updates before them.
+     */
+    public static int getEncodedLength(MembershipUpdate update) {
+        List<String> memberInfo = CommandParserUtil.parseMemberId(update.getMemberId());
+        return 1 + IPV4_LENGTH + getVarLongLength(toTimestampValue(memberInfo.get(1)))
+                + getVarLongLength(update.getIncarnation());
+    }
+
+    private static void writeUpdate(ByteBuffer buffer, MembershipUpdate update) {
+        List<String> memberInfo = CommandParserUtil.parseMemberId(update.getMemberId());
+        InetAddress ip;
+        try {
+            // The id always has the ip literal, so it is not resolved.
+            ip = InetAddress.getByName(memberInfo.get(0));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid member id " + update.getMemberId(), e);
+        }
+        buffer.put((byte) update.getType().ordinal());
+        writeMember(buffer, ip, memberInfo.get(1));
+        writeVarLong(buffer, update.getIncarnation());
+    }
+
+    private static void readUpdates(ByteBuffer buffer, List<MembershipUpdate> updates) {
+        for (int updateCount = readLength(buffer); updateCount > 0; updateCount--) {
+            int typeOrdinal = buffer.get();
+            if (typeOrdinal < 0 || typeOrdinal >= UPDATE_TYPES.length) {
+                throw new IllegalArgumentException("Unknown membership update type " + typeOrdinal);
+            }
+            // The id is built from the bytes, like InetAddress.getHostAddress would.
+            StringBuilder memberId = new StringBuilder();
+            for (int i = 0; i < IPV4_LENGTH; i++) {
+                if (i > 0) {
+                    memberId.append('.');
+                }
+                memberId.append(buffer.get() & 0xff);
+            }
+            memberId.append(GroupMember.MEMBER_ID_SEPARATOR).append(readTimestamp(buffer));
+            long incarnation = readVarLong(buffer);
+            if (incarnation > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Incarnation is too large " + incarnation);
+            }
+            updates.add(new MembershipUpdate(UPDATE_TYPES[typeOrdinal], memberId.toString(), (int) incarnation));
+        }
+    }
+
+    private static void writeMember(ByteBuffer buffer, InetAddress ip, String timestamp) {
+        writeIp(buffer, ip);
+        writeVarLong(buffer, toTimestampValue(timestamp));
+    }
+
+    private static void writeIp(ByteBuffer buffer, InetAddress ip) {
+        byte[] address = ip.getAddress();
+        if (address.length != IPV4_LENGTH) {
+            throw new IllegalArgumentException("Only IPv4 addresses are supported " + ip.getHostAddress());
+        }
+        buffer.put(address);
+    }
+
+    private static InetAddress readIp(ByteBuffer buffer) {
+        byte[] address = new byte[IPV4_LENGTH];
+        buffer.get(address);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // Only thrown for an address of a wrong length.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // A member that has not joined yet has an empty timestamp, which is sent as 0.
+    private static long toTimestampValue(String timestamp) {
+        return timestamp == null || timestamp.isEmpty() ? 0 : Long.parseLong(timestamp);
+    }
+
+    private static String readTimestamp(ByteBuffer buffer) {
+        long timestamp = readVarLong(buffer);
+        return timestamp == 0 ? "" : String.valueOf(timestamp);
+    }
+
+    private static void writeVarLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint " + value);
+        }
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    // A count or a length can not be larger than the rest of the message, so a corrupted one does not allocate much.
+    private static int readLength(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " is larger than the message");
+        }
+        return (int) length;
+    }
+
+    static int getVarLongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            length++;
+            value >>>= 7;
+        }
+        return length;
+    }
+}
@@ -1,13 +1,50 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Data class for the commands that we use to send among the nodes.
+ * Data class for the commands that we use to send among the nodes. Only the fields of its type are set. The server
+ * decodes every message into the same command (see MessageCodec), so the lists are cleared instead of created again.
  */
 public class SystemCommand {
     public SystemCommandType systemCommandType;
+    // The text of GREP and GREP_RESP.
     public String content;
+    // The member of CLIENT_JOIN and JOIN.
+    public GroupMember member;
+    // The ip of LEAVE, PING_REQ and PING_REQ_ACK.
+    public InetAddress ip;
+    // The member list of ROUTE_JOIN and SUCCESS_JOIN.
+    public final List<GroupMember> members = new ArrayList<>();
+    // The membership updates piggybacked on PING and PONG.
+    public final List<MembershipUpdate> updates = new ArrayList<>();
+
+    public SystemCommand() {
+    }
 
     public SystemCommand(SystemCommandType systemCommandType, String content) {
         this.systemCommandType = systemCommandType;
         this.content = content;
     }
-}
 
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.valueOf(systemCommandType));
+        if (content != null) {
+            sb.append(' ').append(content);
+        }
+        if (member != null) {
+            sb.append(' ').append(member.getId());
+        }
+        if (ip != null) {
+            sb.append(' ').append(ip.getHostAddress());
+        }
+        for (GroupMember groupMember : members) {
+            sb.append(' ').append(groupMember.getId());
+        }
+        for (MembershipUpdate update : updates) {
+            sb.append(' ').append(update);
+        }
+        return sb.toString();
+    }
+}
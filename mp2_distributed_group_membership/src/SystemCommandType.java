@@ -1,3 +1,4 @@
+// A type is encoded by its ordinal (see MessageCodec), so a new type is only added at the end.
 public enum SystemCommandType {
     GREP, // Command to ask for grep result
     GREP_RESP, // Command to return the grep result
@@ -5,12 +6,9 @@ public enum SystemCommandType {
     ROUTE_JOIN, // Command that the introducer sends to the joining node with an IP of a node in the group.
     JOIN, // Command that a joining node sends to join the group followed by its id.
     SUCCESS_JOIN, // Command that the join receiver sends to the joining node with the information of the current member list.
-    SHARE_JOIN, // Command that the join receiver sends to other nodes to share the information of the new node.
     LEAVE, // Command that a node showing it is leaving the group followed by its ip address.
     PING, // Command to check if the node is still alive.
-    PONG; // Command to respond to the PING command
-
-    public String toEncryptedString() {
-        return this.toString();
-    }
+    PONG, // Command to respond to the PING command
+    PING_REQ, // Command asking a member to ping a target for the sender, followed by the ip of the target.
+    PING_REQ_ACK // Command that forwards the PONG of the target of a PING_REQ, followed by the ip of the target.
 }
@@ -0,0 +1,52 @@
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Failure detector with a fixed timeout. A member has failed when its oldest unanswered ping was sent at least the
+ * timeout ago, which is the same as a timeout that starts with each ping and is canceled by the pong.
+ */
+public class TimeoutFailureDetector implements FailureDetector {
+    private final long timeoutMillis;
+    // The time of the oldest unanswered ping of each member.
+    private final Map<InetAddress, Long> firstUnansweredPingMillis = new ConcurrentHashMap<>();
+
+    public TimeoutFailureDetector(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout " + timeoutMillis + " is not positive");
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void pingSent(InetAddress member, long nowMillis) {
+        firstUnansweredPingMillis.putIfAbsent(member, nowMillis);
+    }
+
+    @Override
+    public void pongReceived(InetAddress member, long nowMillis) {
+        firstUnansweredPingMillis.remove(member);
+    }
+
+    // The fraction of the timeout that has passed, so the member is failed at 1.
+    @Override
+    public double getSuspicionLevel(InetAddress member, long nowMillis) {
+        Long pingMillis = firstUnansweredPingMillis.get(member);
+        return pingMillis == null ? 0 : (double) Math.max(nowMillis - pingMillis, 0) / timeoutMillis;
+    }
+
+    @Override
+    public boolean isFailed(InetAddress member, long nowMillis) {
+        return getSuspicionLevel(member, nowMillis) >= 1;
+    }
+
+    @Override
+    public void remove(InetAddress member) {
+        firstUnansweredPingMillis.remove(member);
+    }
+
+    @Override
+    public String toString() {
+        return "timeout " + timeoutMillis + " ms";
+    }
+}
@@ -1,50 +1,109 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
  * This class will work as both a client and a server. Therefore, we have a centralized place for shared information
  * like the member list. All the commands that we send and receive in the system will be handled here.
+ *
+ * Joins and failures are not flooded to the group. They are gossiped by piggybacking them on the PING and PONG
+ * messages (see GossipBuffer), and each period a random member is also pinged with the updates, so they reach the
+ * whole group in O(log n) periods while each node sends the same number of messages.
+ *
+ * A target that does not answer the pings is not removed at once, like the failure detector of SWIM. It is pinged
+ * again through INDIRECT_PROBE_COUNT random members with PING_REQ, and if none of them gets a PONG, it is gossiped
+ * as SUSPECT. A suspected node refutes it by gossiping ALIVE with a larger incarnation, and it is only removed if the
+ * suspicion is not refuted in time. A lost packet or a short pause then no longer removes a member.
  */
 public class UdpServent {
-    private static final int PING_FREQUENCY_MS = 500;
-    private static final int PING_TIMEOUT_MS = 3000;
+    public static final int PING_FREQUENCY_MS = 500;
+    // A target that does not answer for this long is probed through other members. It is shorter than the 3 seconds
+    // before the members were removed at the first timeout, since the target is only suspected after this.
+    public static final int PING_TIMEOUT_MS = 1500;
+    // How often the failure detector is asked about the targets.
+    private static final int FAILURE_CHECK_PERIOD_MS = 100;
+    private static final int INDIRECT_PROBE_COUNT = 3;
+    private static final int INDIRECT_PROBE_TIMEOUT_MS = 1000;
+    // A suspected member is removed after SUSPICION_MULTIPLIER * ceil(log2(n + 1)) ping periods, which is enough for
+    // its refutation to be gossiped to the group.
+    private static final int SUSPICION_MULTIPLIER = 2;
     public static final int GROUP_PORT = 8002;
-    public static final String MEMBER_LIST_SEPARATOR = ",";
+    // Maximum bytes of the membership updates piggybacked on a PING or PONG. It is about 40 updates, and the pings
+    // stay well under one Ethernet frame.
+    private static final int MAX_PIGGYBACK_BYTES = 512;
 
-    private List<GroupMember> members = new ArrayList<>();
+    // Read by the timer threads while the server thread changes it.
+    private List<GroupMember> members = new CopyOnWriteArrayList<>();
     private ConnectionTopology connectionTopology;
     private final DatagramSocket socket;
     private final GroupMember localMember;
-    private HashMap<InetAddress, ScheduledFuture<?>> pingThreadMap = new HashMap<>();
-    private HashMap<InetAddress, ScheduledFuture<?>> pingTimeoutThreadMap = new HashMap<>();
+    // The periodic ping of each target, by its ip. It is changed by the server thread and by the scheduler.
+    private final Map<InetAddress, ScheduledFuture<?>> pingTaskMap = new ConcurrentHashMap<>();
+    private volatile FailureDetector failureDetector = new TimeoutFailureDetector(PING_TIMEOUT_MS);
     public boolean isJoined = false;
-    private int dropRate = 0;
+    private volatile int dropRate = 0;
+    private Thread serverThread;
+    private final GossipBuffer gossipBuffer = new GossipBuffer();
+    // Every message is encoded into this buffer, which is locked while it is sent by one of the threads.
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MessageCodec.MAX_DATAGRAM_SIZE);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), 0, null, GROUP_PORT);
+    // One thread runs every ping, gossip and timeout of this node, so the threads do not grow with the targets. The
+    // canceled timeouts are removed from its queue at once, so the memory does not grow with the churn either.
+    private final ScheduledExecutorService scheduler = createScheduler();
+    private final Map<InetAddress, ScheduledFuture<?>> indirectProbeTimeoutMap = new ConcurrentHashMap<>();
+    private final Map<InetAddress, ScheduledFuture<?>> suspicionTimeoutMap = new ConcurrentHashMap<>();
+    // The members that asked this node to ping a target with PING_REQ, by the ip of the target.
+    private final Map<InetAddress, Set<InetAddress>> pingRequesterMap = new ConcurrentHashMap<>();
+    private boolean isSuspicionEnabled = true;
+    private final AtomicInteger suspicionCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
 
     public UdpServent(int dropRate) {
+        this(null, dropRate);
+    }
+
+    /**
+     * @param localIp Address of this node, so several nodes can run on one host with addresses like 127.0.0.2. If it
+     *                is null, the node uses the ip of the host and receives on all the addresses.
+     * @param dropRate Percentage of the messages that are dropped instead of sent.
+     */
+    public UdpServent(InetAddress localIp, int dropRate) {
         try {
             this.dropRate = dropRate;
 
-            InetAddress localIp = InetAddress.getLocalHost();
+            if (localIp == null) {
+                localIp = InetAddress.getLocalHost();
+                socket = new DatagramSocket(GROUP_PORT);
+            } else {
+                socket = new DatagramSocket(new InetSocketAddress(localIp, GROUP_PORT));
+            }
             localMember = new GroupMember(localIp);
             MemberGroupMain.LOGGER.info("Current ip is " + localIp);
             members.add(localMember);
-
-            socket = new DatagramSocket(GROUP_PORT);
         } catch (UnknownHostException | SocketException e) {
             throw new RuntimeException(e);
         }
         // Always start the server
         runServer();
+        startGossip();
+        startFailureCheck();
     }
 
     public GroupMember getLocalMember() {
@@ -58,36 +117,107 @@ public class UdpServent {
             if (new Random().nextInt(100) + 1 <= dropRate) {
                 MemberGroupMain.LOGGER.fine("Message " + message.getSystemCommand() + " is dropped");
             } else {
-                MemberGroupMain.LOGGER.fine("Client sends " + message.getSystemCommand() + " to " + destinationIp);
-                byte[] buf = message.getSystemCommand().getBytes();
-                DatagramPacket queryPacket = new DatagramPacket(buf, buf.length, destinationIp, GROUP_PORT);
-                socket.send(queryPacket);
+                if (MemberGroupMain.LOGGER.isLoggable(Level.FINE)) {
+                    MemberGroupMain.LOGGER.fine("Client sends " + message.getSystemCommand() + " to " + destinationIp);
+                }
+                synchronized (sendBuffer) {
+                    sendBuffer.clear();
+                    MessageCodec.encode(message.getSystemCommand(), sendBuffer);
+                    sendPacket.setLength(sendBuffer.position());
+                    sendPacket.setAddress(destinationIp);
+                    socket.send(sendPacket);
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | BufferOverflowException | IllegalArgumentException e) {
+            // The message is too large for a datagram, or it has an IPv6 address.
             MemberGroupMain.LOGGER.log(Level.SEVERE, "Error: sending message failed " + e);
         }
     }
 
+    // Ask the introducer for the members to join through, with a new join timestamp.
+    public void join(InetAddress introducerIp) {
+        localMember.setTimestamp(String.valueOf(System.currentTimeMillis()));
+        localMember.setIncarnation(0);
+        sendMessage(Message.withMember(SystemCommandType.CLIENT_JOIN, localMember), introducerIp);
+    }
+
     // Reset the data. Used when leave the group.
-    public void reset() {
+    public synchronized void reset() {
         stopAllCurrentPingThreads();
-        members = new ArrayList<>();
+        cancelTimeouts(indirectProbeTimeoutMap);
+        cancelTimeouts(suspicionTimeoutMap);
+        pingRequesterMap.clear();
+        gossipBuffer.clear();
+        members = new CopyOnWriteArrayList<>();
         connectionTopology = new ConnectionTopology(members);
         isJoined = false;
         localMember.setTimestamp("");
+        localMember.setIncarnation(0);
         members.add(localMember);
     }
 
+    /**
+     * Stop the node without telling the group, like a crash. Used by the benchmark.
+     */
+    public void shutdown() {
+        stopAllCurrentPingThreads();
+        scheduler.shutdownNow();
+        socket.close();
+        // The port is only released once the server thread stops receiving.
+        try {
+            serverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public String printMemberList() {
         StringBuilder sb = new StringBuilder();
-        sb.append("IP\t\tJOIN TIMESTAMP\n");
+        sb.append("IP\t\tJOIN TIMESTAMP\t\tSTATE\tSUSPICION LEVEL\n");
+        long nowMillis = System.currentTimeMillis();
         for (GroupMember groupMember : members) {
-            sb.append(groupMember.getIp().getHostAddress() + "\t" + groupMember.getTimestamp());
+            double suspicionLevel = failureDetector.getSuspicionLevel(groupMember.getIp(), nowMillis);
+            sb.append(groupMember.getIp().getHostAddress() + "\t" + groupMember.getTimestamp() + "\t"
+                    + groupMember.getState() + " " + groupMember.getIncarnation() + "\t"
+                    + String.format(Locale.ROOT, "%.2f", suspicionLevel));
             sb.append("\n");
         }
         return sb.toString();
     }
 
+    public List<GroupMember> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Use another failure detector, like the phi accrual one. It is set before joining the group.
+     */
+    public void setFailureDetector(FailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
+    }
+
+    // Used by the benchmark to join the group without drops and then measure with them.
+    public void setDropRate(int dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Only used by the benchmark to compare with the detector that removes a member at its first timeout.
+     */
+    public void setSuspicionEnabled(boolean isSuspicionEnabled) {
+        this.isSuspicionEnabled = isSuspicionEnabled;
+    }
+
+    // Number of times a member was suspected by this node.
+    public int getSuspicionCount() {
+        return suspicionCount.get();
+    }
+
+    // Number of times a member was removed because of a timeout of this node.
+    public int getFailureCount() {
+        return failureCount.get();
+    }
+
     // Used by the grep command
     public void sendMessageToAllMembers(Message message) {
         for (GroupMember groupMember : members) {
@@ -104,29 +234,69 @@ public class UdpServent {
         }
     }
 
-    // We should also ping the target member in most of the situations.
-    private void sendMessageToAllTargetMembersAndStartPing(Message message) {
-        sendMessageToAllTargetMembers(message);
-        pingTargetMembers();
+    // PING and PONG carry the membership updates that are being gossiped.
+    private Message createMessageWithGossip(SystemCommandType systemCommandType) {
+        return Message.withUpdates(systemCommandType, gossipBuffer.takePiggyback(MAX_PIGGYBACK_BYTES));
+    }
+
+    // Every period, the pending updates are also sent to a random member, so they spread to random parts of the group
+    // instead of only along the ring, like the probes of SWIM. The failures are only detected by the ring targets, so
+    // there is no timeout for this ping.
+    private void startGossip() {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                gossipToRandomMember();
+            } catch (RuntimeException e) {
+                // An exception would stop the next runs.
+                MemberGroupMain.LOGGER.log(Level.WARNING, "Error: gossip failed " + e);
+            }
+        }, PING_FREQUENCY_MS, PING_FREQUENCY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void gossipToRandomMember() {
+        if (!isJoined) {
+            return;
+        }
+        List<GroupMember> otherMembers = new ArrayList<>();
+        for (GroupMember groupMember : members) {
+            if (!groupMember.getIp().equals(localMember.getIp())) {
+                otherMembers.add(groupMember);
+            }
+        }
+        if (otherMembers.isEmpty()) {
+            return;
+        }
+        List<MembershipUpdate> piggyback = gossipBuffer.takePiggyback(MAX_PIGGYBACK_BYTES);
+        if (!piggyback.isEmpty()) {
+            GroupMember randomMember = otherMembers.get(new Random().nextInt(otherMembers.size()));
+            MemberGroupMain.LOGGER.fine("Gossip " + piggyback + " to " + randomMember.getIp().getHostAddress());
+            sendMessage(Message.withUpdates(SystemCommandType.PING, piggyback), randomMember.getIp());
+        }
     }
 
     // Server will be responsible for receiving the message. It will keep running.
     private void runServer() {
-        Thread thread = new Thread(() -> {
-            byte[] buf = new byte[256];
+        serverThread = new Thread(() -> {
+            // The buffer, the packet and the command are reused for every message. The buffer takes any datagram, so
+            // the member list of a large group is not cut.
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(MessageCodec.MAX_DATAGRAM_SIZE);
+            DatagramPacket packet = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+            SystemCommand parsedSystemCommand = new SystemCommand();
             try {
                 while (true) {
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    packet.setLength(receiveBuffer.capacity());
                     socket.receive(packet);
                     InetAddress clientAddress = packet.getAddress();
 
-                    String inputLine = new String(packet.getData(), 0, packet.getLength());
-                    MemberGroupMain.LOGGER.fine("Input get from the server " + inputLine);
-
-                    SystemCommand parsedSystemCommand = CommandParserUtil.parseSystemCommand(inputLine);
-                    if (parsedSystemCommand == null) {
-                        MemberGroupMain.LOGGER.info("Server receives an unsupported command " + inputLine);
+                    receiveBuffer.clear();
+                    receiveBuffer.limit(packet.getLength());
+                    if (!MessageCodec.decode(receiveBuffer, parsedSystemCommand)) {
+                        MemberGroupMain.LOGGER.info("Server receives an unsupported message of " + packet.getLength()
+                                + " bytes from " + clientAddress.getHostAddress());
                     } else {
+                        if (MemberGroupMain.LOGGER.isLoggable(Level.FINE)) {
+                            MemberGroupMain.LOGGER.fine("Input get from the server " + parsedSystemCommand);
+                        }
                         if (isJoined) {
                             if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.GREP)) {
                                 String grepCommand = parsedSystemCommand.content;
@@ -140,59 +310,75 @@ public class UdpServent {
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.CLIENT_JOIN)) {
                                 // Return a list of available members in the group. Only introducer is expected to get this.
                                 MemberGroupMain.LOGGER.info("client address " + clientAddress.getHostAddress() + " is joining through introducer");
-                                sendMessage(new Message(SystemCommandType.ROUTE_JOIN, encodeMemberList()), clientAddress);
+                                sendMessage(Message.withMembers(SystemCommandType.ROUTE_JOIN, members), clientAddress);
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.JOIN)) {
-                                MemberGroupMain.LOGGER.info("joining client address " + parsedSystemCommand.content);
-                                // Check if the new node is included in the current members
-                                if (!isMemberInMembers(parsedSystemCommand.content)) {
-                                    List<String> memberInfo = CommandParserUtil.parseMemberId(parsedSystemCommand.content);
-                                    members.add(new GroupMember(InetAddress.getByName(memberInfo.get(0)), memberInfo.get(1)));
-                                    // Send reply to the joining node
-                                    sendMessage(new Message(SystemCommandType.SUCCESS_JOIN, encodeMemberList()), clientAddress);
-                                    // Share JOIN with other target members
-                                    sendMessageToAllTargetMembersAndStartPing(new Message(SystemCommandType.SHARE_JOIN, parsedSystemCommand.content));
-                                }
-                            } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.SHARE_JOIN)) {
-                                MemberGroupMain.LOGGER.info("join_share client address " + parsedSystemCommand.content);
-                                // Check if the new node is included in the current members
-                                if (!isMemberInMembers(parsedSystemCommand.content)) {
-                                    List<String> memberInfo = CommandParserUtil.parseMemberId(parsedSystemCommand.content);
-                                    members.add(new GroupMember(InetAddress.getByName(memberInfo.get(0)), memberInfo.get(1)));
-                                    // Share JOIN with other target members
-                                    sendMessageToAllTargetMembersAndStartPing(new Message(SystemCommandType.SHARE_JOIN, parsedSystemCommand.content));
-                                }
+                                String joiningId = parsedSystemCommand.member.getId();
+                                MemberGroupMain.LOGGER.info("joining client address " + joiningId);
+                                // The new node is gossiped to the group with the next pings.
+                                applyMembershipUpdate(new MembershipUpdate(MembershipUpdate.Type.JOIN, joiningId));
+                                // Send reply to the joining node
+                                sendMessage(Message.withMembers(SystemCommandType.SUCCESS_JOIN, members),
+                                        clientAddress);
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.LEAVE)) {
-                                MemberGroupMain.LOGGER.info("leaving client address " + parsedSystemCommand.content);
-                                if (isIpInMembers(parsedSystemCommand.content)) {
-                                    removeMemberAndShareWithGroup(parsedSystemCommand.content);
+                                String leavingIp = parsedSystemCommand.ip.getHostAddress();
+                                MemberGroupMain.LOGGER.info("leaving client address " + leavingIp);
+                                GroupMember leavingMember = findMemberByIp(leavingIp);
+                                if (leavingMember != null) {
+                                    applyMembershipUpdate(
+                                            new MembershipUpdate(MembershipUpdate.Type.LEAVE, leavingMember.getId()));
                                 }
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.PING)) {
                                 MemberGroupMain.LOGGER.fine("Ping is received, sending back pong to " + clientAddress.getHostAddress());
-                                sendMessage(new Message(SystemCommandType.PONG, null), clientAddress);
+                                applyMembershipUpdates(parsedSystemCommand.updates);
+                                sendMessage(createMessageWithGossip(SystemCommandType.PONG), clientAddress);
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.PONG)) {
                                 // Cancel the timeout thread
                                 MemberGroupMain.LOGGER.fine("Pong is received, canceling the timeout");
-                                ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(clientAddress);
-                                if (pingTimeoutThread != null) {
-                                    pingTimeoutThread.cancel(true);
-                                    pingTimeoutThreadMap.remove(clientAddress);
+                                onProbeAnswered(clientAddress);
+                                // Forward the PONG to the members that asked for it with PING_REQ.
+                                Set<InetAddress> requesters = pingRequesterMap.remove(clientAddress);
+                                if (requesters != null) {
+                                    for (InetAddress requester : requesters) {
+                                        sendMessage(Message.withIp(SystemCommandType.PING_REQ_ACK, clientAddress),
+                                                requester);
+                                    }
                                 }
+                                applyMembershipUpdates(parsedSystemCommand.updates);
+                            } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.PING_REQ)) {
+                                InetAddress targetIp = parsedSystemCommand.ip;
+                                MemberGroupMain.LOGGER.fine("Ping " + targetIp.getHostAddress() + " for "
+                                        + clientAddress.getHostAddress());
+                                pingRequesterMap.computeIfAbsent(targetIp, ip -> ConcurrentHashMap.newKeySet())
+                                        .add(clientAddress);
+                                sendMessage(createMessageWithGossip(SystemCommandType.PING), targetIp);
+                                // The requester stops waiting after the same time.
+                                scheduler.schedule(() -> {
+                                    Set<InetAddress> requesters = pingRequesterMap.get(targetIp);
+                                    if (requesters != null) {
+                                        requesters.remove(clientAddress);
+                                    }
+                                }, INDIRECT_PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                            } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.PING_REQ_ACK)) {
+                                MemberGroupMain.LOGGER.fine("Indirect pong is received from "
+                                        + parsedSystemCommand.ip.getHostAddress());
+                                onProbeAnswered(parsedSystemCommand.ip);
                             } else {
-                                MemberGroupMain.LOGGER.info("Command not handled " + inputLine);
+                                MemberGroupMain.LOGGER.info("Command not handled " + parsedSystemCommand);
                             }
                         } else {
                             // We will handle these two commands when the node is not joined into the group yet.
                             if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.ROUTE_JOIN)) {
                                 // Receive the route information from introducer. Will try to join through one of the ips.
-                                MemberGroupMain.LOGGER.info("get routed addresses " + parsedSystemCommand.content);
-                                List<GroupMember> groupMembers = CommandParserUtil.parseMemberListFromCommand(parsedSystemCommand);
+                                MemberGroupMain.LOGGER.info("get routed addresses " + parsedSystemCommand);
+                                List<GroupMember> groupMembers = parsedSystemCommand.members;
                                 int memberCount = groupMembers.size();
                                 GroupMember randomMember = groupMembers.get(new Random().nextInt(memberCount));
-                                sendMessage(new Message(SystemCommandType.JOIN, localMember.getId()), randomMember.getIp());
+                                sendMessage(Message.withMember(SystemCommandType.JOIN, localMember),
+                                        randomMember.getIp());
                             } else if (parsedSystemCommand.systemCommandType.equals(SystemCommandType.SUCCESS_JOIN)) {
                                 // update local member list based on the message
                                 MemberGroupMain.LOGGER.info("Successfully joined");
-                                members = CommandParserUtil.parseMemberListFromCommand(parsedSystemCommand);
+                                members = new CopyOnWriteArrayList<>(parsedSystemCommand.members);
                                 isJoined = true;
                                 pingTargetMembers();
                             } else {
@@ -202,114 +388,318 @@ public class UdpServent {
                     }
                 }
             } catch (IOException e) {
+                if (socket.isClosed()) {
+                    // The node is shut down.
+                    return;
+                }
                 throw new RuntimeException(e);
             }
         });
-        thread.start();
+        serverThread.start();
     }
 
-    // Cancel all the current ping threads.
+    private static ScheduledExecutorService createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    // Cancel all the current pings and forget their history.
     private void stopAllCurrentPingThreads() {
         MemberGroupMain.LOGGER.fine("Stop all ping threads");
-        for (InetAddress key : pingThreadMap.keySet()) {
-            pingThreadMap.get(key).cancel(true);
+        for (InetAddress ip : pingTaskMap.keySet()) {
+            stopPingThreadsToIp(ip);
         }
-        for (InetAddress key : pingTimeoutThreadMap.keySet()) {
-            pingTimeoutThreadMap.get(key).cancel(true);
-        }
-        pingThreadMap = new HashMap<>();
-        pingTimeoutThreadMap = new HashMap<>();
     }
 
-    // Cancel the current ping threads for the ip.
+    // Cancel the current ping for the ip and forget its history.
     private void stopPingThreadsToIp(InetAddress ip) {
         MemberGroupMain.LOGGER.fine("Stop the thread to " + ip);
-        ScheduledFuture<?> pingThread = pingThreadMap.get(ip);
-        if (pingThread != null) {
-            pingThread.cancel(true);
-            pingThreadMap.remove(ip);
-        }
-        ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(ip);
-        if (pingTimeoutThread != null) {
-            pingTimeoutThread.cancel(true);
-            pingTimeoutThreadMap.remove(ip);
-        }
+        cancelTimeout(pingTaskMap, ip);
+        failureDetector.remove(ip);
     }
 
-    // Start the ping to target members. This will stop all the current pings, calculate the target members based on the
-    // current information, and start to ping them.
+    // Start the ping to target members. The target members are calculated based on the current information. Only the
+    // members that are no longer targets stop being pinged and only the new targets start, so a change of the member
+    // list does not restart the timeouts of the other targets.
     private void pingTargetMembers() {
-        stopAllCurrentPingThreads();
-
         connectionTopology = new ConnectionTopology(members);
         List<GroupMember> targetMembers = connectionTopology.getTargets(localMember.getIp());
+        Set<InetAddress> targetIps = new HashSet<>();
+        for (GroupMember groupMember : targetMembers) {
+            targetIps.add(groupMember.getIp());
+        }
+        for (InetAddress ip : new ArrayList<>(pingTaskMap.keySet())) {
+            if (!targetIps.contains(ip)) {
+                stopPingThreadsToIp(ip);
+            }
+        }
         for (GroupMember groupMember : targetMembers) {
+            if (pingTaskMap.containsKey(groupMember.getIp())) {
+                continue;
+            }
             MemberGroupMain.LOGGER.info("Starting to ping " + groupMember.getIp().getHostAddress());
-            ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-            ScheduledFuture<?> pingTaskHandler = scheduledExecutorService.scheduleAtFixedRate(() -> {
-                // We need to start the timeout handler first to avoid the issue that the pong is received before the
-                // handler is initiated. Only start if there is no current timeout task running.
-                if (pingTimeoutThreadMap.get(groupMember.getIp()) == null) {
-                    ScheduledFuture<?> pingTimeoutTaskHandler = scheduledExecutorService.schedule(() -> {
-                        MemberGroupMain.LOGGER.info("Timeout is found for " + groupMember.getIp().getHostAddress());
-                        stopPingThreadsToIp(groupMember.getIp());
-                        removeMemberAndShareWithGroup(groupMember.getIp().getHostAddress());
-                    }, PING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    pingTimeoutThreadMap.put(groupMember.getIp(), pingTimeoutTaskHandler);
+            pingTaskMap.put(groupMember.getIp(), scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    ping(groupMember);
+                } catch (RuntimeException e) {
+                    // An exception would stop the next pings.
+                    MemberGroupMain.LOGGER.log(Level.WARNING, "Error: ping failed " + e);
                 }
+            }, 0, PING_FREQUENCY_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void ping(GroupMember groupMember) {
+        MemberGroupMain.LOGGER.fine("Ping is sent to " + groupMember.getIp().getHostAddress());
+        failureDetector.pingSent(groupMember.getIp(), System.currentTimeMillis());
+        sendMessage(createMessageWithGossip(SystemCommandType.PING), groupMember.getIp());
+    }
 
-                MemberGroupMain.LOGGER.fine("Ping is sent to " + groupMember.getIp().getHostAddress());
-                sendMessage(new Message(SystemCommandType.PING, null), groupMember.getIp());
-            }, 0, PING_FREQUENCY_MS, TimeUnit.MILLISECONDS);
-            pingThreadMap.put(groupMember.getIp(), pingTaskHandler);
+    // The failure detector is checked more often than the pings, so a failure is found soon after the detector decides
+    // it, whatever the phase of the pings is.
+    private void startFailureCheck() {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                checkTargetMembers();
+            } catch (RuntimeException e) {
+                // An exception would stop the next runs.
+                MemberGroupMain.LOGGER.log(Level.WARNING, "Error: failure check failed " + e);
+            }
+        }, FAILURE_CHECK_PERIOD_MS, FAILURE_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkTargetMembers() {
+        long nowMillis = System.currentTimeMillis();
+        for (GroupMember groupMember : members) {
+            InetAddress ip = groupMember.getIp();
+            if (!pingTaskMap.containsKey(ip) || !failureDetector.isFailed(ip, nowMillis)) {
+                continue;
+            }
+            if (!isSuspicionEnabled) {
+                MemberGroupMain.LOGGER.info("Timeout is found for " + ip.getHostAddress());
+                stopPingThreadsToIp(ip);
+                removeFailedMember(groupMember);
+            } else if (groupMember.getState() == GroupMember.State.ALIVE && !indirectProbeTimeoutMap.containsKey(ip)) {
+                // A suspected member is pinged until it refutes the suspicion or is removed.
+                MemberGroupMain.LOGGER.info("Timeout is found for " + ip.getHostAddress());
+                probeIndirectly(groupMember);
+            }
         }
     }
 
-    private void removeMemberAndShareWithGroup(String ip) {
-        try {
-            stopPingThreadsToIp(InetAddress.getByName(ip));
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
+    // Apply the updates piggybacked on a PING or PONG.
+    private void applyMembershipUpdates(List<MembershipUpdate> piggyback) {
+        for (MembershipUpdate update : piggyback) {
+            applyMembershipUpdate(update);
         }
-        // update local information regarding the member that left.
-        Iterator<GroupMember> it = members.iterator();
-        while (it.hasNext()) {
-            GroupMember groupMember = it.next();
-            if (groupMember.getIp().getHostAddress().equals(ip)) {
-                it.remove();
-                break;
+    }
+
+    // The target answered directly or through another member, so the timeout of its indirect probe is canceled.
+    private void onProbeAnswered(InetAddress ip) {
+        failureDetector.pongReceived(ip, System.currentTimeMillis());
+        cancelTimeout(indirectProbeTimeoutMap, ip);
+    }
+
+    // Ask random members to ping a target that did not answer. It is suspected if none of them gets a PONG in time.
+    private void probeIndirectly(GroupMember target) {
+        InetAddress targetIp = target.getIp();
+        List<GroupMember> helpers = new ArrayList<>();
+        for (GroupMember groupMember : members) {
+            if (!groupMember.getIp().equals(localMember.getIp()) && !groupMember.getIp().equals(targetIp)) {
+                helpers.add(groupMember);
             }
         }
-        // Share LEAVE with other target members
-        sendMessageToAllTargetMembersAndStartPing(new Message(SystemCommandType.LEAVE, ip));
+        Collections.shuffle(helpers);
+        for (GroupMember helper : helpers.subList(0, Math.min(INDIRECT_PROBE_COUNT, helpers.size()))) {
+            MemberGroupMain.LOGGER.fine("Ask " + helper.getIp().getHostAddress() + " to ping "
+                    + targetIp.getHostAddress());
+            sendMessage(Message.withIp(SystemCommandType.PING_REQ, targetIp), helper.getIp());
+        }
+        indirectProbeTimeoutMap.put(targetIp, scheduler.schedule(() -> {
+            indirectProbeTimeoutMap.remove(targetIp);
+            if (applyMembershipUpdate(new MembershipUpdate(MembershipUpdate.Type.SUSPECT, target.getId(),
+                    target.getIncarnation()))) {
+                suspicionCount.incrementAndGet();
+            }
+        }, INDIRECT_PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
     }
 
-    private boolean isMemberInMembers(String memberId) {
-        List<String> parsedResult = CommandParserUtil.parseMemberId(memberId);
-        String ip = parsedResult.get(0);
-        for (GroupMember groupMember : members) {
-            if (groupMember.getIp().getHostAddress().equals(ip)) {
-                return true;
+    // Remove a member that timed out, and gossip it.
+    private synchronized void removeFailedMember(GroupMember groupMember) {
+        if (applyMembershipUpdate(new MembershipUpdate(MembershipUpdate.Type.LEAVE, groupMember.getId()))) {
+            failureCount.incrementAndGet();
+        }
+    }
+
+    private void startSuspicionTimeout(GroupMember suspect) {
+        int log2 = 32 - Integer.numberOfLeadingZeros(members.size());
+        ScheduledFuture<?> previousTimeout = suspicionTimeoutMap.put(suspect.getIp(), scheduler.schedule(() -> {
+            synchronized (this) {
+                suspicionTimeoutMap.remove(suspect.getIp());
+                if (suspect.getState() == GroupMember.State.SUSPECT) {
+                    MemberGroupMain.LOGGER.info("Suspicion is not refuted by " + suspect.getId());
+                    removeFailedMember(suspect);
+                }
             }
+        }, (long) SUSPICION_MULTIPLIER * log2 * PING_FREQUENCY_MS, TimeUnit.MILLISECONDS));
+        if (previousTimeout != null) {
+            previousTimeout.cancel(false);
         }
-        return false;
     }
 
-    private boolean isIpInMembers(String ip) {
-        for (GroupMember groupMember : members) {
-            if (groupMember.getIp().getHostAddress().equals(ip)) {
-                return true;
+    // The tasks are not interrupted, since they run on the thread of the scheduler, and an interrupt during a send
+    // would close the socket.
+    private static void cancelTimeout(Map<InetAddress, ScheduledFuture<?>> timeoutMap, InetAddress ip) {
+        ScheduledFuture<?> timeout = timeoutMap.remove(ip);
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    private static void cancelTimeouts(Map<InetAddress, ScheduledFuture<?>> timeoutMap) {
+        for (InetAddress ip : timeoutMap.keySet()) {
+            cancelTimeout(timeoutMap, ip);
+        }
+    }
+
+    // Update the member list, and gossip the update if it is new to this node. Like SWIM, a larger incarnation
+    // overrides the state of a member, and SUSPECT also overrides ALIVE of the same incarnation. A JOIN or ALIVE with
+    // a newer join timestamp replaces the member with the same ip, since it must have failed and joined again. Return
+    // whether the update is applied.
+    private synchronized boolean applyMembershipUpdate(MembershipUpdate update) {
+        List<String> memberInfo = CommandParserUtil.parseMemberId(update.getMemberId());
+        if (memberInfo.get(0).equals(localMember.getIp().getHostAddress())) {
+            return applyMembershipUpdateToSelf(update);
+        }
+        MembershipUpdate.Type type = update.getType();
+        GroupMember existingMember = findMemberByIp(memberInfo.get(0));
+        if (existingMember != null && !existingMember.getId().equals(update.getMemberId())) {
+            boolean isNewerJoin = parseTimestamp(memberInfo.get(1)) > parseTimestamp(existingMember.getTimestamp());
+            if (!isNewerJoin || type == MembershipUpdate.Type.SUSPECT || type == MembershipUpdate.Type.LEAVE) {
+                // It is about another join of the member than the one in the list.
+                if (type == MembershipUpdate.Type.LEAVE) {
+                    gossipBuffer.markRemoved(update.getMemberId());
+                }
+                return false;
             }
+            removeMember(existingMember);
+            existingMember = null;
+        }
+
+        boolean isMemberListChanged = false;
+        if (type == MembershipUpdate.Type.JOIN || type == MembershipUpdate.Type.ALIVE) {
+            if (gossipBuffer.isRemoved(update.getMemberId())) {
+                return false;
+            }
+            if (existingMember == null) {
+                try {
+                    GroupMember newMember =
+                            new GroupMember(InetAddress.getByName(memberInfo.get(0)), memberInfo.get(1));
+                    newMember.setIncarnation(update.getIncarnation());
+                    addMember(newMember);
+                } catch (UnknownHostException e) {
+                    throw new RuntimeException(e);
+                }
+                MemberGroupMain.LOGGER.info("Member " + update.getMemberId() + " joined");
+                isMemberListChanged = true;
+            } else if (type == MembershipUpdate.Type.ALIVE
+                    && update.getIncarnation() > existingMember.getIncarnation()) {
+                existingMember.setIncarnation(update.getIncarnation());
+                existingMember.setState(GroupMember.State.ALIVE);
+                cancelTimeout(suspicionTimeoutMap, existingMember.getIp());
+                MemberGroupMain.LOGGER.info("Member " + update.getMemberId() + " is alive with incarnation "
+                        + update.getIncarnation());
+            } else {
+                return false;
+            }
+        } else if (type == MembershipUpdate.Type.SUSPECT) {
+            if (existingMember == null || update.getIncarnation() < existingMember.getIncarnation()
+                    || (update.getIncarnation() == existingMember.getIncarnation()
+                    && existingMember.getState() == GroupMember.State.SUSPECT)) {
+                return false;
+            }
+            existingMember.setIncarnation(update.getIncarnation());
+            existingMember.setState(GroupMember.State.SUSPECT);
+            startSuspicionTimeout(existingMember);
+            MemberGroupMain.LOGGER.info("Member " + update.getMemberId() + " is suspected");
+        } else {
+            if (existingMember == null) {
+                gossipBuffer.markRemoved(update.getMemberId());
+                return false;
+            }
+            removeMember(existingMember);
+            MemberGroupMain.LOGGER.info("Member " + update.getMemberId() + " left");
+            isMemberListChanged = true;
+        }
+        gossipBuffer.add(update, members.size());
+        if (isMemberListChanged) {
+            pingTargetMembers();
+        }
+        return true;
+    }
+
+    // Refute a suspicion of this node with a larger incarnation. The other updates about this node are ignored, since
+    // only this node decides whether it is in the group.
+    private boolean applyMembershipUpdateToSelf(MembershipUpdate update) {
+        if (!update.getMemberId().equals(localMember.getId())) {
+            return false;
+        }
+        if (update.getType() == MembershipUpdate.Type.SUSPECT
+                && update.getIncarnation() >= localMember.getIncarnation()) {
+            localMember.setIncarnation(update.getIncarnation() + 1);
+            MemberGroupMain.LOGGER.info("Refute the suspicion with incarnation " + localMember.getIncarnation());
+            gossipBuffer.add(new MembershipUpdate(MembershipUpdate.Type.ALIVE, localMember.getId(),
+                    localMember.getIncarnation()), members.size());
+            return true;
+        }
+        if (update.getType() == MembershipUpdate.Type.LEAVE) {
+            MemberGroupMain.LOGGER.warning("This node is removed by the group. Leave and join again to rejoin.");
         }
         return false;
     }
 
-    private String encodeMemberList() {
-        StringBuilder sb = new StringBuilder();
+    private void removeMember(GroupMember groupMember) {
+        stopPingThreadsToIp(groupMember.getIp());
+        cancelTimeout(indirectProbeTimeoutMap, groupMember.getIp());
+        cancelTimeout(suspicionTimeoutMap, groupMember.getIp());
+        members.remove(groupMember);
+    }
+
+    // The members are kept in the order of their join timestamps, so every node builds the same ring no matter in
+    // which order the gossip arrives.
+    private void addMember(GroupMember newMember) {
+        int index = members.size();
+        while (index > 0 && compareJoinOrder(members.get(index - 1), newMember) > 0) {
+            index--;
+        }
+        members.add(index, newMember);
+    }
+
+    private static int compareJoinOrder(GroupMember groupMember, GroupMember otherMember) {
+        int result = Long.compare(parseTimestamp(groupMember.getTimestamp()),
+                parseTimestamp(otherMember.getTimestamp()));
+        if (result != 0) {
+            return result;
+        }
+        return groupMember.getIp().getHostAddress().compareTo(otherMember.getIp().getHostAddress());
+    }
+
+    // The timestamp is empty if the member is not joined yet.
+    private static long parseTimestamp(String timestamp) {
+        try {
+            return timestamp == null || timestamp.isEmpty() ? 0 : Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private GroupMember findMemberByIp(String ip) {
         for (GroupMember groupMember : members) {
-            sb.append(groupMember.getId());
-            sb.append(MEMBER_LIST_SEPARATOR);
+            if (groupMember.getIp().getHostAddress().equals(ip)) {
+                return groupMember;
+            }
         }
-        return sb.toString();
+        return null;
     }
 }
@@ -4,6 +4,7 @@ import org.json.simple.JSONObject;
 import sdfs.UserInputCommand;
 import sdfs.UserInputCommandType;
 import sdfs.networking.CommandParserUtil;
+import sdfs.networking.FailureDetector;
 import sdfs.networking.MessageType;
 import sdfs.networking.UdpServent;
 
@@ -41,7 +42,12 @@ public class Main {
     };
     public static final UdpServent udpServent = new UdpServent();
 
+    /**
+     * @param args Optional "--failure-detector phi" for the phi accrual failure detector, and "--phi-threshold 8".
+     */
     public static void main(String[] args) {
+        udpServent.setFailureDetector(
+                FailureDetector.fromArguments(args, UdpServent.PING_FREQUENCY_MS, UdpServent.PING_TIMEOUT_MS));
         /*
          * When It is the first member. Then we will create a group. We usually set VM01 to be the first member and
          * treat it as the introducer. We will need to type "y" when the message appears.
@@ -0,0 +1,193 @@
+package sdfs.networking;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The phi accrual failure detector of Hayashibara et al., like the one in Cassandra and Akka. The intervals between
+ * the answers of each member are kept in a fixed window, and the suspicion level phi is -log10 of the probability that
+ * the next answer comes even later than now, with the intervals taken as normally distributed. A phi of 8 means the
+ * member is wrong about once in 10^8 checks if it is still alive.
+ *
+ * So the time to detect a failure follows the network: it is short when the pongs come regularly, and it grows when
+ * they are late or lost. The round trip times are also kept to show how loaded the member is.
+ */
+public class PhiAccrualFailureDetector implements FailureDetector {
+    public static final double DEFAULT_THRESHOLD = 8;
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    public static final long DEFAULT_MIN_STD_DEVIATION_MILLIS = 100;
+
+    private final double threshold;
+    private final int windowSize;
+    private final long minStdDeviationMillis;
+    private final long acceptablePauseMillis;
+    private final long firstIntervalEstimateMillis;
+    private final Map<InetAddress, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold A member with a phi of at least this has failed. A larger one detects later with fewer
+     *                  false positives.
+     * @param windowSize Number of the last intervals that are kept for each member.
+     * @param minStdDeviationMillis Lower bound of the standard deviation, since the intervals on a quiet LAN are
+     *                              almost the same and any delay would be taken as a failure.
+     * @param acceptablePauseMillis Added to the mean interval, like for a pong that is lost or a pause of the GC.
+     * @param firstIntervalEstimateMillis Expected interval until the member has answered.
+     */
+    public PhiAccrualFailureDetector(double threshold, int windowSize, long minStdDeviationMillis,
+                                     long acceptablePauseMillis, long firstIntervalEstimateMillis) {
+        if (threshold <= 0 || windowSize <= 0 || minStdDeviationMillis <= 0 || acceptablePauseMillis < 0
+                || firstIntervalEstimateMillis <= 0) {
+            throw new IllegalArgumentException("Invalid phi accrual failure detector parameters");
+        }
+        this.threshold = threshold;
+        this.windowSize = windowSize;
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.firstIntervalEstimateMillis = firstIntervalEstimateMillis;
+    }
+
+    @Override
+    public void pingSent(InetAddress member, long nowMillis) {
+        History history = histories.computeIfAbsent(member, ip -> new History(nowMillis));
+        synchronized (history) {
+            history.lastPingMillis = nowMillis;
+        }
+    }
+
+    @Override
+    public void pongReceived(InetAddress member, long nowMillis) {
+        History history = histories.get(member);
+        if (history == null) {
+            // The member is not pinged by this node.
+            return;
+        }
+        synchronized (history) {
+            if (history.hasAnswered) {
+                history.intervals.add(Math.max(nowMillis - history.lastArrivalMillis, 0));
+            }
+            history.roundTripTimes.add(Math.max(nowMillis - history.lastPingMillis, 0));
+            history.lastArrivalMillis = nowMillis;
+            history.hasAnswered = true;
+        }
+    }
+
+    @Override
+    public double getSuspicionLevel(InetAddress member, long nowMillis) {
+        History history = histories.get(member);
+        if (history == null) {
+            return 0;
+        }
+        synchronized (history) {
+            double mean = history.intervals.getMean() + acceptablePauseMillis;
+            double stdDeviation = Math.max(history.intervals.getStdDeviation(), minStdDeviationMillis);
+            return phi(nowMillis - history.lastArrivalMillis, mean, stdDeviation);
+        }
+    }
+
+    @Override
+    public boolean isFailed(InetAddress member, long nowMillis) {
+        return getSuspicionLevel(member, nowMillis) >= threshold;
+    }
+
+    @Override
+    public void remove(InetAddress member) {
+        histories.remove(member);
+    }
+
+    /**
+     * @return The mean round trip time of the pings of the member in milliseconds, or 0 if it has not answered.
+     */
+    public double getMeanRoundTripMillis(InetAddress member) {
+        History history = histories.get(member);
+        if (history == null) {
+            return 0;
+        }
+        synchronized (history) {
+            return history.roundTripTimes.getMean();
+        }
+    }
+
+    /**
+     * -log10 of the probability that a normal interval is longer than elapsedMillis. The normal distribution is
+     * approximated by a logistic function like in Akka, which is within 0.01% and does not overflow for a long time.
+     */
+    static double phi(long elapsedMillis, double mean, double stdDeviation) {
+        double y = (elapsedMillis - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsedMillis > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        // Not -0 when the member has just answered.
+        return Math.max(-Math.log10(1.0 - 1.0 / (1.0 + e)), 0);
+    }
+
+    @Override
+    public String toString() {
+        return "phi accrual threshold " + threshold;
+    }
+
+    private class History {
+        private final SampleWindow intervals = new SampleWindow(windowSize);
+        private final SampleWindow roundTripTimes = new SampleWindow(windowSize);
+        // The time of the last answer, or of the first ping before the member answers.
+        private long lastArrivalMillis;
+        private long lastPingMillis;
+        private boolean hasAnswered = false;
+
+        History(long nowMillis) {
+            lastArrivalMillis = nowMillis;
+            lastPingMillis = nowMillis;
+            // Two intervals around the estimate, like in Akka, so there is a distribution before the first answers.
+            long estimateStdDeviation = firstIntervalEstimateMillis / 4;
+            intervals.add(firstIntervalEstimateMillis - estimateStdDeviation);
+            intervals.add(firstIntervalEstimateMillis + estimateStdDeviation);
+        }
+    }
+
+    /**
+     * The last samples in a ring buffer of primitives, with their sum and sum of squares for the mean and the standard
+     * deviation in constant time. It is not thread safe.
+     */
+    static class SampleWindow {
+        private final long[] samples;
+        private int size = 0;
+        private int next = 0;
+        private long sum = 0;
+        private long sumOfSquares = 0;
+
+        SampleWindow(int capacity) {
+            samples = new long[capacity];
+        }
+
+        void add(long sample) {
+            if (size == samples.length) {
+                long oldest = samples[next];
+                sum -= oldest;
+                sumOfSquares -= oldest * oldest;
+            } else {
+                size++;
+            }
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            sum += sample;
+            sumOfSquares += sample * sample;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double getMean() {
+            return size == 0 ? 0 : (double) sum / size;
+        }
+
+        double getStdDeviation() {
+            if (size == 0) {
+                return 0;
+            }
+            double mean = getMean();
+            return Math.sqrt(Math.max((double) sumOfSquares / size - mean * mean, 0));
+        }
+    }
+}
@@ -26,8 +26,9 @@ import java.util.stream.Collectors;
  * like the member list. All the commands that we send and receive in the system will be handled here.
  */
 public class UdpServent {
-    private static final int PING_FREQUENCY_MS = 1000;
-    private static final int PING_TIMEOUT_MS = 3000;
+    public static final int PING_FREQUENCY_MS = 1000;
+    public static final int PING_TIMEOUT_MS = 3000;
+    private static final int FAILURE_CHECK_PERIOD_MS = 100; // How often the failure detector is asked about the targets
     private static final int MASTER_SANITY_CHECK_SECONDS = 3;
     public static final int GROUP_PORT = 8012; // Used to communicate membership in the system
     public static final int JOIN_PORT = 8013; // Used to communicate with external nodes
@@ -47,7 +48,9 @@ public class UdpServent {
     private final DatagramSocket failureDetectorSocket;
     private GroupMember localMember;
     private HashMap<InetAddress, ScheduledFuture<?>> pingThreadMap = new HashMap<>();
-    private HashMap<InetAddress, ScheduledFuture<?>> pingTimeoutThreadMap = new HashMap<>();
+    private volatile FailureDetector failureDetector = new TimeoutFailureDetector(PING_TIMEOUT_MS);
+    // The targets that the failure detector has found failed, so each failure is only handled once.
+    private final Set<InetAddress> timedOutIps = ConcurrentHashMap.newKeySet();
     public boolean isJoined = false;
     public boolean isJoining = false;
     private HashMap<String, SdfsFileMetadata> fileMetadata = new HashMap<>();
@@ -95,6 +98,14 @@ public class UdpServent {
         runMembershipServer();
         runJoinServer();
         runFileServer();
+        startFailureCheck();
+    }
+
+    /**
+     * Use another failure detector, like the phi accrual one. It is set before joining the group.
+     */
+    public void setFailureDetector(FailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
     }
 
     public GroupMember getLocalMember() {
@@ -784,13 +795,9 @@ public class UdpServent {
                                 newMessageJsonObject.put("command", MessageType.PONG.toString());
                                 sendMessage(newMessageJsonObject.toString(), clientAddress, FAILURE_DETECTOR_PORT);
                             } else if (messageType.equals(MessageType.PONG.toString())) {
-                                // Cancel the timeout thread
-                                LOGGER.fine("Pong is received, canceling the timeout");
-                                ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(clientAddress);
-                                if (pingTimeoutThread != null) {
-                                    pingTimeoutThread.cancel(true);
-                                    pingTimeoutThreadMap.remove(clientAddress);
-                                }
+                                LOGGER.fine("Pong is received");
+                                failureDetector.pongReceived(clientAddress, System.currentTimeMillis());
+                                timedOutIps.remove(clientAddress);
                             }
                         }
                     }
@@ -807,11 +814,8 @@ public class UdpServent {
         for (InetAddress key : pingThreadMap.keySet()) {
             pingThreadMap.get(key).cancel(true);
         }
-        for (InetAddress key : pingTimeoutThreadMap.keySet()) {
-            pingTimeoutThreadMap.get(key).cancel(true);
-        }
         pingThreadMap = new HashMap<>();
-        pingTimeoutThreadMap = new HashMap<>();
+        timedOutIps.clear();
         if (pongTaskHandler != null) {
             pongTaskHandler.cancel(true);
         }
@@ -825,46 +829,27 @@ public class UdpServent {
             pingThread.cancel(true);
             pingThreadMap.remove(ip);
         }
-        ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(ip);
-        if (pingTimeoutThread != null) {
-            pingTimeoutThread.cancel(true);
-            pingTimeoutThreadMap.remove(ip);
-        }
+        failureDetector.remove(ip);
+        timedOutIps.remove(ip);
     }
 
     // Start the ping to target members. This will stop all the current pings, calculate the target members based on the
     // current information, and start to ping them.
     private void pingTargetMembers() {
+        Set<InetAddress> pingedIps = new HashSet<>(pingThreadMap.keySet());
         stopAllCurrentPingThreads();
         runFailureDetectorServer();
 
         List<GroupMember> targetMembers = connectionTopology.getTargets(localMember);
         for (GroupMember targetMember : targetMembers) {
+            if (!pingedIps.contains(targetMember.getIp())) {
+                // A new target starts without history. The others keep theirs for the failure detector.
+                failureDetector.remove(targetMember.getIp());
+            }
             LOGGER.fine("Starting to ping " + targetMember.getIp().getHostName());
             ScheduledFuture<?> pingTaskHandler = scheduledExecutorService.scheduleAtFixedRate(() -> {
-                // We need to start the timeout handler first to avoid the issue that the pong is received before the
-                // handler is initiated. Only start if there is no current timeout task running.
-                if (pingTimeoutThreadMap.get(targetMember.getIp()) == null) {
-                    ScheduledFuture<?> pingTimeoutTaskHandler = scheduledExecutorService.schedule(() -> {
-                        LOGGER.info("Timeout is found for " + targetMember.getIp().getHostName());
-                        stopPingThreadsToIp(targetMember.getIp());
-                        removeMemberAndShareWithGroup(targetMember.getIp().getHostName());
-
-                        // Start Election if current leader times out
-                        LOGGER.fine("Leader times out, initiating election.");
-                        if (this.masterInfo.getMasterGroupMember().getRingId() == connectionTopology.getMemberRingId(targetMember)) {
-                            JSONObject electionMessageJsonObject = new JSONObject();
-                            electionMessageJsonObject.put("command", MessageType.ELECTION.toString());
-                            electionMessageJsonObject.put("electingMember", localMember.toJson());
-                            electionMessageJsonObject.put("initiator", connectionTopology.getMemberRingId(localMember));
-                            isElectionInProgress = true;
-                            sendMessageToSuccessor(electionMessageJsonObject.toJSONString(), GROUP_PORT);
-                        }
-                    }, PING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    pingTimeoutThreadMap.put(targetMember.getIp(), pingTimeoutTaskHandler);
-                }
-
                 LOGGER.fine("Ping is sent to " + targetMember.getIp().getHostName());
+                failureDetector.pingSent(targetMember.getIp(), System.currentTimeMillis());
                 JSONObject newMessageJsonObject = new JSONObject();
                 newMessageJsonObject.put("command", MessageType.PING.toString());
                 sendMessage(newMessageJsonObject.toString(), targetMember.getIp(), FAILURE_DETECTOR_PORT);
@@ -873,6 +858,44 @@ public class UdpServent {
         }
     }
 
+    // The failure detector is checked more often than the pings, so a failure is found soon after the detector decides
+    // it, whatever the phase of the pings is.
+    private void startFailureCheck() {
+        scheduledExecutorService.scheduleAtFixedRate(() -> {
+            try {
+                long currentTime = System.currentTimeMillis();
+                for (GroupMember targetMember : connectionTopology.getTargets(localMember)) {
+                    InetAddress ip = targetMember.getIp();
+                    if (pingThreadMap.containsKey(ip) && !timedOutIps.contains(ip)
+                            && failureDetector.isFailed(ip, currentTime)) {
+                        timedOutIps.add(ip);
+                        handlePingTimeout(targetMember);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // An exception would stop the next checks.
+                LOGGER.warning("Failure check failed " + e);
+            }
+        }, FAILURE_CHECK_PERIOD_MS, FAILURE_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void handlePingTimeout(GroupMember targetMember) {
+        LOGGER.info("Timeout is found for " + targetMember.getIp().getHostName());
+        stopPingThreadsToIp(targetMember.getIp());
+        removeMemberAndShareWithGroup(targetMember.getIp().getHostName());
+
+        // Start Election if current leader times out
+        LOGGER.fine("Leader times out, initiating election.");
+        if (this.masterInfo.getMasterGroupMember().getRingId() == connectionTopology.getMemberRingId(targetMember)) {
+            JSONObject electionMessageJsonObject = new JSONObject();
+            electionMessageJsonObject.put("command", MessageType.ELECTION.toString());
+            electionMessageJsonObject.put("electingMember", localMember.toJson());
+            electionMessageJsonObject.put("initiator", connectionTopology.getMemberRingId(localMember));
+            isElectionInProgress = true;
+            sendMessageToSuccessor(electionMessageJsonObject.toJSONString(), GROUP_PORT);
+        }
+    }
+
     private void removeMemberAndShareWithGroup(String ip) {
         try {
             stopPingThreadsToIp(InetAddress.getByName(ip));
@@ -30,8 +30,9 @@ import java.util.stream.Collectors;
  * like the member list. All the commands that we send and receive in the system will be handled here.
  */
 public class UdpServent {
-    private static final int PING_FREQUENCY_MS = 1000;
-    private static final int PING_TIMEOUT_MS = 3000;
+    public static final int PING_FREQUENCY_MS = 1000;
+    public static final int PING_TIMEOUT_MS = 3000;
+    private static final int FAILURE_CHECK_PERIOD_MS = 100; // How often the failure detector is asked about the targets
     private static final int MASTER_SANITY_CHECK_SECONDS = 3;
     private static final int COORDINATOR_ASSIGN_QUERY_SECONDS = 5;
     public static final int GROUP_PORT = 8012; // Used to communicate membership in the system
@@ -58,7 +59,9 @@ public class UdpServent {
     private final DatagramSocket mlSocket;
     private GroupMember localMember;
     private HashMap<InetAddress, ScheduledFuture<?>> pingThreadMap = new HashMap<>();
-    private HashMap<InetAddress, ScheduledFuture<?>> pingTimeoutThreadMap = new HashMap<>();
+    private volatile FailureDetector failureDetector = new TimeoutFailureDetector(PING_TIMEOUT_MS);
+    // The targets that the failure detector has found failed, so each failure is only handled once.
+    private final Set<InetAddress> timedOutIps = ConcurrentHashMap.newKeySet();
     public boolean isJoined = false;
     public boolean isJoining = false;
     private HashMap<String, SdfsFileMetadata> fileMetadata = new HashMap<>();
@@ -111,6 +114,14 @@ public class UdpServent {
         runJoinServer();
         runFileServer();
         runMachineLearningServer();
+        startFailureCheck();
+    }
+
+    /**
+     * Use another failure detector, like the phi accrual one. It is set before joining the group.
+     */
+    public void setFailureDetector(FailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
     }
 
     public GroupMember getLocalMember() {
@@ -753,13 +764,9 @@ public class UdpServent {
                                 newMessageJsonObject.put("command", MessageType.PONG.toString());
                                 sendMessage(newMessageJsonObject.toString(), clientAddress, FAILURE_DETECTOR_PORT);
                             } else if (messageType.equals(MessageType.PONG.toString())) {
-                                // Cancel the timeout thread
-                                LOGGER.fine("Pong is received, canceling the timeout");
-                                ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(clientAddress);
-                                if (pingTimeoutThread != null) {
-                                    pingTimeoutThread.cancel(true);
-                                    pingTimeoutThreadMap.remove(clientAddress);
-                                }
+                                LOGGER.fine("Pong is received");
+                                failureDetector.pongReceived(clientAddress, System.currentTimeMillis());
+                                timedOutIps.remove(clientAddress);
                             } else if (messageType.equals(MessageType.LEAVE.toString())) {
                                 GroupMember leavingMember = CommandParserUtil.decodeMember((JSONObject) resultObject.get("member"));
                                 LOGGER.info("leave is received for " + leavingMember.getIp().getHostName());
@@ -988,11 +995,8 @@ public class UdpServent {
         for (InetAddress key : pingThreadMap.keySet()) {
             pingThreadMap.get(key).cancel(true);
         }
-        for (InetAddress key : pingTimeoutThreadMap.keySet()) {
-            pingTimeoutThreadMap.get(key).cancel(true);
-        }
         pingThreadMap = new HashMap<>();
-        pingTimeoutThreadMap = new HashMap<>();
+        timedOutIps.clear();
         if (pongTaskHandler != null) {
             pongTaskHandler.cancel(true);
         }
@@ -1014,21 +1018,23 @@ public class UdpServent {
             pingThread.cancel(true);
             pingThreadMap.remove(ip);
         }
-        ScheduledFuture<?> pingTimeoutThread = pingTimeoutThreadMap.get(ip);
-        if (pingTimeoutThread != null) {
-            pingTimeoutThread.cancel(true);
-            pingTimeoutThreadMap.remove(ip);
-        }
+        failureDetector.remove(ip);
+        timedOutIps.remove(ip);
     }
 
     // Start the ping to target members. This will stop all the current pings, calculate the target members based on the
     // current information, and start to ping them.
     private void pingTargetMembers() {
+        Set<InetAddress> pingedIps = new HashSet<>(pingThreadMap.keySet());
         stopAllCurrentPingThreads();
         runFailureDetectorServer();
 
         List<GroupMember> targetMembers = connectionTopology.getTargets(localMember);
         for (GroupMember targetMember : targetMembers) {
+            if (!pingedIps.contains(targetMember.getIp())) {
+                // A new target starts without history. The others keep theirs for the failure detector.
+                failureDetector.remove(targetMember.getIp());
+            }
             LOGGER.fine("Starting to ping " + targetMember.getIp().getHostName());
             ScheduledFuture<?> pingTaskHandler = scheduledExecutorService.scheduleAtFixedRate(() -> {
                 long currentTime = System.currentTimeMillis();
@@ -1041,43 +1047,8 @@ public class UdpServent {
                     sentStuckMessage = true;
                 }
 
-                // We need to start the timeout handler first to avoid the issue that the pong is received before the
-                // handler is initiated. Only start if there is no current timeout task running.
-                if (pingTimeoutThreadMap.get(targetMember.getIp()) == null) {
-                    ScheduledFuture<?> pingTimeoutTaskHandler = scheduledExecutorService.schedule(() -> {
-                        String leavingIp = targetMember.getIp().getHostName();
-                        LOGGER.info("Timeout is found for " + leavingIp);
-                        LOGGER.fine("Stucked VMs are " + stuckedVMs);
-                        if (stuckedVMs.contains(localMember.getIp().getHostName())) {
-                            LOGGER.fine("I am stuck. Ignore any timeouts");
-                        } else if (!stuckedVMs.contains(leavingIp)) {
-                            LOGGER.fine("This is a real timeout " + leavingIp);
-                            removeMemberAndShareWithGroup(targetMember);
-                            handleBackupData(leavingIp);
-                            JSONObject newMessageJsonObject = new JSONObject();
-                            newMessageJsonObject.put("command", MessageType.LEAVE.toString());
-                            newMessageJsonObject.put("member", targetMember.toJson());
-                            sendMessageToAllTargetMembers(newMessageJsonObject.toString(), FAILURE_DETECTOR_PORT);
-
-                            // Start Election if current leader times out
-                            if (this.masterInfo.getMasterGroupMemberIp().equals(leavingIp)) {
-                                LOGGER.fine("Leader times out, initiating hot replace.");
-                                try {
-                                    JSONObject electionMessageJsonObject = new JSONObject();
-                                    electionMessageJsonObject.put("command", MessageType.INITIATE_HOT_REPLACE.toString());
-                                    sendMessage(electionMessageJsonObject.toJSONString(), InetAddress.getByName(masterInfo.getHotReplaceGroupMemberIp()), FAILURE_DETECTOR_PORT);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        } else {
-                            LOGGER.fine(leavingIp + " is a stucked vm");
-                        }
-                    }, PING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    pingTimeoutThreadMap.put(targetMember.getIp(), pingTimeoutTaskHandler);
-                }
-
                 LOGGER.fine("Ping is sent to " + targetMember.getIp().getHostName());
+                failureDetector.pingSent(targetMember.getIp(), System.currentTimeMillis());
                 JSONObject newMessageJsonObject = new JSONObject();
                 newMessageJsonObject.put("command", MessageType.PING.toString());
                 sendMessage(newMessageJsonObject.toString(), targetMember.getIp(), FAILURE_DETECTOR_PORT);
@@ -1086,6 +1057,58 @@ public class UdpServent {
         }
     }
 
+    // The failure detector is checked more often than the pings, so a failure is found soon after the detector decides
+    // it, whatever the phase of the pings is.
+    private void startFailureCheck() {
+        scheduledExecutorService.scheduleAtFixedRate(() -> {
+            try {
+                long currentTime = System.currentTimeMillis();
+                for (GroupMember targetMember : connectionTopology.getTargets(localMember)) {
+                    InetAddress ip = targetMember.getIp();
+                    if (pingThreadMap.containsKey(ip) && !timedOutIps.contains(ip)
+                            && failureDetector.isFailed(ip, currentTime)) {
+                        timedOutIps.add(ip);
+                        handlePingTimeout(targetMember);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // An exception would stop the next checks.
+                LOGGER.warning("Failure check failed " + e);
+            }
+        }, FAILURE_CHECK_PERIOD_MS, FAILURE_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void handlePingTimeout(GroupMember targetMember) {
+        String leavingIp = targetMember.getIp().getHostName();
+        LOGGER.info("Timeout is found for " + leavingIp);
+        LOGGER.fine("Stucked VMs are " + stuckedVMs);
+        if (stuckedVMs.contains(localMember.getIp().getHostName())) {
+            LOGGER.fine("I am stuck. Ignore any timeouts");
+        } else if (!stuckedVMs.contains(leavingIp)) {
+            LOGGER.fine("This is a real timeout " + leavingIp);
+            removeMemberAndShareWithGroup(targetMember);
+            handleBackupData(leavingIp);
+            JSONObject newMessageJsonObject = new JSONObject();
+            newMessageJsonObject.put("command", MessageType.LEAVE.toString());
+            newMessageJsonObject.put("member", targetMember.toJson());
+            sendMessageToAllTargetMembers(newMessageJsonObject.toString(), FAILURE_DETECTOR_PORT);
+
+            // Start Election if current leader times out
+            if (this.masterInfo.getMasterGroupMemberIp().equals(leavingIp)) {
+                LOGGER.fine("Leader times out, initiating hot replace.");
+                try {
+                    JSONObject electionMessageJsonObject = new JSONObject();
+                    electionMessageJsonObject.put("command", MessageType.INITIATE_HOT_REPLACE.toString());
+                    sendMessage(electionMessageJsonObject.toJSONString(), InetAddress.getByName(masterInfo.getHotReplaceGroupMemberIp()), FAILURE_DETECTOR_PORT);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } else {
+            LOGGER.fine(leavingIp + " is a stucked vm");
+        }
+    }
+
     private void handleBackupData(String leavingIp) {
         // If this is master, handle backup data.
         if (masterInfo.isMasterMember(localMember)) {